@@ -2,14 +2,29 @@ package com.process.RecordLib;
 
 import android.graphics.SurfaceTexture;
 import android.opengl.EGL14;
+import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.util.Log;
 
+import com.process.RecordLib.encoder.QueuedMuxer;
 import com.process.RecordLib.encoder.TextureMovieEncoder;
+import com.process.RecordLib.opengl.FilterChain;
+import com.process.RecordLib.opengl.FilterPass;
+import com.process.RecordLib.opengl.FrameCapture;
+import com.process.RecordLib.opengl.FramebufferTexture;
 import com.process.RecordLib.opengl.FullFrameRect;
+import com.process.RecordLib.opengl.GlUtil;
+import com.process.RecordLib.opengl.ProgramCache;
 import com.process.RecordLib.opengl.Texture2dProgram;
+import com.process.RecordLib.opengl.TextureHandoff;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -31,16 +46,42 @@ public class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
     /** 准备录制视频 */
     public static final int RECORDING_RESUMED = 2;
 
+    // Filtered frames are drawn into these, and passed to the encoder's context through a
+    // TextureHandoff: one for the encoder to read, one to draw into, and one waiting.
+    private static final int FILTER_TARGET_COUNT = 3;
+
+    // Compile every program when the surface is created, so the first switch to a filter
+    // doesn't drop a frame.  Costs some startup time.
+    private static final boolean PRECOMPILE_PROGRAMS = true;
+
+    // Radius of FILTER_BLUR, in texels of the camera frame.
+    private static final int BLUR_RADIUS = 6;
+
+    // Frames that can be read back but not yet written, for saveFrameFile() and bursts.
+    // Each holds two copies of a frame, so this caps capture memory; the compression
+    // threads are one fewer, up to the core count, so a buffer is free to read into.
+    private static final int MAX_CAPTURE_BUFFERS = 5;
+
     // width/height of the incoming camera preview frames
-    private boolean mIncomingSizeUpdated;
     private int mIncomingWidth;
     private int mIncomingHeight;
 
-    private FullFrameRect mFullScreen;
+    private ProgramCache mProgramCache;         // for the GLSurfaceView's context
+    private FullFrameRect mFullScreen;          // camera texture -> screen, unfiltered
+    private FullFrameRect mBlitScreen;          // filtered texture -> screen
+    private FilterChain mFilterChain;           // camera texture -> filtered texture
+    private FilterPass[] mFilterPasses;         // mFilterChain's passes, by FILTER_* value
+    private final FramebufferTexture[] mFilterTargets =
+            new FramebufferTexture[FILTER_TARGET_COUNT];
+    private TextureHandoff mFilterHandoff;      // fences mFilterTargets between contexts
     private boolean isRecordingEnabled;
     private int mRecordingStatus;
+    private boolean isRecordingPaused;
+    private boolean mEncoderPaused;     // what we last told the encoder
 
     private final float[] mSTMatrix = new float[16];
+    private final float[] mRecordMatrix = new float[16];    // mSTMatrix, cropped to record
+    private final float[] mPreviewMatrix = new float[16];   // cropped to the surface
     private int mTextureId;
 
     private TextureMovieEncoder mTextureMovieEncoder;
@@ -50,16 +91,39 @@ public class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
 
     private File mOutputFile;
 
-    private int mCurrentFilter;
-    private int mNewFilter;
+    private int[] mFilters;                     // FILTER_* values, in the order applied
+    private boolean mFiltersChanged;
 
+    // Size of the encoded video.  Comes from the profile if there is one, and otherwise
+    // follows the surface.
+    private RecordingProfile mProfile;
     private int mRecordWidth = 0;
     private int mRecordHeight = 0;
+    private int mSurfaceWidth = 0;
+    private int mSurfaceHeight = 0;
+
+    // Saves frames for captureFrame() and captureBurst(); compression happens on
+    // mCaptureExecutor.
+    private final ThreadPoolExecutor mCaptureExecutor;
+    private final FrameCapture mFrameCapture;
 
     public void setRecordingEnabled(boolean isRecordingEnabled) {
         this.isRecordingEnabled = isRecordingEnabled;
     }
 
+    public void setRecordingPaused(boolean isRecordingPaused) {
+        this.isRecordingPaused = isRecordingPaused;
+    }
+
+    /**
+     * Sets the recording resolution and codec settings.  With null (the default) the video
+     * is the size of the surface, at 1Mbps and 30fps.  Call before the surface is
+     * created; it isn't picked up until the next onSurfaceChanged().
+     */
+    public void setRecordingProfile(RecordingProfile profile) {
+        mProfile = profile;
+    }
+
     public CameraSurfaceRenderer(RecordMovieController.CameraMovieHandler cameraHandler,
                                  TextureMovieEncoder movieEncoder, File outputFile) {
         mCameraMovieHandler = cameraHandler;
@@ -71,12 +135,33 @@ public class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
         mRecordingStatus = -1;
         isRecordingEnabled = false;
 
-        mIncomingSizeUpdated = false;
         mIncomingWidth = mIncomingHeight = -1;
 
-        // We could preserve the old filter mode, but currently not bothering.
-        mCurrentFilter = -1;
-        mNewFilter = RecordMovieController.FILTER_NONE;
+        mFilters = new int[] { RecordMovieController.FILTER_NONE };
+        mFiltersChanged = true;
+
+        // FrameCapture never has more tasks out than buffers, so the queue can't overflow.
+        int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(),
+                MAX_CAPTURE_BUFFERS - 1));
+        mCaptureExecutor = new ThreadPoolExecutor(threads, threads, 5, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_CAPTURE_BUFFERS), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "FrameCapture-" + mCount.incrementAndGet());
+                    }
+                });
+        mCaptureExecutor.allowCoreThreadTimeOut(true);
+        mFrameCapture = new FrameCapture(mCaptureExecutor, threads + 1);
+        mFrameCapture.setListener(new FrameCapture.Listener() {
+            @Override
+            public void onFrameCaptured(FrameCapture.Capture capture) {
+                if (!capture.isSuccess()) {
+                    Log.w(TAG, "frame capture to " + capture.getFile() + " failed");
+                }
+            }
+        });
     }
 
     @Override
@@ -93,10 +178,23 @@ public class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
             mRecordingStatus = RECORDING_OFF;
         }
 
-        // Set up the texture blitter that will be used for on-screen display.  This
-        // is *not* applied to the recording, because that uses a separate shader.
+        // Set up the texture blitter that will be used for on-screen display when there's
+        // no filter.  With filters, the chain draws into a framebuffer that the screen and
+        // the recording both copy from.  Anything left from an old context is gone already.
+        mProgramCache = new ProgramCache();
+        if (PRECOMPILE_PROGRAMS) {
+            mProgramCache.precompileAll();
+        }
         mFullScreen = new FullFrameRect(
-                new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_EXT));
+                mProgramCache.get(Texture2dProgram.ProgramType.TEXTURE_EXT), false);
+        mBlitScreen = null;
+        for (int i = 0; i < FILTER_TARGET_COUNT; i++) {
+            mFilterTargets[i] = null;
+        }
+        mFilterHandoff = new TextureHandoff(FILTER_TARGET_COUNT);
+        mTextureMovieEncoder.setTextureHandoff(mFilterHandoff);
+        createFilterChain();
+        mFiltersChanged = true;     // new chain, so the filters need to be set up again
 
         mTextureId = mFullScreen.createTextureObject();
 
@@ -113,12 +211,47 @@ public class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
     @Override
     public void onSurfaceChanged(GL10 gl, int width, int height) {
         Log.d(TAG, "onSurfaceChanged " + width + "x" + height);
-        mRecordWidth = width;
-        mRecordHeight = height;
+        mSurfaceWidth = width;
+        mSurfaceHeight = height;
+        if (mProfile != null) {
+            // The camera frame gets cropped and scaled to this on the GPU, whatever the
+            // surface is.
+            mRecordWidth = mProfile.getWidth();
+            mRecordHeight = mProfile.getHeight();
+        } else {
+            mRecordWidth = width;
+            mRecordHeight = height;
+        }
+        GLES20.glViewport(0, 0, width, height);
+
+        // Get the codec, EGL context and shader ready now, so that starting a recording
+        // later only has to open the output file.
+        mTextureMovieEncoder.prewarm(createEncoderConfig());
+    }
+
+    private TextureMovieEncoder.EncoderConfig createEncoderConfig() {
+        if (mProfile == null) {
+            return new TextureMovieEncoder.EncoderConfig(mOutputFile, mRecordWidth,
+                    mRecordHeight, RecordingProfile.DEFAULT_BIT_RATE,
+                    EGL14.eglGetCurrentContext());
+        }
+        return new TextureMovieEncoder.EncoderConfig.Builder(mOutputFile, mRecordWidth,
+                mRecordHeight, mProfile.getBitRate(), EGL14.eglGetCurrentContext())
+                .setMimeType(mProfile.getMimeType())
+                .setFrameRate(mProfile.getFrameRate())
+                .setBitrateMode(mProfile.getBitrateMode().getCodecValue())
+                .setQuality(mProfile.getQuality())
+                .setIFrameInterval(mProfile.getKeyFrameInterval())
+                .setProfileLevel(mProfile.getCodecProfile(), mProfile.getCodecLevel())
+                .setFrameQueueSize(mProfile.getFrameQueueSize())
+                .setMuxerQueue(mProfile.getMuxerQueueSize(), QueuedMuxer.OverflowPolicy.BLOCK)
+                .setAdaptiveBitrate(mProfile.getMinBitRate(), mProfile.getMaxBitRate())
+                .build();
     }
 
     @Override
     public void onDrawFrame(GL10 gl) {
+        long drawStartNanos = System.nanoTime();
         boolean showBox = false;
 
         // Latch the latest frame.  If there isn't anything new, we'll just re-use whatever
@@ -133,9 +266,9 @@ public class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
                 case RECORDING_OFF:
                     Log.d(TAG, "START recording");
                     // start recording
-                    mTextureMovieEncoder.startRecording(new TextureMovieEncoder.EncoderConfig(
-                            mOutputFile, mRecordWidth, mRecordHeight, 1000000, EGL14.eglGetCurrentContext()));
+                    mTextureMovieEncoder.startRecording(createEncoderConfig());
                     mRecordingStatus = RECORDING_ON;
+                    mEncoderPaused = false;
                     break;
                 case RECORDING_RESUMED:
                     Log.d(TAG, "RESUME recording");
@@ -148,6 +281,16 @@ public class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
                 default:
                     throw new RuntimeException("unknown status " + mRecordingStatus);
             }
+
+            if (isRecordingPaused != mEncoderPaused) {
+                Log.d(TAG, (isRecordingPaused ? "PAUSE" : "UNPAUSE") + " recording");
+                if (isRecordingPaused) {
+                    mTextureMovieEncoder.pauseRecording();
+                } else {
+                    mTextureMovieEncoder.resumeRecording();
+                }
+                mEncoderPaused = isRecordingPaused;
+            }
         } else {
             switch (mRecordingStatus) {
                 case RECORDING_ON:
@@ -156,6 +299,7 @@ public class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
                     Log.d(TAG, "STOP recording");
                     mTextureMovieEncoder.stopRecording();
                     mRecordingStatus = RECORDING_OFF;
+                    isRecordingPaused = mEncoderPaused = false;
                     break;
                 case RECORDING_OFF:
                     // yay
@@ -172,29 +316,92 @@ public class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
         // TODO: be less lame.
         mTextureMovieEncoder.setTextureId(mTextureId);
 
-        // Tell the video encoder thread that a new frame is available.
-        // This will be ignored if we're not actually recording.
-        mTextureMovieEncoder.frameAvailable(mSurfaceTexture);
-
         if (mIncomingWidth <= 0 || mIncomingHeight <= 0) {
             // Texture size isn't set yet.  This is only used for the filters, but to be
             // safe we can just skip drawing while we wait for the various races to resolve.
             // (This seems to happen if you toggle the screen off/on with power button.)
+            // The encoder can still have the unfiltered frame.
             Log.i(TAG, "Drawing before incoming texture size set; skipping");
+            mTextureMovieEncoder.frameAvailable(mSurfaceTexture, drawStartNanos);
             return;
         }
         // Update the filter, if necessary.
-        if (mCurrentFilter != mNewFilter) {
+        if (mFiltersChanged) {
             updateFilter();
         }
-        if (mIncomingSizeUpdated) {
-            mFullScreen.getProgram().setTexSize(mIncomingWidth, mIncomingHeight);
-            mIncomingSizeUpdated = false;
-        }
 
-        // Draw the video frame.
+        // The recording and the screen each show the middle of the camera frame, cropped to
+        // their own shape.
         mSurfaceTexture.getTransformMatrix(mSTMatrix);
-        mFullScreen.drawFrame(mTextureId, mSTMatrix);
+        GlUtil.centerCropMatrix(mSTMatrix, mIncomingWidth, mIncomingHeight,
+                mRecordWidth, mRecordHeight, mRecordMatrix);
+        if (!mFilterChain.hasEnabledPass()) {
+            // Nothing worth sharing; the encoder and the screen both draw the camera texture.
+            // Tell the video encoder thread that a new frame is available.
+            // This will be ignored if we're not actually recording.
+            mTextureMovieEncoder.frameAvailable(mSurfaceTexture, 0, mRecordMatrix,
+                    drawStartNanos);
+            GlUtil.centerCropMatrix(mSTMatrix, mIncomingWidth, mIncomingHeight,
+                    mSurfaceWidth, mSurfaceHeight, mPreviewMatrix);
+            mFullScreen.drawFrame(mTextureId, mPreviewMatrix);
+        } else {
+            drawFiltered(drawStartNanos);
+        }
+
+        // Starts reading this frame back if a capture was asked for, and passes earlier
+        // reads that have finished to the compressor.  Doesn't wait for the GPU.
+        mFrameCapture.onFrameDrawn(mSurfaceWidth, mSurfaceHeight);
+    }
+
+    /**
+     * Runs the filters once, into a framebuffer the size of the recording, then draws the
+     * result to the screen and hands it to the encoder.  The recording gets the same image as
+     * the preview, without a second pass through the filters.
+     */
+    private void drawFiltered(long drawStartNanos) {
+        // The encoder reads the texture from its own context.  The handoff makes the GPU
+        // finish its last read before we draw into it, and finish our draw before it reads.
+        // That costs a fence, or a glFinish() without GLES 3, so frames the encoder is going
+        // to ignore skip it.
+        int index = mFilterHandoff.beginWrite();
+        FramebufferTexture target = getFilterTarget(index);
+        mFilterChain.draw(mTextureId, mRecordMatrix, mIncomingWidth, mIncomingHeight, target);
+        if (mRecordingStatus == RECORDING_ON && !mEncoderPaused) {
+            mFilterHandoff.endWrite(index, target.getTextureId(),
+                    mSurfaceTexture.getTimestamp());
+            mTextureMovieEncoder.frameAvailable(mSurfaceTexture, target.getTextureId(),
+                    drawStartNanos);
+        } else {
+            mFilterHandoff.cancelWrite(index);
+        }
+
+        // The camera transform has already been applied; just fit it to the screen.
+        GlUtil.centerCropMatrix(GlUtil.IDENTITY_MATRIX, mRecordWidth, mRecordHeight,
+                mSurfaceWidth, mSurfaceHeight, mPreviewMatrix);
+        GLES20.glViewport(0, 0, mSurfaceWidth, mSurfaceHeight);
+        mBlitScreen.drawFrame(target.getTextureId(), mPreviewMatrix);
+    }
+
+    /**
+     * Returns the framebuffer at index, which the handoff has given us to filter the next
+     * frame into, (re)creating it to match the recording size if needed.
+     */
+    private FramebufferTexture getFilterTarget(int index) {
+        if (mBlitScreen == null) {
+            mBlitScreen = new FullFrameRect(
+                    mProgramCache.get(Texture2dProgram.ProgramType.TEXTURE_2D), false);
+        }
+        FramebufferTexture target = mFilterTargets[index];
+        if (target != null && (target.getWidth() != mRecordWidth ||
+                target.getHeight() != mRecordHeight)) {
+            target.release();
+            target = null;
+        }
+        if (target == null) {
+            target = new FramebufferTexture(mRecordWidth, mRecordHeight);
+            mFilterTargets[index] = target;
+        }
+        return target;
     }
 
     /**
@@ -208,7 +415,55 @@ public class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
         Log.d(TAG, "setCameraPreviewSize");
         mIncomingWidth = width;
         mIncomingHeight = height;
-        mIncomingSizeUpdated = true;
+    }
+
+    /**
+     * Changes the filters that we're applying to the camera preview and the recording.
+     * (Call on the renderer thread, e.g. through GLSurfaceView#queueEvent().)
+     *
+     * @param filters RecordMovieController FILTER_* constants, in the order to apply them.
+     *     Each filter is applied at most once; FILTER_NONE entries are ignored.
+     */
+    public void changeFilterMode(int... filters) {
+        for (int filter : filters) {
+            if (filter < RecordMovieController.FILTER_NONE ||
+                    filter > RecordMovieController.FILTER_EMBOSS) {
+                throw new IllegalArgumentException("Unknown filter mode " + filter);
+            }
+        }
+        mFilters = filters.clone();
+        mFiltersChanged = true;
+    }
+
+    /**
+     * Saves the next frame drawn to the screen as an image file: JPEG if the name ends in
+     * .jpg or .jpeg, PNG otherwise.  The readback and compression don't hold up drawing.
+     * Can be called from any thread; the caller should make sure a frame gets drawn, e.g.
+     * with GLSurfaceView#requestRender().
+     */
+    public void captureFrame(File file) {
+        mFrameCapture.request(file);
+    }
+
+    /**
+     * Saves a run of drawn frames, starting with the next one.  Frames are read back at the
+     * display rate and compressed in parallel; if the compressors fall behind, frames are
+     * skipped rather than buffered.  Can be called from any thread.
+     *
+     * @param files Where to save each frame, in order; the names pick the format as for
+     *     captureFrame().
+     * @param listener Told about each frame, on a capture thread.
+     */
+    public void captureBurst(File[] files, FrameCapture.Listener listener) {
+        mFrameCapture.requestBurst(files, listener);
+    }
+
+    /**
+     * Stops the frame capture thread once any captures it has are written.  The renderer
+     * can't save frames after this.
+     */
+    public void release() {
+        mCaptureExecutor.shutdown();
     }
 
     /**
@@ -226,74 +481,86 @@ public class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
             mFullScreen.release(false);     // assume the GLSurfaceView EGL context is about
             mFullScreen = null;             //  to be destroyed
         }
+        if (mBlitScreen != null) {
+            mBlitScreen.release(false);
+            mBlitScreen = null;
+        }
+        for (int i = 0; i < FILTER_TARGET_COUNT; i++) {
+            mFilterTargets[i] = null;       // go away with the context
+        }
+        if (mFilterHandoff != null) {
+            mFilterHandoff.release(false);
+            mFilterHandoff = null;
+        }
+        if (mFilterChain != null) {
+            mFilterChain.release(false);
+            mFilterChain = null;
+        }
+        if (mProgramCache != null) {
+            mProgramCache.release(false);
+            mProgramCache = null;
+        }
+        mFrameCapture.release(false);
         mIncomingWidth = mIncomingHeight = -1;
     }
 
     /**
-     * Updates the filter program.
+     * Creates a chain with a pass for every filter, all disabled.  The programs aren't
+     * compiled until a pass is first used.
      */
-    public void updateFilter() {
-        Texture2dProgram.ProgramType programType;
-        float[] kernel = null;
-        float colorAdj = 0.0f;
-
-        Log.d(TAG, "Updating filter to " + mNewFilter);
-        switch (mNewFilter) {
-            case RecordMovieController.FILTER_NONE:
-                programType = Texture2dProgram.ProgramType.TEXTURE_EXT;
-                break;
-            case RecordMovieController.FILTER_BLACK_WHITE:
-                // (In a previous version the TEXTURE_EXT_BW variant was enabled by a flag called
-                // ROSE_COLORED_GLASSES, because the shader set the red channel to the B&W color
-                // and green/blue to zero.)
-                programType = Texture2dProgram.ProgramType.TEXTURE_EXT_BW;
-                break;
-            case RecordMovieController.FILTER_BLUR:
-                programType = Texture2dProgram.ProgramType.TEXTURE_EXT_FILT;
-                kernel = new float[] {
-                        1f/16f, 2f/16f, 1f/16f,
-                        2f/16f, 4f/16f, 2f/16f,
-                        1f/16f, 2f/16f, 1f/16f };
-                break;
-            case RecordMovieController.FILTER_SHARPEN:
-                programType = Texture2dProgram.ProgramType.TEXTURE_EXT_FILT;
-                kernel = new float[] {
-                        0f, -1f, 0f,
-                        -1f, 5f, -1f,
-                        0f, -1f, 0f };
-                break;
-            case RecordMovieController.FILTER_EDGE_DETECT:
-                programType = Texture2dProgram.ProgramType.TEXTURE_EXT_FILT;
-                kernel = new float[] {
-                        -1f, -1f, -1f,
-                        -1f, 8f, -1f,
-                        -1f, -1f, -1f };
-                break;
-            case RecordMovieController.FILTER_EMBOSS:
-                programType = Texture2dProgram.ProgramType.TEXTURE_EXT_FILT;
-                kernel = new float[] {
-                        2f, 0f, 0f,
-                        0f, -1f, 0f,
-                        0f, 0f, -1f };
-                colorAdj = 0.5f;
-                break;
-            default:
-                throw new RuntimeException("Unknown filter mode " + mNewFilter);
+    private void createFilterChain() {
+        mFilterChain = new FilterChain(mProgramCache);
+        mFilterPasses = new FilterPass[RecordMovieController.FILTER_EMBOSS + 1];
+
+        // (In a previous version the TEXTURE_EXT_BW variant was enabled by a flag called
+        // ROSE_COLORED_GLASSES, because the shader set the red channel to the B&W color
+        // and green/blue to zero.)
+        mFilterPasses[RecordMovieController.FILTER_BLACK_WHITE] =
+                new FilterPass(FilterPass.Effect.BLACK_WHITE);
+        FilterPass blur = new FilterPass(FilterPass.Effect.GAUSSIAN_BLUR);
+        blur.setBlurRadius(BLUR_RADIUS);
+        mFilterPasses[RecordMovieController.FILTER_BLUR] = blur;
+        mFilterPasses[RecordMovieController.FILTER_SHARPEN] = new FilterPass(new float[] {
+                0f, -1f, 0f,
+                -1f, 5f, -1f,
+                0f, -1f, 0f }, 0f);
+        mFilterPasses[RecordMovieController.FILTER_EDGE_DETECT] = new FilterPass(new float[] {
+                -1f, -1f, -1f,
+                -1f, 8f, -1f,
+                -1f, -1f, -1f }, 0f);
+        mFilterPasses[RecordMovieController.FILTER_EMBOSS] = new FilterPass(new float[] {
+                2f, 0f, 0f,
+                0f, -1f, 0f,
+                0f, 0f, -1f }, 0.5f);
+
+        for (FilterPass pass : mFilterPasses) {
+            if (pass != null) {
+                pass.setEnabled(false);
+                mFilterChain.addPass(pass);
+            }
         }
+    }
 
-        // Do we need a whole new program?  (We want to avoid doing this if we don't have
-        // too -- compiling a program could be expensive.)
-        if (programType != mFullScreen.getProgram().getProgramType()) {
-            mFullScreen.changeProgram(new Texture2dProgram(programType));
-            // If we created a new program, we need to initialize the texture width/height.
-            mIncomingSizeUpdated = true;
+    /**
+     * Enables the selected filters, in order, and disables the rest.  Nothing is
+     * recompiled; the passes get their programs from the cache.
+     */
+    public void updateFilter() {
+        Log.d(TAG, "Updating filters to " + Arrays.toString(mFilters));
+        for (FilterPass pass : mFilterPasses) {
+            if (pass != null) {
+                pass.setEnabled(false);
+            }
         }
-
-        // Update the filter kernel (if any).
-        if (kernel != null) {
-            mFullScreen.getProgram().setKernel(kernel, colorAdj);
+        int position = 0;
+        for (int filter : mFilters) {
+            FilterPass pass = mFilterPasses[filter];
+            if (pass == null || pass.isEnabled()) {
+                continue;       // FILTER_NONE, or a repeat
+            }
+            pass.setEnabled(true);
+            mFilterChain.movePass(pass, position++);
         }
-
-        mCurrentFilter = mNewFilter;
+        mFiltersChanged = false;
     }
 }
@@ -0,0 +1,50 @@
+package com.process.RecordLib;
+
+/**
+ * 录制流水线各阶段的单帧延迟统计
+ */
+public interface IRecordMetrics {
+    /**
+     * 流水线阶段，每个阶段统计相邻两个时间点之间的耗时
+     * */
+    enum Stage {
+        /** SurfaceTexture时间戳 -> onDrawFrame开始 */
+        CAMERA_TO_DRAW,
+        /** onDrawFrame开始 -> 编码线程handleFrameAvailable */
+        DRAW_TO_ENCODER,
+        /** handleFrameAvailable -> swapBuffers完成 */
+        ENCODER_TO_SWAP,
+        /** swapBuffers完成 -> 编码器输出出队 */
+        SWAP_TO_OUTPUT,
+        /** 编码器输出出队 -> 写入muxer完成 */
+        OUTPUT_TO_MUXER,
+        /** SurfaceTexture时间戳 -> 写入muxer完成 */
+        TOTAL
+    }
+
+    /**
+     * 获取某阶段延迟的百分位数
+     * @param stage 流水线阶段
+     * @param percentile 百分位，0到100，例如50、95、99
+     * @return 延迟纳秒数，没有数据时返回0
+     * */
+    long getLatencyNanos(Stage stage, double percentile);
+
+    /**
+     * 获取某阶段延迟的最大值
+     * @param stage 流水线阶段
+     * @return 延迟纳秒数
+     * */
+    long getMaxLatencyNanos(Stage stage);
+
+    /**
+     * 获取某阶段已统计的帧数
+     * @param stage 流水线阶段
+     * */
+    long getFrameCount(Stage stage);
+
+    /**
+     * 清空所有统计数据
+     * */
+    void reset();
+}
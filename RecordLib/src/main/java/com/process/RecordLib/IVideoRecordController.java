@@ -48,12 +48,43 @@ public interface IVideoRecordController {
      * */
     void stopRecordVideo();
 
+    /**
+     * 暂停录制视频，不结束文件，编码器和文件保持打开
+     * */
+    void pauseRecordVideo();
+
+    /**
+     * 继续已暂停的录制，时间戳会衔接上暂停前的画面，文件中没有空档
+     * */
+    void resumeRecordVideo();
+
+    /**
+     * 设置摄像头滤镜，预览和录制的视频使用同一个滤镜效果
+     * 可以传入多个滤镜按顺序叠加，例如先模糊再黑白，同一滤镜只生效一次
+     * @param filters 滤镜类型，取值为RecordMovieController.FILTER_*
+     * */
+    void setCameraFilter(int... filters);
+
     /**
      * 保存视频画帧为图片文件
+     * <p>
+     * 异步执行：下一帧绘制后通过像素缓冲对象读回，在后台线程压缩写入，不阻塞渲染。
+     * 文件名以.jpg或.jpeg结尾时保存为JPEG，否则为PNG。
      * @param filePath 保存文件路径
      * */
     void saveFrameFile(String filePath);
 
+    /**
+     * 连拍保存视频画帧为JPEG图片文件
+     * <p>
+     * 从下一帧开始按预览帧率连续读回，多个后台线程并行压缩。缓冲区数量固定，
+     * 写入跟不上时跳过画帧而不是占用更多内存。
+     * @param dirPath 保存目录，文件名为burst_时间戳_序号.jpg
+     * @param frameCount 连拍帧数
+     * @param listener 连拍回调，在后台线程调用，可以为null
+     * */
+    void saveBurstFrames(String dirPath, int frameCount, OnBurstCaptureListener listener);
+
     /**
      * 销毁视频录制使用的资源
      * */
@@ -65,11 +96,40 @@ public interface IVideoRecordController {
      * */
     void setOnCameraPreviewSizeChangeListener(OnCameraPreviewSizeChangeListener listener);
 
+    /**
+     * 获取录制流水线各阶段的延迟统计
+     * */
+    IRecordMetrics getRecordMetrics();
+
     /**
      * 设置显示
      * */
     void setDisplayOrientation(int orientation);
 
+    /**
+     * 连拍回调
+     * */
+    interface OnBurstCaptureListener {
+        /**
+         * 一帧保存完成时触发回调，各帧完成顺序不一定按序号
+         * @param index 帧序号，从0开始
+         * @param filePath 文件路径
+         * @param success 是否保存成功
+         * @param captureNanos 读回耗时纳秒数，包括等待空闲缓冲区的时间
+         * @param encodeNanos 压缩写入耗时纳秒数
+         * */
+        void onBurstFrameSaved(int index, String filePath, boolean success, long captureNanos,
+                long encodeNanos);
+
+        /**
+         * 所有帧处理完成时触发回调
+         * @param savedCount 保存成功的帧数
+         * @param failedCount 保存失败的帧数
+         * @param skippedFrames 因写入跟不上而跳过的预览帧数
+         * */
+        void onBurstFinished(int savedCount, int failedCount, int skippedFrames);
+    }
+
     /**
      * 摄像头画布发生Size变化监听器
      * */
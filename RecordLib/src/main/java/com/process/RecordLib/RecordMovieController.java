@@ -8,12 +8,16 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.util.Log;
+import android.view.View;
 
 import com.process.RecordLib.encoder.TextureMovieEncoder;
+import com.process.RecordLib.opengl.FrameCapture;
 import com.process.RecordLib.utils.CameraUtils;
 
 import java.io.File;
 import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Locale;
 
 /**
  * Created by kerwin on 2018/11/28
@@ -31,6 +35,10 @@ public class RecordMovieController implements
     public static final int FILTER_EDGE_DETECT = 4;
     public static final int FILTER_EMBOSS = 5;
 
+    // 没有录制参数时的摄像头预览尺寸
+    private static final int DEFAULT_CAMERA_WIDTH = 1280;
+    private static final int DEFAULT_CAMERA_HEIGHT = 720;
+
     private Camera mCamera;
     private CameraSurfaceRenderer mCameraSurfaceRenderer;
     private GLSurfaceView mGLSurfaceView;
@@ -45,6 +53,8 @@ public class RecordMovieController implements
 
     private RecordMainHandler mRecordMainHandler = null;
 
+    private RecordingProfile mRecordingProfile = null;
+
     /**
      * 暂停视频录制处理
      * */
@@ -78,6 +88,7 @@ public class RecordMovieController implements
         mCameraMovieHandler = new CameraMovieHandler(this);
         mRecordMainHandler = new RecordMainHandler(Looper.getMainLooper(), this);
         mCameraSurfaceRenderer = new CameraSurfaceRenderer(mCameraMovieHandler, mTextureMovieEncoder, file);
+        mCameraSurfaceRenderer.setRecordingProfile(mRecordingProfile);
 
         if(this.mGLSurfaceView != null) {
             this.mGLSurfaceView.setEGLContextClientVersion(2);
@@ -86,6 +97,7 @@ public class RecordMovieController implements
         if(mGLSurfaceView != null) {
             mGLSurfaceView.setRenderer(mCameraSurfaceRenderer);
             mGLSurfaceView.setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
+            applyPreviewScale();
         }
 
         Log.d(TAG, "initialize complete: " + this);
@@ -98,7 +110,14 @@ public class RecordMovieController implements
 
         if (mCamera == null) {
             // updates mCameraPreviewWidth/Height
-            openCamera(1280, 720);
+            if(mRecordingProfile == null) {
+                openCamera(DEFAULT_CAMERA_WIDTH, DEFAULT_CAMERA_HEIGHT);
+            } else {
+                // 摄像头预览尺寸总是横向的，录制画面的旋转由纹理变换处理
+                int width = mRecordingProfile.getWidth();
+                int height = mRecordingProfile.getHeight();
+                openCamera(Math.max(width, height), Math.min(width, height));
+            }
         }
     }
 
@@ -124,6 +143,12 @@ public class RecordMovieController implements
         } else {
             mCameraMovieHandler.invalidateHandler();
         }
+
+        // Finishes any recording in progress, and frees the prewarmed encoder.
+        mTextureMovieEncoder.release();
+        if(mCameraSurfaceRenderer != null) {
+            mCameraSurfaceRenderer.release();
+        }
     }
 
     @Override
@@ -154,6 +179,9 @@ public class RecordMovieController implements
 
         Camera.Parameters parameters = mCamera.getParameters();
         CameraUtils.choosePreviewSize(parameters, mCameraPreviewWidth, mCameraPreviewHeight);
+        if(mRecordingProfile != null) {
+            CameraUtils.chooseFixedPreviewFps(parameters, mRecordingProfile.getFrameRate() * 1000);
+        }
         parameters.setRecordingHint(true);
 
         mCamera.setParameters(parameters);
@@ -189,9 +217,81 @@ public class RecordMovieController implements
         }
     }
 
+    @Override
+    public void pauseRecordVideo() {
+        if(mCameraSurfaceRenderer == null) {
+            Log.w(TAG, "pauseRecordVideo() camera surface renderer not is null.");
+        } else {
+            Log.d(TAG, "pause record video");
+            mCameraSurfaceRenderer.setRecordingPaused(true);
+        }
+    }
+
+    @Override
+    public void resumeRecordVideo() {
+        if(mCameraSurfaceRenderer == null) {
+            Log.w(TAG, "resumeRecordVideo() camera surface renderer not is null.");
+        } else {
+            Log.d(TAG, "resume record video");
+            mCameraSurfaceRenderer.setRecordingPaused(false);
+        }
+    }
+
+    @Override
+    public void setCameraFilter(int... filters) {
+        for (int filter : filters) {
+            if(filter < FILTER_NONE || filter > FILTER_EMBOSS) {
+                throw new IllegalArgumentException("unknown filter " + filter);
+            }
+        }
+        if(mGLSurfaceView == null || mCameraSurfaceRenderer == null) {
+            Log.w(TAG, "setCameraFilter() surface view not is null.");
+            return;
+        }
+        final int[] filterList = filters.clone();
+        Log.d(TAG, "set camera filter > " + Arrays.toString(filterList));
+        mGLSurfaceView.queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                // runs on the renderer thread, between frames
+                mCameraSurfaceRenderer.changeFilterMode(filterList);
+            }
+        });
+    }
+
     @Override
     public void saveFrameFile(String filePath) {
         Log.d(TAG, "save frame file file path > " + filePath);
+        if(mGLSurfaceView == null || mCameraSurfaceRenderer == null) {
+            Log.w(TAG, "saveFrameFile() renderer not set up.");
+            return;
+        }
+
+        // The renderer reads the next frame back and writes the file on a thread of its
+        // own, so this returns right away.
+        mCameraSurfaceRenderer.captureFrame(new File(filePath));
+        mGLSurfaceView.requestRender();
+    }
+
+    @Override
+    public void saveBurstFrames(String dirPath, int frameCount, OnBurstCaptureListener listener) {
+        if(frameCount <= 0) {
+            throw new IllegalArgumentException("bad frame count " + frameCount);
+        }
+        if(mGLSurfaceView == null || mCameraSurfaceRenderer == null) {
+            Log.w(TAG, "saveBurstFrames() renderer not set up.");
+            return;
+        }
+
+        File dir = new File(dirPath);
+        long burstTime = System.currentTimeMillis();
+        File[] files = new File[frameCount];
+        for (int i = 0; i < frameCount; i++) {
+            files[i] = new File(dir, String.format(Locale.US, "burst_%d_%03d.jpg", burstTime, i));
+        }
+        Log.d(TAG, "save burst frames > " + frameCount + " to " + dirPath);
+        mCameraSurfaceRenderer.captureBurst(files, new BurstCaptureListener(frameCount, listener));
+        mGLSurfaceView.requestRender();
     }
 
     @Override
@@ -204,6 +304,11 @@ public class RecordMovieController implements
         }
     }
 
+    @Override
+    public IRecordMetrics getRecordMetrics() {
+        return mTextureMovieEncoder.getMetrics();
+    }
+
     @Override
     public void setOnCameraPreviewSizeChangeListener(OnCameraPreviewSizeChangeListener listener) {
         mWeakOnCameraPreviewSizeChangeListener = new WeakReference<OnCameraPreviewSizeChangeListener>(listener);
@@ -288,6 +393,46 @@ public class RecordMovieController implements
         mCamera.startPreview();
     }
 
+    /**
+     * 设置录制参数，需要在initialize之前调用
+     * @param profile 录制参数，为null时录制分辨率跟随预览控件大小
+     * */
+    private void setRecordingProfile(RecordingProfile profile) {
+        this.mRecordingProfile = profile;
+    }
+
+    /**
+     * 按录制参数的预览比例缩小渲染表层的缓冲区，由系统合成时放大到控件大小
+     * */
+    private void applyPreviewScale() {
+        if(mRecordingProfile == null || mRecordingProfile.getPreviewScale() >= 1f) {
+            return;
+        }
+
+        final float scale = mRecordingProfile.getPreviewScale();
+        mGLSurfaceView.addOnLayoutChangeListener(new View.OnLayoutChangeListener() {
+            @Override
+            public void onLayoutChange(View v, int left, int top, int right, int bottom,
+                    int oldLeft, int oldTop, int oldRight, int oldBottom) {
+                if(right - left != oldRight - oldLeft || bottom - top != oldBottom - oldTop) {
+                    setPreviewFixedSize(right - left, bottom - top, scale);
+                }
+            }
+        });
+        if(mGLSurfaceView.getWidth() > 0 && mGLSurfaceView.getHeight() > 0) {
+            setPreviewFixedSize(mGLSurfaceView.getWidth(), mGLSurfaceView.getHeight(), scale);
+        }
+    }
+
+    private void setPreviewFixedSize(int viewWidth, int viewHeight, float scale) {
+        // 保持偶数，避免缩放时边缘出现半个像素
+        int width = Math.max(2, (int) (viewWidth * scale) & ~1);
+        int height = Math.max(2, (int) (viewHeight * scale) & ~1);
+        Log.d(TAG, "preview surface " + width + "x" + height + " for view " +
+                viewWidth + "x" + viewHeight);
+        mGLSurfaceView.getHolder().setFixedSize(width, height);
+    }
+
     /**
      * 设置渲染表层组件实体
      * @param surfaceView 渲染表层组件实体
@@ -394,8 +539,59 @@ public class RecordMovieController implements
         }
     }
 
+    /**
+     * 连拍回调转换，统计成功、失败和跳过的帧数
+     * */
+    private static class BurstCaptureListener implements FrameCapture.Listener {
+        private final int mFrameCount;
+        private final OnBurstCaptureListener mListener;
+        private int mDoneCount;
+        private int mFailedCount;
+        private int mStartedCount;
+        private long mFirstFrame = Long.MAX_VALUE;
+        private long mLastFrame = Long.MIN_VALUE;
+
+        BurstCaptureListener(int frameCount, OnBurstCaptureListener listener) {
+            mFrameCount = frameCount;
+            mListener = listener;
+        }
+
+        @Override
+        public void onFrameCaptured(FrameCapture.Capture capture) {
+            // 多个压缩线程同时回调
+            boolean finished;
+            int skipped = 0;
+            synchronized (this) {
+                mDoneCount++;
+                long frame = capture.getFrameNumber();
+                if(frame >= 0) {
+                    mStartedCount++;
+                    mFirstFrame = Math.min(mFirstFrame, frame);
+                    mLastFrame = Math.max(mLastFrame, frame);
+                }
+                if(!capture.isSuccess()) {
+                    mFailedCount++;
+                }
+                finished = mDoneCount == mFrameCount;
+                if(finished && mStartedCount > 0) {
+                    // 首尾两帧之间没有读回的帧即为跳过的帧
+                    skipped = (int) (mLastFrame - mFirstFrame + 1) - mStartedCount;
+                }
+            }
+            if(mListener == null) {
+                return;
+            }
+            mListener.onBurstFrameSaved(capture.getIndex(), capture.getFile().getPath(),
+                    capture.isSuccess(), capture.getCaptureNanos(), capture.getEncodeNanos());
+            if(finished) {
+                mListener.onBurstFinished(mFrameCount - mFailedCount, mFailedCount, skipped);
+            }
+        }
+    }
+
     public static class Builder {
         private GLSurfaceView mSurfaceView = null;
+        private RecordingProfile mRecordingProfile = null;
 
         /**
          * 设置表层View对象实体
@@ -406,12 +602,23 @@ public class RecordMovieController implements
             return this;
         }
 
+        /**
+         * 设置录制参数，包括编码格式、分辨率、帧率、码率控制、关键帧间隔和缓冲区大小，
+         * 录制分辨率与预览控件大小无关，摄像头按录制分辨率打开
+         * @param profile 录制参数，不设置时录制分辨率跟随预览控件大小，码率1Mbps、30帧
+         * */
+        public Builder setRecordingProfile(RecordingProfile profile) {
+            this.mRecordingProfile = profile;
+            return this;
+        }
+
         /**
          * 构建视频录制控制器实体
          * */
         public IVideoRecordController builder() {
             RecordMovieController controller = new RecordMovieController();
             controller.setGLSurfaceView(this.mSurfaceView);
+            controller.setRecordingProfile(this.mRecordingProfile);
             return controller;
         }
     }
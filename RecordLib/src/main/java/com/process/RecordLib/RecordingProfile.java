@@ -0,0 +1,478 @@
+package com.process.RecordLib;
+
+import android.media.MediaCodecInfo;
+
+/**
+ * 录制参数：编码格式、录制分辨率、帧率、码率控制、关键帧间隔、编码档次级别、
+ * 缓冲区大小、自适应码率范围，以及预览渲染比例
+ * <p>
+ * 录制分辨率与预览控件大小无关。摄像头画面在GPU上居中裁剪、缩放到录制分辨率，
+ * 预览画面同样居中裁剪到控件大小，两者都不拉伸。
+ * 对象不可变，可以在线程之间传递，通过{@link Builder}创建，创建时检查参数。
+ * 常用场景可以从{@link #lowLatency}、{@link #archive}、{@link #lowPower}预设开始再调整。
+ */
+public class RecordingProfile {
+    /** H.264编码 */
+    public static final String MIME_AVC = "video/avc";
+    /** H.265编码，不支持分片MP4输出 */
+    public static final String MIME_HEVC = "video/hevc";
+
+    /** 默认码率 */
+    public static final int DEFAULT_BIT_RATE = 1000000;
+    /** 默认帧率 */
+    public static final int DEFAULT_FRAME_RATE = 30;
+    /** 默认关键帧间隔，单位秒 */
+    public static final int DEFAULT_KEY_FRAME_INTERVAL = 5;
+    /** 默认编码线程等待队列帧数 */
+    public static final int DEFAULT_FRAME_QUEUE_SIZE = 8;
+    /** 不指定编码档次或级别，由编码器决定 */
+    public static final int CODEC_DEFAULT = -1;
+
+    /** 录制分辨率最大边长 */
+    public static final int MAX_SIZE = 4096;
+    /** 最大帧率 */
+    public static final int MAX_FRAME_RATE = 240;
+
+    /**
+     * 码率控制模式
+     * */
+    public enum BitrateMode {
+        /** 恒定码率，码率稳定，适合实时传输 */
+        CBR(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR),
+        /** 可变码率，复杂画面分配更多码率 */
+        VBR(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR),
+        /** 恒定质量，不控制码率，需要设置质量参数 */
+        CQ(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ);
+
+        private final int mCodecValue;
+
+        BitrateMode(int codecValue) {
+            mCodecValue = codecValue;
+        }
+
+        /**
+         * 获取MediaFormat.KEY_BITRATE_MODE对应的取值
+         * */
+        public int getCodecValue() {
+            return mCodecValue;
+        }
+    }
+
+    private final String mMimeType;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFrameRate;
+    private final BitrateMode mBitrateMode;
+    private final int mBitRate;
+    private final int mQuality;
+    private final int mKeyFrameInterval;
+    private final int mCodecProfile;
+    private final int mCodecLevel;
+    private final int mFrameQueueSize;
+    private final int mMuxerQueueSize;
+    private final int mMinBitRate;
+    private final int mMaxBitRate;
+    private final float mPreviewScale;
+
+    private RecordingProfile(Builder builder) {
+        mMimeType = builder.mMimeType;
+        mWidth = builder.mWidth;
+        mHeight = builder.mHeight;
+        mFrameRate = builder.mFrameRate;
+        mBitrateMode = builder.mBitrateMode;
+        mBitRate = builder.mBitRate;
+        mQuality = builder.mQuality;
+        mKeyFrameInterval = builder.mKeyFrameInterval;
+        mCodecProfile = builder.mCodecProfile;
+        mCodecLevel = builder.mCodecLevel;
+        mFrameQueueSize = builder.mFrameQueueSize;
+        mMuxerQueueSize = builder.mMuxerQueueSize;
+        mMinBitRate = builder.mMinBitRate;
+        mMaxBitRate = builder.mMaxBitRate;
+        mPreviewScale = builder.mPreviewScale;
+    }
+
+    /**
+     * 低延迟预设：恒定码率，每秒一个关键帧，Baseline档次不使用B帧，
+     * 编码跟不上时只编码最新的画帧，写文件放在独立线程，存储变慢时码率最低降到四分之一
+     * @param width 录制视频宽度
+     * @param height 录制视频高度
+     * */
+    public static Builder lowLatency(int width, int height) {
+        int bitRate = estimateBitRate(width, height, DEFAULT_FRAME_RATE, 0.1f);
+        return new Builder(width, height)
+                .setBitrateMode(BitrateMode.CBR)
+                .setBitRate(bitRate)
+                .setAdaptiveBitrate(bitRate / 4, bitRate)
+                .setKeyFrameInterval(1)
+                .setCodecProfile(MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline,
+                        CODEC_DEFAULT)
+                .setFrameQueueSize(2)
+                .setMuxerQueueSize(DEFAULT_FRAME_RATE);
+    }
+
+    /**
+     * 存档预设：可变码率、较高码率，High档次，较大的缓冲区以吸收存储的短暂卡顿，
+     * 存储持续变慢时码率最低降到一半
+     * @param width 录制视频宽度
+     * @param height 录制视频高度
+     * */
+    public static Builder archive(int width, int height) {
+        int bitRate = estimateBitRate(width, height, DEFAULT_FRAME_RATE, 0.2f);
+        return new Builder(width, height)
+                .setBitrateMode(BitrateMode.VBR)
+                .setBitRate(bitRate)
+                .setAdaptiveBitrate(bitRate / 2, bitRate)
+                .setKeyFrameInterval(2)
+                .setCodecProfile(MediaCodecInfo.CodecProfileLevel.AVCProfileHigh,
+                        CODEC_DEFAULT)
+                .setFrameQueueSize(DEFAULT_FRAME_QUEUE_SIZE)
+                .setMuxerQueueSize(DEFAULT_FRAME_RATE * 4);
+    }
+
+    /**
+     * 低功耗预设：24帧、较低码率、较长关键帧间隔，预览按四分之三分辨率渲染
+     * @param width 录制视频宽度
+     * @param height 录制视频高度
+     * */
+    public static Builder lowPower(int width, int height) {
+        return new Builder(width, height)
+                .setFrameRate(24)
+                .setBitrateMode(BitrateMode.VBR)
+                .setBitRate(estimateBitRate(width, height, 24, 0.08f))
+                .setKeyFrameInterval(DEFAULT_KEY_FRAME_INTERVAL)
+                .setFrameQueueSize(4)
+                .setPreviewScale(0.75f);
+    }
+
+    /**
+     * 按每像素比特数估算码率
+     * */
+    private static int estimateBitRate(int width, int height, int frameRate,
+            float bitsPerPixel) {
+        long bitRate = (long) (width * (long) height * frameRate * bitsPerPixel);
+        return (int) Math.max(100000, Math.min(bitRate, Integer.MAX_VALUE));
+    }
+
+    /**
+     * 获取编码格式，MIME_AVC或MIME_HEVC
+     * */
+    public String getMimeType() {
+        return mMimeType;
+    }
+
+    /**
+     * 获取录制视频宽度
+     * */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * 获取录制视频高度
+     * */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * 获取帧率
+     * */
+    public int getFrameRate() {
+        return mFrameRate;
+    }
+
+    /**
+     * 获取码率控制模式
+     * */
+    public BitrateMode getBitrateMode() {
+        return mBitrateMode;
+    }
+
+    /**
+     * 获取码率，单位bit/s，恒定质量模式下不使用
+     * */
+    public int getBitRate() {
+        return mBitRate;
+    }
+
+    /**
+     * 获取恒定质量模式的质量参数，未设置时为CODEC_DEFAULT
+     * */
+    public int getQuality() {
+        return mQuality;
+    }
+
+    /**
+     * 获取关键帧间隔，单位秒，0表示每帧都是关键帧
+     * */
+    public int getKeyFrameInterval() {
+        return mKeyFrameInterval;
+    }
+
+    /**
+     * 获取编码档次，MediaCodecInfo.CodecProfileLevel取值或CODEC_DEFAULT
+     * */
+    public int getCodecProfile() {
+        return mCodecProfile;
+    }
+
+    /**
+     * 获取编码级别，MediaCodecInfo.CodecProfileLevel取值或CODEC_DEFAULT
+     * */
+    public int getCodecLevel() {
+        return mCodecLevel;
+    }
+
+    /**
+     * 获取编码线程等待队列的帧数
+     * */
+    public int getFrameQueueSize() {
+        return mFrameQueueSize;
+    }
+
+    /**
+     * 获取写文件队列的帧数，0表示在编码线程直接写文件
+     * */
+    public int getMuxerQueueSize() {
+        return mMuxerQueueSize;
+    }
+
+    /**
+     * 是否根据存储写入情况自动调整码率
+     * */
+    public boolean isAdaptiveBitrate() {
+        return mMaxBitRate > 0;
+    }
+
+    /**
+     * 获取自适应码率下限，未开启时为0
+     * */
+    public int getMinBitRate() {
+        return mMinBitRate;
+    }
+
+    /**
+     * 获取自适应码率上限，未开启时为0
+     * */
+    public int getMaxBitRate() {
+        return mMaxBitRate;
+    }
+
+    /**
+     * 获取预览渲染比例，1表示按控件原始大小渲染
+     * */
+    public float getPreviewScale() {
+        return mPreviewScale;
+    }
+
+    @Override
+    public String toString() {
+        return "RecordingProfile: " + mMimeType + " " + mWidth + "x" + mHeight + " " +
+                mFrameRate + "fps " + mBitrateMode +
+                (mBitrateMode == BitrateMode.CQ ? " quality=" + mQuality : " @" + mBitRate) +
+                " gop=" + mKeyFrameInterval + "s" +
+                (mCodecProfile != CODEC_DEFAULT ?
+                        " profile=" + mCodecProfile + "/" + mCodecLevel : "") +
+                " queues=" + mFrameQueueSize + "/" + mMuxerQueueSize +
+                (isAdaptiveBitrate() ? " adaptive=" + mMinBitRate + "-" + mMaxBitRate : "") +
+                " preview x" + mPreviewScale;
+    }
+
+    /**
+     * 录制参数构建器
+     * */
+    public static class Builder {
+        private String mMimeType = MIME_AVC;
+        private final int mWidth;
+        private final int mHeight;
+        private int mFrameRate = DEFAULT_FRAME_RATE;
+        private BitrateMode mBitrateMode = BitrateMode.VBR;
+        private int mBitRate = DEFAULT_BIT_RATE;
+        private int mQuality = CODEC_DEFAULT;
+        private int mKeyFrameInterval = DEFAULT_KEY_FRAME_INTERVAL;
+        private int mCodecProfile = CODEC_DEFAULT;
+        private int mCodecLevel = CODEC_DEFAULT;
+        private int mFrameQueueSize = DEFAULT_FRAME_QUEUE_SIZE;
+        private int mMuxerQueueSize = 0;
+        private int mMinBitRate = 0;
+        private int mMaxBitRate = 0;
+        private float mPreviewScale = 1f;
+
+        /**
+         * @param width 录制视频宽度，必须为偶数
+         * @param height 录制视频高度，必须为偶数
+         * */
+        public Builder(int width, int height) {
+            mWidth = width;
+            mHeight = height;
+        }
+
+        /**
+         * 设置编码格式，默认为MIME_AVC。更换编码格式时已设置的编码档次和级别会被清除
+         * @param mimeType MIME_AVC或MIME_HEVC
+         * */
+        public Builder setMimeType(String mimeType) {
+            if (!mimeType.equals(mMimeType)) {
+                mCodecProfile = mCodecLevel = CODEC_DEFAULT;
+            }
+            mMimeType = mimeType;
+            return this;
+        }
+
+        /**
+         * 设置帧率，默认为{@link #DEFAULT_FRAME_RATE}，同时用于选择摄像头预览帧率
+         * @param frameRate 帧率
+         * */
+        public Builder setFrameRate(int frameRate) {
+            mFrameRate = frameRate;
+            return this;
+        }
+
+        /**
+         * 设置码率控制模式，默认为VBR。编码器不支持时使用编码器默认模式
+         * @param mode 码率控制模式
+         * */
+        public Builder setBitrateMode(BitrateMode mode) {
+            mBitrateMode = mode;
+            return this;
+        }
+
+        /**
+         * 设置码率，默认为{@link #DEFAULT_BIT_RATE}。开启了自适应码率时需在其范围之内
+         * @param bitRate 码率，单位bit/s
+         * */
+        public Builder setBitRate(int bitRate) {
+            mBitRate = bitRate;
+            return this;
+        }
+
+        /**
+         * 设置恒定质量模式的质量参数，取值范围由编码器决定，Android 9及以上生效
+         * @param quality 质量参数
+         * */
+        public Builder setQuality(int quality) {
+            mQuality = quality;
+            return this;
+        }
+
+        /**
+         * 设置关键帧间隔，默认为{@link #DEFAULT_KEY_FRAME_INTERVAL}秒
+         * @param seconds 间隔秒数，0表示每帧都是关键帧
+         * */
+        public Builder setKeyFrameInterval(int seconds) {
+            mKeyFrameInterval = seconds;
+            return this;
+        }
+
+        /**
+         * 设置编码档次和级别，取值需与编码格式对应，级别需要Android 6.0及以上
+         * @param profile MediaCodecInfo.CodecProfileLevel档次或CODEC_DEFAULT
+         * @param level MediaCodecInfo.CodecProfileLevel级别或CODEC_DEFAULT
+         * */
+        public Builder setCodecProfile(int profile, int level) {
+            mCodecProfile = profile;
+            mCodecLevel = level;
+            return this;
+        }
+
+        /**
+         * 设置编码线程等待队列的帧数，队列满时跳过较早的画帧
+         * @param frames 帧数，须为2的幂，默认为{@link #DEFAULT_FRAME_QUEUE_SIZE}
+         * */
+        public Builder setFrameQueueSize(int frames) {
+            mFrameQueueSize = frames;
+            return this;
+        }
+
+        /**
+         * 设置写文件队列的帧数，大于0时在独立线程写文件，存储卡顿不阻塞编码
+         * @param frames 帧数，默认为0
+         * */
+        public Builder setMuxerQueueSize(int frames) {
+            mMuxerQueueSize = frames;
+            return this;
+        }
+
+        /**
+         * 设置自适应码率范围。录制时写文件队列变满或写入变慢则降低码率，恢复后逐步升回，
+         * 存储变慢时降低画质而不是丢帧。起始码率为setBitRate设置的值，需在范围之内。
+         * 两者都为0（默认）时码率固定，恒定质量模式下不可用
+         * @param minBitRate 码率下限，单位bit/s
+         * @param maxBitRate 码率上限，单位bit/s
+         * */
+        public Builder setAdaptiveBitrate(int minBitRate, int maxBitRate) {
+            mMinBitRate = minBitRate;
+            mMaxBitRate = maxBitRate;
+            return this;
+        }
+
+        /**
+         * 设置预览渲染比例，小于1时预览按较低分辨率渲染后由系统放大显示，
+         * 可以节省GPU填充率，不影响录制分辨率
+         * @param scale 渲染比例，大于0且不大于1
+         * */
+        public Builder setPreviewScale(float scale) {
+            mPreviewScale = scale;
+            return this;
+        }
+
+        /**
+         * 检查参数并构建录制参数实体
+         * @throws IllegalArgumentException 参数无效或相互冲突
+         * */
+        public RecordingProfile build() {
+            if (!MIME_AVC.equals(mMimeType) && !MIME_HEVC.equals(mMimeType)) {
+                throw new IllegalArgumentException("unsupported mime type " + mMimeType);
+            }
+            if (mWidth <= 0 || mHeight <= 0 || mWidth > MAX_SIZE || mHeight > MAX_SIZE ||
+                    mWidth % 2 != 0 || mHeight % 2 != 0) {
+                throw new IllegalArgumentException("bad size " + mWidth + "x" + mHeight);
+            }
+            if (mFrameRate <= 0 || mFrameRate > MAX_FRAME_RATE) {
+                throw new IllegalArgumentException("bad frame rate " + mFrameRate);
+            }
+            if (mBitrateMode == null) {
+                throw new IllegalArgumentException("no bit rate mode");
+            }
+            if (mBitRate <= 0) {
+                // CQ模式下编码器忽略码率，但MediaFormat仍然需要一个有效值
+                throw new IllegalArgumentException("bad bit rate " + mBitRate);
+            }
+            if (mBitrateMode == BitrateMode.CQ && mQuality < 0) {
+                throw new IllegalArgumentException("CQ mode needs a quality");
+            }
+            if (mBitrateMode != BitrateMode.CQ && mQuality != CODEC_DEFAULT) {
+                throw new IllegalArgumentException("quality only applies to CQ mode");
+            }
+            if (mKeyFrameInterval < 0) {
+                throw new IllegalArgumentException("bad key frame interval " +
+                        mKeyFrameInterval);
+            }
+            if (mCodecLevel != CODEC_DEFAULT && mCodecProfile == CODEC_DEFAULT) {
+                throw new IllegalArgumentException("level " + mCodecLevel + " without profile");
+            }
+            if (mFrameQueueSize < 1 || (mFrameQueueSize & (mFrameQueueSize - 1)) != 0) {
+                // 队列按2的幂取模定位槽位
+                throw new IllegalArgumentException("frame queue size must be a power of 2: " +
+                        mFrameQueueSize);
+            }
+            if (mMuxerQueueSize < 0) {
+                throw new IllegalArgumentException("bad muxer queue size " + mMuxerQueueSize);
+            }
+            if (mMinBitRate != 0 || mMaxBitRate != 0) {
+                if (mMinBitRate <= 0 || mMinBitRate > mBitRate || mBitRate > mMaxBitRate) {
+                    throw new IllegalArgumentException("bit rate " + mBitRate +
+                            " outside adaptive bounds " + mMinBitRate + "-" + mMaxBitRate);
+                }
+                if (mBitrateMode == BitrateMode.CQ) {
+                    throw new IllegalArgumentException("no adaptive bit rate in CQ mode");
+                }
+            }
+            if (!(mPreviewScale > 0f && mPreviewScale <= 1f)) {
+                throw new IllegalArgumentException("bad preview scale " + mPreviewScale);
+            }
+            return new RecordingProfile(this);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.process.RecordLib.encoder;
+
+/**
+ * Decides the encoder bit rate from how well the output side is keeping up.  Pure Java, with
+ * the time passed in, so the same inputs always give the same decisions.
+ * <p>
+ * Three signals feed it:
+ * <ul>
+ * <li>the size of each encoded frame, for the rate the codec is actually producing;
+ * <li>the depth of the writer queue, if there is one (see {@link QueuedMuxer});
+ * <li>how long each storage write took.  Without a queue that's measured around the muxer
+ *     call on the encoder's output thread; with one, the queue's writer thread reports it,
+ *     so a disk that slows down shows up before the queue starts to fill.
+ * </ul>
+ * Every {@link #UPDATE_INTERVAL_NANOS}, update() looks at what came in since last time, and
+ * only that: one slow write affects one decision.  If the queue is filling or writes took
+ * longer than a frame interval on average, storage is falling behind and the rate is cut by
+ * a quarter.  After the output side has been comfortably idle for
+ * {@link #INCREASE_HOLD_NANOS}, the rate goes back up a small step, as long as the codec is
+ * actually using most of what it has.  This is additive-increase / multiplicative-decrease,
+ * so it backs off fast and recovers cautiously.  The rate stays within the bounds given at
+ * construction.
+ * <p>
+ * The on*() methods may be called from any thread; update() from one thread at a time.
+ */
+public class BitrateController {
+    /** How often update() reconsiders the rate. */
+    public static final long UPDATE_INTERVAL_NANOS = 500000000L;
+    /** How long things must look healthy before each increase. */
+    public static final long INCREASE_HOLD_NANOS = 3000000000L;
+
+    // Cut to this fraction of the current rate when congested.
+    private static final double DECREASE_FACTOR = 0.75;
+    // Raise by this fraction of the maximum when healthy.
+    private static final double INCREASE_STEP = 0.05;
+    // Queue fill fractions: at or above HIGH is congested, at or below LOW is healthy.
+    private static final double QUEUE_HIGH = 0.5;
+    private static final double QUEUE_LOW = 0.2;
+    // Only raise the rate if the codec produced at least this fraction of it.
+    private static final double MIN_UTILIZATION = 0.5;
+
+    private final int mMinBitRate;
+    private final int mMaxBitRate;
+    private final long mWriteBudgetNanos;
+    private int mBitRate;
+
+    // Collected since the last update.
+    private long mWindowBytes;
+    private double mMaxQueueFill;
+    private long mWindowWriteNanos;
+    private int mWindowWriteCount;
+
+    private long mLastUpdateNanos = -1;
+    private long mHealthySinceNanos;
+
+    private int mDecreaseCount;
+    private int mIncreaseCount;
+    private long mLastEncodedBitRate;
+    private long mLastWriteNanos = -1;                  // mean over the last window, if any
+
+    /**
+     * @param minBitRate Lowest rate to go to, in bits per second.
+     * @param maxBitRate Highest rate to go to.
+     * @param initialBitRate Rate the codec was configured with.
+     * @param frameIntervalNanos Time between frames.  A write that takes longer than this
+     *     means storage can't keep up with the frame rate.
+     */
+    public BitrateController(int minBitRate, int maxBitRate, int initialBitRate,
+            long frameIntervalNanos) {
+        if (minBitRate <= 0 || minBitRate > maxBitRate || initialBitRate < minBitRate ||
+                initialBitRate > maxBitRate) {
+            throw new IllegalArgumentException("bad bit rates " + minBitRate + " <= " +
+                    initialBitRate + " <= " + maxBitRate);
+        }
+        if (frameIntervalNanos <= 0) {
+            throw new IllegalArgumentException("bad frame interval " + frameIntervalNanos);
+        }
+        mMinBitRate = minBitRate;
+        mMaxBitRate = maxBitRate;
+        mBitRate = initialBitRate;
+        mWriteBudgetNanos = frameIntervalNanos;
+    }
+
+    /**
+     * Reports an encoded frame of the given size.
+     */
+    public synchronized void onFrameEncoded(int sizeBytes) {
+        mWindowBytes += sizeBytes;
+    }
+
+    /**
+     * Reports how long writing a sample to storage took.
+     */
+    public synchronized void onSampleWritten(long writeNanos) {
+        mWindowWriteNanos += writeNanos;
+        mWindowWriteCount++;
+    }
+
+    /**
+     * Reports the writer queue's current depth.  Only the deepest since the last update
+     * counts.
+     */
+    public synchronized void onQueueDepth(int depth, int capacity) {
+        if (capacity > 0) {
+            mMaxQueueFill = Math.max(mMaxQueueFill, (double) depth / capacity);
+        }
+    }
+
+    /**
+     * Reconsiders the rate, if an update interval has passed since the last time.
+     *
+     * @param nowNanos Current time, on any clock that only goes forward.
+     * @return True if getBitRate() changed.
+     */
+    public synchronized boolean update(long nowNanos) {
+        if (mLastUpdateNanos < 0) {
+            mLastUpdateNanos = mHealthySinceNanos = nowNanos;
+            resetWindow();
+            return false;
+        }
+        long elapsed = nowNanos - mLastUpdateNanos;
+        if (elapsed < UPDATE_INTERVAL_NANOS) {
+            return false;
+        }
+        mLastEncodedBitRate = mWindowBytes * 8 * 1000000000L / elapsed;
+
+        // No finished writes says nothing either way; one may be stuck in storage.
+        long writeNanos = mWindowWriteCount == 0 ? -1 : mWindowWriteNanos / mWindowWriteCount;
+        mLastWriteNanos = writeNanos;
+        boolean congested = mMaxQueueFill >= QUEUE_HIGH || writeNanos > mWriteBudgetNanos;
+        boolean healthy = mMaxQueueFill <= QUEUE_LOW && writeNanos >= 0 &&
+                writeNanos <= mWriteBudgetNanos / 2;
+        int newBitRate = mBitRate;
+        if (congested) {
+            newBitRate = Math.max(mMinBitRate, (int) (mBitRate * DECREASE_FACTOR));
+            mHealthySinceNanos = nowNanos;
+        } else if (!healthy) {
+            mHealthySinceNanos = nowNanos;
+        } else if (nowNanos - mHealthySinceNanos >= INCREASE_HOLD_NANOS &&
+                mLastEncodedBitRate >= mBitRate * MIN_UTILIZATION) {
+            newBitRate = Math.min(mMaxBitRate, mBitRate + (int) (mMaxBitRate * INCREASE_STEP));
+            mHealthySinceNanos = nowNanos;              // one step per hold period
+        }
+
+        mLastUpdateNanos = nowNanos;
+        resetWindow();
+        if (newBitRate == mBitRate) {
+            return false;
+        }
+        if (newBitRate < mBitRate) {
+            mDecreaseCount++;
+        } else {
+            mIncreaseCount++;
+        }
+        mBitRate = newBitRate;
+        return true;
+    }
+
+    private void resetWindow() {
+        mWindowBytes = 0;
+        mMaxQueueFill = 0;
+        mWindowWriteNanos = 0;
+        mWindowWriteCount = 0;
+    }
+
+    /**
+     * Returns the rate the codec should be using.
+     */
+    public synchronized int getBitRate() {
+        return mBitRate;
+    }
+
+    /**
+     * Returns the rate the codec actually produced over the last update interval.
+     */
+    public synchronized long getEncodedBitRate() {
+        return mLastEncodedBitRate;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BitrateController: " + mBitRate + " in [" + mMinBitRate + ", " + mMaxBitRate +
+                "], encoded " + mLastEncodedBitRate + ", write " + mLastWriteNanos / 1000 +
+                "us, " + mDecreaseCount + " down / " + mIncreaseCount + " up";
+    }
+}
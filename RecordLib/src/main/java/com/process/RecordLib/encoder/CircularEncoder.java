@@ -21,6 +21,7 @@ import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.util.Log;
@@ -47,8 +48,10 @@ import java.nio.ByteBuffer;
  * the head of the list and the next sync frame, or have the file save function know that
  * it needs to scan forward for a sync frame before it can start saving data.
  * <p>
- * When we're told to save a snapshot, we create a MediaMuxer, write all the frames out,
- * and then go back to what we were doing.
+ * When we're told to save a snapshot, we pin the packets we want in the circular buffer and
+ * hand them to a separate save thread, which creates a MediaMuxer and writes them out.  The
+ * encoder thread goes straight back to draining the encoder.  While the pin is held the
+ * buffer can't recycle those packets, so if it fills up, new packets are dropped instead.
  */
 public class CircularEncoder {
     private static final String TAG = "CircularEncoder";
@@ -67,7 +70,8 @@ public class CircularEncoder {
     public interface Callback {
         /**
          * Called some time after saveVideo(), when all data has been written to the
-         * output file.
+         * output file.  Called on the save thread (or the encoder thread, if the save
+         * couldn't be started).
          *
          * @param status Zero means success, nonzero indicates failure.
          */
@@ -92,6 +96,22 @@ public class CircularEncoder {
      */
     public CircularEncoder(int width, int height, int bitRate, int frameRate, int desiredSpanSec,
                            Callback cb) throws IOException {
+        this(width, height, bitRate, frameRate, desiredSpanSec, false, cb);
+    }
+
+    /**
+     * Configures encoder, and prepares the input Surface.
+     *
+     * @param width          Width of encoded video, in pixels.  Should be a multiple of 16.
+     * @param height         Height of encoded video, in pixels.  Usually a multiple of 16 (1080 is ok).
+     * @param bitRate        Target bit rate, in bits.
+     * @param frameRate      Expected frame rate.
+     * @param desiredSpanSec How many seconds of video we want to have in our buffer at any time.
+     * @param directStorage  Keep the buffered video off-heap, in a direct ByteBuffer.  Worth
+     *                       it for long spans at high bit rates.
+     */
+    public CircularEncoder(int width, int height, int bitRate, int frameRate, int desiredSpanSec,
+                           boolean directStorage, Callback cb) throws IOException {
         // The goal is to size the buffer so that we can accumulate N seconds worth of video,
         // where N is passed in as "desiredSpanSec".  If the codec generates data at roughly
         // the requested bit rate, we can compute it as time * bitRate / bitsPerByte.
@@ -106,7 +126,7 @@ public class CircularEncoder {
                     " vs. " + (IFRAME_INTERVAL * 2));
         }
         CircularEncoderBuffer encBuffer = new CircularEncoderBuffer(bitRate, frameRate,
-                desiredSpanSec);
+                desiredSpanSec, directStorage);
 
         MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
 
@@ -188,14 +208,65 @@ public class CircularEncoder {
      * data will be written as a .mp4 file.  The call returns immediately.  When the file
      * save completes, the callback will be notified.
      * <p>
-     * The file generation is performed on the encoder thread, which means we won't be
-     * draining the output buffers while this runs.  It would be wise to stop submitting
-     * frames during this time.
+     * The file is written on a separate thread, so the encoder keeps draining while it runs.
+     * Only one save can be in progress at a time; a second request fails with a nonzero
+     * status.
      */
     public void saveVideo(File outputFile) {
+        saveVideo(outputFile, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Initiates saving part of the currently-buffered frames to the specified output file.
+     * Otherwise identical to {@link #saveVideo(File)}.
+     * <p>
+     * Output starts at the newest sync frame at or before startUsec (or the oldest sync
+     * frame we have, if the buffer doesn't reach back that far), and includes every packet
+     * up to and including endUsec.  Times are presentation time stamps, in microseconds, in
+     * the same time base as the frames submitted to the encoder.
+     */
+    public void saveVideo(File outputFile, long startUsec, long endUsec) {
+        if (endUsec < startUsec) {
+            throw new IllegalArgumentException("endUsec " + endUsec + " < startUsec " +
+                    startUsec);
+        }
         Handler handler = mEncoderThread.getHandler();
         handler.sendMessage(handler.obtainMessage(
-                EncoderThread.EncoderHandler.MSG_SAVE_VIDEO, outputFile));
+                EncoderThread.EncoderHandler.MSG_SAVE_VIDEO,
+                new SaveRequest(outputFile, startUsec, endUsec)));
+    }
+
+    /**
+     * A pinned range of the circular buffer, handed from the encoder thread to the save
+     * thread.  Immutable.
+     */
+    private static class Snapshot {
+        final File mOutputFile;
+        final int mFirstIndex;
+        final int mLastIndex;
+        final MediaFormat mFormat;
+
+        Snapshot(File outputFile, int firstIndex, int lastIndex, MediaFormat format) {
+            mOutputFile = outputFile;
+            mFirstIndex = firstIndex;
+            mLastIndex = lastIndex;
+            mFormat = format;
+        }
+    }
+
+    /**
+     * Parameters for a save operation.  Immutable, so it can be handed between threads.
+     */
+    private static class SaveRequest {
+        final File mOutputFile;
+        final long mStartUsec;
+        final long mEndUsec;
+
+        SaveRequest(File outputFile, long startUsec, long endUsec) {
+            mOutputFile = outputFile;
+            mStartUsec = startUsec;
+            mEndUsec = endUsec;
+        }
     }
 
     /**
@@ -206,8 +277,9 @@ public class CircularEncoder {
      * input surface.  We will see data appear at the decoder output, so we can either use
      * an infinite timeout on dequeueOutputBuffer() or wait() on an object and require the
      * calling app wake us.  It's very useful to have all of the buffer management local to
-     * this thread -- avoids synchronization -- so we want to do the file muxing in here.
-     * So, it's best to sleep on an object and do something appropriate when awakened.
+     * this thread -- avoids synchronization -- so we decide what to save in here, and hand
+     * the (pinned) packets to a save thread for muxing.  So, it's best to sleep on an object
+     * and do something appropriate when awakened.
      * <p>
      * This class does not manage the MediaCodec encoder startup/shutdown.  The encoder
      * should be fully started before the thread is created, and not shut down until this
@@ -226,6 +298,11 @@ public class CircularEncoder {
         private final Object mLock = new Object();
         private volatile boolean mReady = false;
 
+        // Muxing for saves happens here, so the encoder keeps draining while we write.
+        private HandlerThread mSaveThread;
+        private SaveHandler mSaveHandler;
+        private volatile boolean mSaveInProgress;
+
         public EncoderThread(MediaCodec mediaCodec, CircularEncoderBuffer encBuffer,
                              CircularEncoder.Callback callback) {
             mEncoder = mediaCodec;
@@ -242,6 +319,10 @@ public class CircularEncoder {
          */
         @Override
         public void run() {
+            mSaveThread = new HandlerThread("CircularEncoder-save");
+            mSaveThread.start();
+            mSaveHandler = new SaveHandler(mSaveThread.getLooper(), this);
+
             Looper.prepare();
             mHandler = new EncoderHandler(this);    // must create on encoder thread
             Log.d(TAG, "encoder thread ready");
@@ -370,43 +451,83 @@ public class CircularEncoder {
         }
 
         /**
-         * Saves the encoder output to a .mp4 file.
+         * Starts saving the encoder output to a .mp4 file.
          * <p>
-         * We'll drain the encoder to get any lingering data, but we're not going to shut
-         * the encoder down or use other tricks to try to "flush" the encoder.  This may
-         * mean we miss the last couple of submitted frames if they're still working their
-         * way through.
+         * We're not going to shut the encoder down or use other tricks to try to "flush" the
+         * encoder.  This may mean we miss the last couple of submitted frames if they're still
+         * working their way through.
          * <p>
-         * We may want to reset the buffer after this -- if they hit "capture" again right
-         * away they'll end up saving video with a gap where we paused to write the file.
+         * All we do here is decide which packets to save and pin them in the circular buffer.
+         * The muxing happens on the save thread, so we keep draining the encoder while the
+         * file is written.
          */
-        void saveVideo(File outputFile) {
-            if (VERBOSE) Log.d(TAG, "saveVideo " + outputFile);
+        void saveVideo(SaveRequest request) {
+            File outputFile = request.mOutputFile;
+            if (VERBOSE) {
+                Log.d(TAG, "saveVideo " + outputFile + " [" + request.mStartUsec + "," +
+                        request.mEndUsec + "]");
+            }
+            if (mSaveInProgress) {
+                // The buffer can only have one pinned range.
+                Log.w(TAG, "Save already in progress, ignoring " + outputFile);
+                mCallback.fileSaveComplete(3);
+                return;
+            }
 
-            int index = mEncBuffer.getFirstIndex();
+            int index = mEncBuffer.getSyncIndexBefore(request.mStartUsec);
             if (index < 0) {
                 Log.w(TAG, "Unable to get first index");
                 mCallback.fileSaveComplete(1);
                 return;
             }
+            if (mEncBuffer.getPresentationTimeUs(index) > request.mEndUsec) {
+                // MediaMuxer won't stop() cleanly if we never give it anything.
+                Log.w(TAG, "Nothing buffered before " + request.mEndUsec);
+                mCallback.fileSaveComplete(1);
+                return;
+            }
 
+            // Find the last packet to save.
+            int lastIndex = index;
+            int next = mEncBuffer.getNextIndex(lastIndex);
+            while (next >= 0 && mEncBuffer.getPresentationTimeUs(next) <= request.mEndUsec) {
+                lastIndex = next;
+                next = mEncBuffer.getNextIndex(next);
+            }
+
+            mEncBuffer.pin(index);
+            mSaveInProgress = true;
+            mSaveHandler.sendMessage(mSaveHandler.obtainMessage(SaveHandler.MSG_WRITE_SNAPSHOT,
+                    new Snapshot(outputFile, index, lastIndex, mEncodedFormat)));
+        }
+
+        /**
+         * Writes a pinned range of the circular buffer to a .mp4 file, then releases the pin.
+         * <p>
+         * Runs on the save thread.
+         */
+        void writeSnapshot(Snapshot snapshot) {
             MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
             MediaMuxer muxer = null;
+            int index = snapshot.mFirstIndex;
             int result = -1;
             try {
-                muxer = new MediaMuxer(outputFile.getPath(),
+                muxer = new MediaMuxer(snapshot.mOutputFile.getPath(),
                         MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-                int videoTrack = muxer.addTrack(mEncodedFormat);
+                int videoTrack = muxer.addTrack(snapshot.mFormat);
                 muxer.start();
 
-                do {
+                while (true) {
                     ByteBuffer buf = mEncBuffer.getChunk(index, info);
                     if (VERBOSE) {
                         Log.d(TAG, "SAVE " + index + " flags=0x" + Integer.toHexString(info.flags));
                     }
                     muxer.writeSampleData(videoTrack, buf, info);
+                    if (index == snapshot.mLastIndex) {
+                        break;
+                    }
                     index = mEncBuffer.getNextIndex(index);
-                } while (index >= 0);
+                }
                 result = 0;
             } catch (IOException ioe) {
                 Log.w(TAG, "muxer failed", ioe);
@@ -416,19 +537,29 @@ public class CircularEncoder {
                     muxer.stop();
                     muxer.release();
                 }
+                mEncBuffer.unpin();
+                mSaveInProgress = false;
             }
 
             if (VERBOSE) {
-                Log.d(TAG, "muxer stopped, result=" + result);
+                Log.d(TAG, "muxer stopped, result=" + result + " wrappedReads=" +
+                        mEncBuffer.getWrappedReadCount() + " scratchAllocs=" +
+                        mEncBuffer.getScratchAllocCount());
             }
             mCallback.fileSaveComplete(result);
         }
 
         /**
-         * Tells the Looper to quit.
+         * Tells the Looper to quit.  Any save in progress is allowed to finish first.
          */
         void shutdown() {
             if (VERBOSE) Log.d(TAG, "shutdown");
+            mSaveThread.quitSafely();
+            try {
+                mSaveThread.join();
+            } catch (InterruptedException ie) {
+                Log.w(TAG, "Save thread join() was interrupted", ie);
+            }
             Looper.myLooper().quit();
         }
 
@@ -472,7 +603,7 @@ public class CircularEncoder {
                         encoderThread.frameAvailableSoon();
                         break;
                     case MSG_SAVE_VIDEO:
-                        encoderThread.saveVideo((File) msg.obj);
+                        encoderThread.saveVideo((SaveRequest) msg.obj);
                         break;
                     case MSG_SHUTDOWN:
                         encoderThread.shutdown();
@@ -482,5 +613,36 @@ public class CircularEncoder {
                 }
             }
         }
+
+        /**
+         * Handler for the save thread.  Receives pinned snapshots from the encoder thread.
+         */
+        private static class SaveHandler extends Handler {
+            public static final int MSG_WRITE_SNAPSHOT = 1;
+
+            private WeakReference<EncoderThread> mWeakEncoderThread;
+
+            public SaveHandler(Looper looper, EncoderThread et) {
+                super(looper);
+                mWeakEncoderThread = new WeakReference<EncoderThread>(et);
+            }
+
+            @Override  // runs on save thread
+            public void handleMessage(Message msg) {
+                EncoderThread encoderThread = mWeakEncoderThread.get();
+                if (encoderThread == null) {
+                    Log.w(TAG, "SaveHandler.handleMessage: weak ref is null");
+                    return;
+                }
+
+                switch (msg.what) {
+                    case MSG_WRITE_SNAPSHOT:
+                        encoderThread.writeSnapshot((Snapshot) msg.obj);
+                        break;
+                    default:
+                        throw new RuntimeException("unknown message " + msg.what);
+                }
+            }
+        }
     }
 }
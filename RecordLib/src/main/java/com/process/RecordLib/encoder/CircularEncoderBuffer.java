@@ -27,7 +27,9 @@ import java.nio.ByteBuffer;
  * This is actually a pair of circular buffers, one for the raw data and one for the meta-data
  * (flags and PTS).
  * <p>
- * Not thread-safe.
+ * Not thread-safe, with one exception: a range of packets can be pinned (see pin()), and
+ * while it's pinned another thread may read those packets with getChunk() while the owning
+ * thread keeps calling add().  Only one thread may read at a time.
  */
 public class CircularEncoderBuffer {
     private static final String TAG = "CircularEncoderBuffer";
@@ -43,10 +45,31 @@ public class CircularEncoderBuffer {
     //
     // It's much more convenient to work with a byte[], so we just wrap it with a ByteBuffer
     // as needed.  This is a bit awkward when we hit the edge of the buffer, but for that
-    // we can just do an allocation and data copy (we know it happens at most once per file
-    // save operation).
+    // we can just copy the packet into a reusable scratch buffer (see mWrapScratch).
+    //
+    // Alternatively the data can live off-heap in a "direct" ByteBuffer.  The codec output
+    // buffers are direct, so the copy in add() becomes a native memcpy, the GC never has to
+    // look at the (potentially very large) ring, and MediaMuxer can read it without going
+    // through JNI array access.  In that mode mDataBuffer is null, and mDataWriteView is a
+    // private view of the same memory so add() doesn't disturb the position/limit of the
+    // buffer we hand out from getChunk().
     private ByteBuffer mDataBufferWrapper;
+    private ByteBuffer mDataWriteView;
+    private ByteBuffer mDataReadView;
     private byte[] mDataBuffer;
+    private final int mDataBufferSize;
+
+    // Packets that straddle the end of the data buffer are handed out from a single direct
+    // scratch buffer, sized to the largest packet we've seen.  It's only (re)allocated when
+    // a bigger packet shows up, so a long save doesn't leave a trail of direct buffers for
+    // the finalizer to clean up.
+    private ByteBuffer mWrapScratch;
+    private int mMaxPacketSize;
+
+    // Statistics.
+    private int mWrappedAddCount;       // packets stored in two pieces
+    private int mWrappedReadCount;      // getChunk() calls that reassembled a packet
+    private int mScratchAllocCount;     // times mWrapScratch was (re)allocated
 
     // Meta-data held here.  We're using a collection of arrays, rather than an array of
     // objects with multiple fields, to minimize allocations and heap footprint.
@@ -60,17 +83,60 @@ public class CircularEncoderBuffer {
     private int mMetaHead;
     private int mMetaTail;
 
+    // Meta-data indices of the sync frames we're holding, oldest first.  Sync frames are
+    // added at the head and fall off the tail along with their packets, so this is another
+    // ring in the same order as the meta-data, with the same head/tail convention.  Because
+    // presentation times of sync frames only increase, we can binary-search it by PTS.
+    private int[] mSyncIndex;
+    private int mSyncHead;
+    private int mSyncTail;
+
+    // Index of the oldest pinned packet, or -1.  add() won't remove this packet (or anything
+    // after it) to make room; it drops the incoming packet instead.  Written by whichever
+    // thread finishes with the pinned range, so it's volatile.
+    private volatile int mPinnedIndex = -1;
+
+    // After dropping a packet we have to keep dropping until the next sync frame, or we'd
+    // store frames that can't be decoded.
+    private boolean mDroppingUntilSync;
+    private int mDroppedCount;
+
     /**
-     * Allocates the circular buffers we use for encoded data and meta-data.
+     * Allocates the circular buffers we use for encoded data and meta-data.  The encoded
+     * data is held in a byte[] on the Java heap.
      */
     public CircularEncoderBuffer(int bitRate, int frameRate, int desiredSpanSec) {
+        this(bitRate, frameRate, desiredSpanSec, false);
+    }
+
+    /**
+     * Allocates the circular buffers we use for encoded data and meta-data.
+     *
+     * @param directStorage If set, the encoded data is held off-heap in a direct ByteBuffer
+     *     rather than in a byte[].
+     */
+    public CircularEncoderBuffer(int bitRate, int frameRate, int desiredSpanSec,
+                                 boolean directStorage) {
         // For the encoded data, we assume the encoded bit rate is close to what we request.
         //
         // There would be a minor performance advantage to using a power of two here, because
         // not all ARM CPUs support integer modulus.
-        int dataBufferSize = bitRate * desiredSpanSec / 8;
-        mDataBuffer = new byte[dataBufferSize];
-        mDataBufferWrapper = ByteBuffer.wrap(mDataBuffer);
+        long requestedSize = (long) bitRate * desiredSpanSec / 8;
+        if (requestedSize <= 0 || requestedSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("bad buffer size " + requestedSize +
+                    " (bitRate=" + bitRate + " span=" + desiredSpanSec + ")");
+        }
+        int dataBufferSize = (int) requestedSize;
+        mDataBufferSize = dataBufferSize;
+        if (directStorage) {
+            mDataBuffer = null;
+            mDataBufferWrapper = ByteBuffer.allocateDirect(dataBufferSize);
+            mDataWriteView = mDataBufferWrapper.duplicate();
+            mDataReadView = mDataBufferWrapper.duplicate();
+        } else {
+            mDataBuffer = new byte[dataBufferSize];
+            mDataBufferWrapper = ByteBuffer.wrap(mDataBuffer);
+        }
 
         // Meta-data is smaller than encoded data for non-trivial frames, so we over-allocate
         // a bit.  This should ensure that we drop packets because we ran out of (expensive)
@@ -80,14 +146,22 @@ public class CircularEncoderBuffer {
         mPacketPtsUsec = new long[metaBufferCount];
         mPacketStart = new int[metaBufferCount];
         mPacketLength = new int[metaBufferCount];
+        mSyncIndex = new int[metaBufferCount];
 
         if (VERBOSE) {
             Log.d(TAG, "CBE: bitRate=" + bitRate + " frameRate=" + frameRate +
                     " desiredSpan=" + desiredSpanSec + ": dataBufferSize=" + dataBufferSize +
-                " metaBufferCount=" + metaBufferCount);
+                " metaBufferCount=" + metaBufferCount + " direct=" + directStorage);
         }
     }
 
+    /**
+     * Returns true if the encoded data is held in off-heap (direct) storage.
+     */
+    public boolean isDirect() {
+        return mDataBuffer == null;
+    }
+
     /**
      * Computes the amount of time spanned by the buffered data, based on the presentation
      * time stamps.
@@ -120,28 +194,52 @@ public class CircularEncoderBuffer {
             Log.d(TAG, "add size=" + size + " flags=0x" + Integer.toHexString(flags) +
                     " pts=" + ptsUsec);
         }
+        if (mDroppingUntilSync) {
+            if ((flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) == 0) {
+                mDroppedCount++;
+                return;
+            }
+            mDroppingUntilSync = false;
+        }
+
+        final int pinnedIndex = mPinnedIndex;
         while (!canAdd(size)) {
+            if (mMetaTail == pinnedIndex) {
+                // Making room would overwrite packets that are being written out.
+                if (VERBOSE) Log.v(TAG, "dropping packet, pinned at " + pinnedIndex);
+                mDroppedCount++;
+                mDroppingUntilSync = true;
+                return;
+            }
             removeTail();
         }
 
-        final int dataLen = mDataBuffer.length;
+        final int dataLen = mDataBufferSize;
         final int metaLen = mPacketStart.length;
         int packetStart = getHeadStart();
         mPacketFlags[mMetaHead] = flags;
         mPacketPtsUsec[mMetaHead] = ptsUsec;
         mPacketStart[mMetaHead] = packetStart;
         mPacketLength[mMetaHead] = size;
+        if (size > mMaxPacketSize) {
+            mMaxPacketSize = size;
+        }
+        if ((flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+            mSyncIndex[mSyncHead] = mMetaHead;
+            mSyncHead = (mSyncHead + 1) % metaLen;
+        }
 
         // Copy the data in.  Take care if it gets split in half.
         if (packetStart + size < dataLen) {
             // one chunk
-            buf.get(mDataBuffer, packetStart, size);
+            copyIn(buf, packetStart, size);
         } else {
             // two chunks
             int firstSize = dataLen - packetStart;
             if (VERBOSE) { Log.v(TAG, "split, firstsize=" + firstSize + " size=" + size); }
-            buf.get(mDataBuffer, packetStart, firstSize);
-            buf.get(mDataBuffer, 0, size - firstSize);
+            mWrappedAddCount++;
+            copyIn(buf, packetStart, firstSize);
+            copyIn(buf, 0, size - firstSize);
         }
 
         mMetaHead = (mMetaHead + 1) % metaLen;
@@ -161,21 +259,94 @@ public class CircularEncoderBuffer {
      * When sending output to a MediaMuxer, start here.
      */
     public int getFirstIndex() {
+        if (mSyncHead == mSyncTail) {
+            Log.w(TAG, "HEY: could not find sync frame in buffer");
+            return -1;
+        }
+        return mSyncIndex[mSyncTail];
+    }
+
+    /**
+     * Returns the number of sync frames currently held.
+     */
+    public int getSyncFrameCount() {
         final int metaLen = mPacketStart.length;
+        return (mSyncHead - mSyncTail + metaLen) % metaLen;
+    }
 
-        int index = mMetaTail;
-        while (index != mMetaHead) {
-            if ((mPacketFlags[index] & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
-                break;
+    /**
+     * Returns the index of the newest sync frame with a presentation time at or before
+     * ptsUsec.  Valid until the next add().
+     * <p>
+     * If every sync frame we hold is later than ptsUsec, the oldest one is returned, so a
+     * request that reaches back further than the buffer does still gets as much as we have.
+     *
+     * @return The index, or -1 if the buffer holds no sync frames.
+     */
+    public int getSyncIndexBefore(long ptsUsec) {
+        final int metaLen = mPacketStart.length;
+        int count = getSyncFrameCount();
+        if (count == 0) {
+            Log.w(TAG, "HEY: could not find sync frame in buffer");
+            return -1;
+        }
+
+        // Find the last position in the sync ring with pts <= ptsUsec.
+        int lo = 0;
+        int hi = count - 1;
+        int found = 0;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int index = mSyncIndex[(mSyncTail + mid) % metaLen];
+            if (mPacketPtsUsec[index] <= ptsUsec) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
             }
-            index = (index + 1) % metaLen;
         }
+        return mSyncIndex[(mSyncTail + found) % metaLen];
+    }
 
-        if (index == mMetaHead) {
-            Log.w(TAG, "HEY: could not find sync frame in buffer");
-            index = -1;
+    /**
+     * Returns the index of the newest packet, or -1 if the buffer is empty.  Valid until the
+     * next add().
+     */
+    public int getLastIndex() {
+        if (mMetaHead == mMetaTail) {
+            return -1;
         }
-        return index;
+        final int metaLen = mPacketStart.length;
+        return (mMetaHead + metaLen - 1) % metaLen;
+    }
+
+    /**
+     * Pins the packet at index, and every packet after it, so that add() can't overwrite
+     * them.  If the buffer fills up while pinned, incoming packets are dropped (and then
+     * everything up to the next sync frame, so what we keep stays decodable).
+     * <p>
+     * Packets from index up to the newest packet at the time of the call stay valid until
+     * unpin(), and may be read from another thread.
+     */
+    public void pin(int index) {
+        if (mPinnedIndex >= 0) {
+            throw new IllegalStateException("already pinned at " + mPinnedIndex);
+        }
+        mPinnedIndex = index;
+    }
+
+    /**
+     * Releases the pinned range.  May be called from the thread that read it.
+     */
+    public void unpin() {
+        mPinnedIndex = -1;
+    }
+
+    /**
+     * Returns the number of incoming packets dropped because the buffer was pinned.
+     */
+    public int getDroppedCount() {
+        return mDroppedCount;
     }
 
     /**
@@ -190,15 +361,25 @@ public class CircularEncoderBuffer {
         return next;
     }
 
+    /**
+     * Returns the presentation time stamp of the packet at index, in microseconds.
+     */
+    public long getPresentationTimeUs(int index) {
+        return mPacketPtsUsec[index];
+    }
+
     /**
      * Returns a reference to a "direct" ByteBuffer with the data, and fills in the
      * BufferInfo.
      * <p>
      * The caller must not modify the contents of the returned ByteBuffer.  Altering
      * the position and limit is allowed.
+     * <p>
+     * If the packet wraps around the end of the data buffer, it's reassembled in a scratch
+     * buffer that is reused by the next call, so the result is only valid until then.
      */
     public ByteBuffer getChunk(int index, MediaCodec.BufferInfo info) {
-        final int dataLen = mDataBuffer.length;
+        final int dataLen = mDataBufferSize;
         int packetStart = mPacketStart[index];
         int length = mPacketLength[index];
 
@@ -212,15 +393,81 @@ public class CircularEncoderBuffer {
             return mDataBufferWrapper;
         } else {
             // two chunks
-            ByteBuffer tempBuf = ByteBuffer.allocateDirect(length);
+            if (mWrapScratch == null || mWrapScratch.capacity() < length) {
+                // Every packet we hold is no bigger than mMaxPacketSize, so one allocation
+                // normally covers the whole save.
+                mWrapScratch = ByteBuffer.allocateDirect(Math.max(length, mMaxPacketSize));
+                mScratchAllocCount++;
+                if (VERBOSE) Log.d(TAG, "wrap scratch now " + mWrapScratch.capacity());
+            }
+            mWrappedReadCount++;
+            ByteBuffer tempBuf = mWrapScratch;
+            tempBuf.clear();
             int firstSize = dataLen - packetStart;
-            tempBuf.put(mDataBuffer, mPacketStart[index], firstSize);
-            tempBuf.put(mDataBuffer, 0, length - firstSize);
+            copyOut(tempBuf, packetStart, firstSize);
+            copyOut(tempBuf, 0, length - firstSize);
+            tempBuf.flip();
             info.offset = 0;
             return tempBuf;
         }
     }
 
+    /**
+     * Returns the number of packets that were stored split across the end of the data buffer.
+     */
+    public int getWrappedAddCount() {
+        return mWrappedAddCount;
+    }
+
+    /**
+     * Returns the number of getChunk() calls that had to reassemble a split packet.
+     */
+    public int getWrappedReadCount() {
+        return mWrappedReadCount;
+    }
+
+    /**
+     * Returns the number of times the wrap scratch buffer has been allocated.  In the steady
+     * state this should stay at one.
+     */
+    public int getScratchAllocCount() {
+        return mScratchAllocCount;
+    }
+
+    /**
+     * Copies "size" bytes from the current position of "src" into the data buffer at
+     * "offset".  Advances the position of "src".
+     */
+    private void copyIn(ByteBuffer src, int offset, int size) {
+        if (mDataBuffer != null) {
+            src.get(mDataBuffer, offset, size);
+        } else {
+            // Bulk put() of one direct buffer into another is a native memory copy.  Narrow
+            // the source limit so we only take this piece of the packet.
+            int srcLimit = src.limit();
+            src.limit(src.position() + size);
+            mDataWriteView.clear();
+            mDataWriteView.position(offset);
+            mDataWriteView.put(src);
+            src.limit(srcLimit);
+        }
+    }
+
+    /**
+     * Copies "size" bytes from the data buffer at "offset" to the current position of "dst".
+     * Advances the position of "dst".
+     */
+    private void copyOut(ByteBuffer dst, int offset, int size) {
+        if (mDataBuffer != null) {
+            dst.put(mDataBuffer, offset, size);
+        } else {
+            mDataReadView.clear();
+            mDataReadView.limit(offset + size);
+            mDataReadView.position(offset);
+            dst.put(mDataReadView);
+        }
+    }
+
     /**
      * Computes the data buffer offset for the next place to store data.
      * <p>
@@ -232,7 +479,7 @@ public class CircularEncoderBuffer {
             return 0;
         }
 
-        final int dataLen = mDataBuffer.length;
+        final int dataLen = mDataBufferSize;
         final int metaLen = mPacketStart.length;
 
         int beforeHead = (mMetaHead + metaLen - 1) % metaLen;
@@ -246,7 +493,7 @@ public class CircularEncoderBuffer {
      * @return True if there is enough space to add without removing anything.
      */
     private boolean canAdd(int size) {
-        final int dataLen = mDataBuffer.length;
+        final int dataLen = mDataBufferSize;
         final int metaLen = mPacketStart.length;
 
         if (size > dataLen) {
@@ -268,11 +515,14 @@ public class CircularEncoderBuffer {
         }
 
         // Need the byte offset of the start of the "tail" packet, and the byte offset where
-        // "head" will store its data.
+        // "head" will store its data.  Packets are followed by a one-byte gap (see
+        // getHeadStart()), which has to fit too: if the packet ran right up to the tail, the
+        // next head would land past it and the free space would appear to wrap back to
+        // nearly the whole buffer.
         int headStart = getHeadStart();
         int tailStart = mPacketStart[mMetaTail];
         int freeSpace = (tailStart + dataLen - headStart) % dataLen;
-        if (size > freeSpace) {
+        if (size >= freeSpace) {
             if (VERBOSE) {
                 Log.v(TAG, "ran out of data (tailStart=" + tailStart + " headStart=" + headStart +
                     " req=" + size + " free=" + freeSpace + ")");
@@ -296,6 +546,9 @@ public class CircularEncoderBuffer {
             throw new RuntimeException("Can't removeTail() in empty buffer");
         }
         final int metaLen = mPacketStart.length;
+        if (mSyncHead != mSyncTail && mSyncIndex[mSyncTail] == mMetaTail) {
+            mSyncTail = (mSyncTail + 1) % metaLen;
+        }
         mMetaTail = (mMetaTail + 1) % metaLen;
     }
 }
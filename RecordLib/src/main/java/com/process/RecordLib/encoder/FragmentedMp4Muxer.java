@@ -0,0 +1,76 @@
+package com.process.RecordLib.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes the video track as fragmented MP4, using {@link FragmentedMp4Writer}.
+ * <p>
+ * Unlike {@link Mp4Muxer}, the file is playable up to the last complete GOP if we never
+ * get as far as release().
+ */
+public class FragmentedMp4Muxer implements VideoMuxer {
+    private static final String TAG = "FragmentedMp4Muxer";
+
+    private FragmentedMp4Writer mWriter;
+    private boolean mStarted;
+
+    public FragmentedMp4Muxer(File outputFile) throws IOException {
+        mWriter = new FragmentedMp4Writer(outputFile);
+    }
+
+    @Override
+    public void start(MediaFormat format) {
+        if (mStarted) {
+            throw new RuntimeException("muxer already started");
+        }
+        // csd-0 and csd-1 hold the SPS and PPS for AVC.
+        ByteBuffer sps = format.getByteBuffer("csd-0");
+        ByteBuffer pps = format.getByteBuffer("csd-1");
+        if (sps == null || pps == null) {
+            throw new RuntimeException("output format has no SPS/PPS: " + format);
+        }
+        try {
+            mWriter.start(format.getInteger(MediaFormat.KEY_WIDTH),
+                    format.getInteger(MediaFormat.KEY_HEIGHT), sps, pps);
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+        mStarted = true;
+    }
+
+    @Override
+    public void writeSampleData(ByteBuffer encodedData, MediaCodec.BufferInfo info) {
+        if (!mStarted) {
+            throw new RuntimeException("muxer hasn't started");
+        }
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            return;     // already in the header
+        }
+        try {
+            mWriter.writeSample(encodedData, info.offset, info.size, info.presentationTimeUs,
+                    (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0);
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+    }
+
+    @Override
+    public void release() {
+        if (mWriter == null) {
+            return;
+        }
+        try {
+            mWriter.close();
+            Log.d(TAG, "wrote " + mWriter.getFragmentCount() + " fragments");
+        } catch (IOException ioe) {
+            Log.w(TAG, "close failed", ioe);
+        }
+        mWriter = null;
+    }
+}
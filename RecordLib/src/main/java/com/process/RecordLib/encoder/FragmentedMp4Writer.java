@@ -0,0 +1,505 @@
+package com.process.RecordLib.encoder;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Writes a single H.264 video track as fragmented MP4 (ISO/IEC 14496-12, "fMP4").
+ * <p>
+ * The moov box goes out first, with an empty sample table, and the samples follow as a
+ * series of moof/mdat fragments.  A new fragment begins at every sync frame, so each one
+ * holds one GOP.  Everything up to the last complete fragment is playable even if we never
+ * get to close() (e.g. the process is killed), and the only state held in memory is the
+ * current fragment, however long the recording runs.
+ * <p>
+ * Samples arrive in Annex B form (start codes), which is what MediaCodec produces.  We
+ * rewrite them with 4-byte length prefixes, and drop in-band SPS / PPS / AUD units, since the
+ * parameter sets live in the avcC box.  Samples must arrive in decode order with increasing
+ * presentation times (no B-frames); each sample's duration is the gap to the next one.
+ * <p>
+ * This class has no Android dependencies, so it can be exercised on the JVM by parsing the
+ * file it writes.  Not thread-safe.
+ */
+public class FragmentedMp4Writer implements Closeable {
+    // Everything is in microseconds, which is what MediaCodec gives us.
+    private static final int TIMESCALE = 1000000;
+
+    // The final sample has no successor to measure against, so it gets the same duration as
+    // the one before it.  This is for when there's only one sample.
+    private static final long DEFAULT_SAMPLE_DURATION_US = 1000000 / 30;
+
+    private static final int TRACK_ID = 1;
+
+    // trun sample_flags: "depends on others" + "non-sync", or "depends on no others".
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    private static final int NAL_TYPE_SPS = 7;
+    private static final int NAL_TYPE_PPS = 8;
+    private static final int NAL_TYPE_AUD = 9;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final FileOutputStream mStream;
+    private final FileChannel mChannel;
+    private boolean mStarted;
+
+    // Box headers are assembled here.  Reused, grown as needed.
+    private ByteBuffer mHeader = ByteBuffer.allocate(4096);
+
+    // Samples of the fragment being collected.  Reused, grown as needed.
+    private ByteBuffer mFragmentData = ByteBuffer.allocate(256 * 1024);
+    private int[] mSampleSizes = new int[64];
+    private long[] mSamplePtsUs = new long[64];
+    private boolean[] mSampleSync = new boolean[64];
+    private int mSampleCount;
+
+    private long mDecodeTimeUs;         // decode time of the first sample in the fragment
+    private long mLastPtsUs = -1;
+    private long mLastDurationUs = DEFAULT_SAMPLE_DURATION_US;     // latest gap between samples
+    private int mSequenceNumber;
+    private int mFragmentCount;
+
+    /**
+     * Creates (or truncates) the output file.
+     */
+    public FragmentedMp4Writer(File outputFile) throws IOException {
+        mStream = new FileOutputStream(outputFile);
+        mChannel = mStream.getChannel();
+    }
+
+    /**
+     * Writes the file header.  Must be called once, before the first sample.
+     *
+     * @param sps Sequence parameter set, with or without a start code.
+     * @param pps Picture parameter set, with or without a start code.
+     */
+    public void start(int width, int height, ByteBuffer sps, ByteBuffer pps)
+            throws IOException {
+        if (mStarted) {
+            throw new IllegalStateException("already started");
+        }
+        byte[] spsBytes = stripStartCode(sps);
+        byte[] ppsBytes = stripStartCode(pps);
+        if (spsBytes.length < 4 || ppsBytes.length == 0) {
+            throw new IllegalArgumentException("bad SPS/PPS: " + spsBytes.length + "/" +
+                    ppsBytes.length + " bytes");
+        }
+
+        ensureHeaderCapacity(1024 + spsBytes.length + ppsBytes.length);
+        ByteBuffer buf = mHeader;
+        buf.clear();
+        writeFtyp(buf);
+        writeMoov(buf, width, height, spsBytes, ppsBytes);
+        buf.flip();
+        writeFully(buf);
+        mStarted = true;
+    }
+
+    /**
+     * Adds one encoded frame.  The data is copied; the buffer isn't modified.
+     *
+     * @param data Buffer holding an Annex B access unit at [offset, offset + size).
+     * @param isSync True if this is a sync (IDR) frame.
+     */
+    public void writeSample(ByteBuffer data, int offset, int size, long ptsUs, boolean isSync)
+            throws IOException {
+        if (!mStarted) {
+            throw new IllegalStateException("not started");
+        }
+        if (isSync && mSampleCount > 0) {
+            flushFragment(ptsUs);
+        }
+
+        int sampleSize = appendNalUnits(data, offset, offset + size);
+        if (sampleSize == 0) {
+            return;     // nothing but parameter sets
+        }
+        if (mSampleCount == mSampleSizes.length) {
+            int newLength = mSampleCount * 2;
+            int[] sizes = new int[newLength];
+            long[] pts = new long[newLength];
+            boolean[] sync = new boolean[newLength];
+            System.arraycopy(mSampleSizes, 0, sizes, 0, mSampleCount);
+            System.arraycopy(mSamplePtsUs, 0, pts, 0, mSampleCount);
+            System.arraycopy(mSampleSync, 0, sync, 0, mSampleCount);
+            mSampleSizes = sizes;
+            mSamplePtsUs = pts;
+            mSampleSync = sync;
+        }
+        mSampleSizes[mSampleCount] = sampleSize;
+        mSamplePtsUs[mSampleCount] = ptsUs;
+        mSampleSync[mSampleCount] = isSync;
+        mSampleCount++;
+        if (mLastPtsUs >= 0 && ptsUs > mLastPtsUs) {
+            mLastDurationUs = ptsUs - mLastPtsUs;
+        }
+        mLastPtsUs = ptsUs;
+    }
+
+    /**
+     * Writes the last fragment and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (mSampleCount > 0) {
+                long lastPts = mSamplePtsUs[mSampleCount - 1];
+                flushFragment(lastPts + mLastDurationUs);
+            }
+        } finally {
+            mChannel.close();
+            mStream.close();
+        }
+    }
+
+    /**
+     * Returns the number of moof/mdat fragments written so far.
+     */
+    public int getFragmentCount() {
+        return mFragmentCount;
+    }
+
+    /**
+     * Writes the collected samples as one moof/mdat pair.
+     *
+     * @param nextPtsUs Presentation time of the sample that follows the last one collected.
+     */
+    private void flushFragment(long nextPtsUs) throws IOException {
+        int count = mSampleCount;
+        ensureHeaderCapacity(128 + count * 12);
+        ByteBuffer buf = mHeader;
+        buf.clear();
+
+        int moofStart = beginBox(buf, "moof");
+
+        int mfhdStart = beginFullBox(buf, "mfhd", 0, 0);
+        buf.putInt(++mSequenceNumber);
+        endBox(buf, mfhdStart);
+
+        int trafStart = beginBox(buf, "traf");
+        int tfhdStart = beginFullBox(buf, "tfhd", 0, 0x020000);    // default-base-is-moof
+        buf.putInt(TRACK_ID);
+        endBox(buf, tfhdStart);
+
+        int tfdtStart = beginFullBox(buf, "tfdt", 1, 0);
+        buf.putLong(mDecodeTimeUs);
+        endBox(buf, tfdtStart);
+
+        // data-offset, sample-duration, sample-size, sample-flags
+        int trunStart = beginFullBox(buf, "trun", 0, 0x000001 | 0x000100 | 0x000200 | 0x000400);
+        buf.putInt(count);
+        int dataOffsetPos = buf.position();
+        buf.putInt(0);      // patched below
+        for (int i = 0; i < count; i++) {
+            long next = (i + 1 < count) ? mSamplePtsUs[i + 1] : nextPtsUs;
+            long duration = Math.max(0, next - mSamplePtsUs[i]);
+            mDecodeTimeUs += duration;
+            buf.putInt((int) duration);
+            buf.putInt(mSampleSizes[i]);
+            buf.putInt(mSampleSync[i] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+        }
+        endBox(buf, trunStart);
+        endBox(buf, trafStart);
+        endBox(buf, moofStart);
+
+        // The sample data starts right after the mdat header.
+        int moofSize = buf.position() - moofStart;
+        buf.putInt(dataOffsetPos, moofSize + 8);
+
+        int dataSize = mFragmentData.position();
+        buf.putInt(8 + dataSize);
+        putFourCC(buf, "mdat");
+
+        buf.flip();
+        writeFully(buf);
+        mFragmentData.flip();
+        writeFully(mFragmentData);
+
+        mFragmentData.clear();
+        mSampleCount = 0;
+        mFragmentCount++;
+    }
+
+    /**
+     * Copies the NAL units in [start, end) to the fragment buffer, each prefixed with its
+     * length.  Returns the number of bytes added.
+     */
+    private int appendNalUnits(ByteBuffer data, int start, int end) {
+        int before = mFragmentData.position();
+        int nalStart = findNalStart(data, start, end);
+        if (nalStart < 0) {
+            // No start code; take it as a single NAL unit.
+            appendNalUnit(data, start, end);
+        } else {
+            while (nalStart >= 0) {
+                int next = findNalStart(data, nalStart, end);
+                int nalEnd = (next < 0) ? end : next - 3;
+                // Trailing zeros belong to the next start code (or are padding).
+                while (nalEnd > nalStart && data.get(nalEnd - 1) == 0) {
+                    nalEnd--;
+                }
+                appendNalUnit(data, nalStart, nalEnd);
+                nalStart = next;
+            }
+        }
+        return mFragmentData.position() - before;
+    }
+
+    private void appendNalUnit(ByteBuffer data, int start, int end) {
+        int length = end - start;
+        if (length <= 0) {
+            return;
+        }
+        int type = data.get(start) & 0x1f;
+        if (type == NAL_TYPE_SPS || type == NAL_TYPE_PPS || type == NAL_TYPE_AUD) {
+            return;
+        }
+        ensureFragmentCapacity(4 + length);
+        mFragmentData.putInt(length);
+        ByteBuffer src = data.duplicate();
+        src.limit(end);
+        src.position(start);
+        mFragmentData.put(src);
+    }
+
+    /**
+     * Returns the offset of the first byte after the next 00 00 01 start code in
+     * [from, end), or -1 if there isn't one.
+     */
+    static int findNalStart(ByteBuffer data, int from, int end) {
+        for (int i = from; i + 2 < end; i++) {
+            if (data.get(i) == 0 && data.get(i + 1) == 0 && data.get(i + 2) == 1) {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the contents of the buffer (position to limit) without a leading start code.
+     */
+    static byte[] stripStartCode(ByteBuffer buf) {
+        ByteBuffer src = buf.duplicate();
+        int start = findNalStart(src, src.position(), Math.min(src.limit(), src.position() + 4));
+        if (start >= 0) {
+            src.position(start);
+        }
+        byte[] bytes = new byte[src.remaining()];
+        src.get(bytes);
+        return bytes;
+    }
+
+    private static void writeFtyp(ByteBuffer buf) {
+        int start = beginBox(buf, "ftyp");
+        putFourCC(buf, "iso5");     // major brand
+        buf.putInt(512);            // minor version
+        putFourCC(buf, "iso5");
+        putFourCC(buf, "iso6");
+        putFourCC(buf, "mp41");
+        endBox(buf, start);
+    }
+
+    private static void writeMoov(ByteBuffer buf, int width, int height, byte[] sps,
+            byte[] pps) {
+        int moovStart = beginBox(buf, "moov");
+
+        int mvhdStart = beginFullBox(buf, "mvhd", 0, 0);
+        buf.putInt(0);              // creation time
+        buf.putInt(0);              // modification time
+        buf.putInt(TIMESCALE);
+        buf.putInt(0);              // duration: unknown, it's in the fragments
+        buf.putInt(0x00010000);     // rate 1.0
+        buf.putShort((short) 0x0100);   // volume 1.0
+        putZeros(buf, 2 + 8);
+        putIdentityMatrix(buf);
+        putZeros(buf, 24);
+        buf.putInt(TRACK_ID + 1);   // next track ID
+        endBox(buf, mvhdStart);
+
+        int trakStart = beginBox(buf, "trak");
+        int tkhdStart = beginFullBox(buf, "tkhd", 0, 0x000003);    // enabled, in movie
+        buf.putInt(0);              // creation time
+        buf.putInt(0);              // modification time
+        buf.putInt(TRACK_ID);
+        buf.putInt(0);              // reserved
+        buf.putInt(0);              // duration
+        putZeros(buf, 8);
+        buf.putShort((short) 0);    // layer
+        buf.putShort((short) 0);    // alternate group
+        buf.putShort((short) 0);    // volume
+        buf.putShort((short) 0);
+        putIdentityMatrix(buf);
+        buf.putInt(width << 16);
+        buf.putInt(height << 16);
+        endBox(buf, tkhdStart);
+
+        int mdiaStart = beginBox(buf, "mdia");
+        int mdhdStart = beginFullBox(buf, "mdhd", 0, 0);
+        buf.putInt(0);              // creation time
+        buf.putInt(0);              // modification time
+        buf.putInt(TIMESCALE);
+        buf.putInt(0);              // duration
+        buf.putShort((short) 0x55c4);   // language "und"
+        buf.putShort((short) 0);
+        endBox(buf, mdhdStart);
+
+        int hdlrStart = beginFullBox(buf, "hdlr", 0, 0);
+        buf.putInt(0);
+        putFourCC(buf, "vide");
+        putZeros(buf, 12);
+        buf.put("VideoHandler".getBytes(ASCII));
+        buf.put((byte) 0);
+        endBox(buf, hdlrStart);
+
+        int minfStart = beginBox(buf, "minf");
+        int vmhdStart = beginFullBox(buf, "vmhd", 0, 1);
+        putZeros(buf, 8);           // graphics mode, opcolor
+        endBox(buf, vmhdStart);
+
+        int dinfStart = beginBox(buf, "dinf");
+        int drefStart = beginFullBox(buf, "dref", 0, 0);
+        buf.putInt(1);
+        int urlStart = beginFullBox(buf, "url ", 0, 1);    // data is in this file
+        endBox(buf, urlStart);
+        endBox(buf, drefStart);
+        endBox(buf, dinfStart);
+
+        int stblStart = beginBox(buf, "stbl");
+        int stsdStart = beginFullBox(buf, "stsd", 0, 0);
+        buf.putInt(1);
+        writeAvc1(buf, width, height, sps, pps);
+        endBox(buf, stsdStart);
+        // The sample tables are empty; the samples are described by the fragments.
+        String[] emptyTables = { "stts", "stsc", "stco" };
+        for (String type : emptyTables) {
+            int start = beginFullBox(buf, type, 0, 0);
+            buf.putInt(0);
+            endBox(buf, start);
+        }
+        int stszStart = beginFullBox(buf, "stsz", 0, 0);
+        buf.putInt(0);              // sample size
+        buf.putInt(0);              // sample count
+        endBox(buf, stszStart);
+        endBox(buf, stblStart);
+
+        endBox(buf, minfStart);
+        endBox(buf, mdiaStart);
+        endBox(buf, trakStart);
+
+        int mvexStart = beginBox(buf, "mvex");
+        int trexStart = beginFullBox(buf, "trex", 0, 0);
+        buf.putInt(TRACK_ID);
+        buf.putInt(1);              // default sample description index
+        buf.putInt(0);              // default duration
+        buf.putInt(0);              // default size
+        buf.putInt(0);              // default flags
+        endBox(buf, trexStart);
+        endBox(buf, mvexStart);
+
+        endBox(buf, moovStart);
+    }
+
+    private static void writeAvc1(ByteBuffer buf, int width, int height, byte[] sps,
+            byte[] pps) {
+        int avc1Start = beginBox(buf, "avc1");
+        putZeros(buf, 6);
+        buf.putShort((short) 1);    // data reference index
+        putZeros(buf, 16);
+        buf.putShort((short) width);
+        buf.putShort((short) height);
+        buf.putInt(0x00480000);     // 72 dpi
+        buf.putInt(0x00480000);
+        buf.putInt(0);
+        buf.putShort((short) 1);    // frame count
+        putZeros(buf, 32);          // compressor name
+        buf.putShort((short) 0x0018);   // depth
+        buf.putShort((short) -1);
+
+        int avcCStart = beginBox(buf, "avcC");
+        buf.put((byte) 1);          // configuration version
+        buf.put(sps[1]);            // profile
+        buf.put(sps[2]);            // profile compatibility
+        buf.put(sps[3]);            // level
+        buf.put((byte) 0xff);       // 4-byte NAL lengths
+        buf.put((byte) 0xe1);       // one SPS
+        buf.putShort((short) sps.length);
+        buf.put(sps);
+        buf.put((byte) 1);          // one PPS
+        buf.putShort((short) pps.length);
+        buf.put(pps);
+        endBox(buf, avcCStart);
+
+        endBox(buf, avc1Start);
+    }
+
+    /**
+     * Starts a box.  Returns its offset, to be passed to endBox().
+     */
+    private static int beginBox(ByteBuffer buf, String type) {
+        int start = buf.position();
+        buf.putInt(0);      // size, filled in by endBox()
+        putFourCC(buf, type);
+        return start;
+    }
+
+    private static int beginFullBox(ByteBuffer buf, String type, int version, int flags) {
+        int start = beginBox(buf, type);
+        buf.putInt((version << 24) | (flags & 0xffffff));
+        return start;
+    }
+
+    private static void endBox(ByteBuffer buf, int start) {
+        buf.putInt(start, buf.position() - start);
+    }
+
+    private static void putFourCC(ByteBuffer buf, String type) {
+        buf.put(type.getBytes(ASCII));
+    }
+
+    private static void putZeros(ByteBuffer buf, int count) {
+        for (int i = 0; i < count; i++) {
+            buf.put((byte) 0);
+        }
+    }
+
+    private static void putIdentityMatrix(ByteBuffer buf) {
+        buf.putInt(0x00010000);
+        buf.putInt(0);
+        buf.putInt(0);
+        buf.putInt(0);
+        buf.putInt(0x00010000);
+        buf.putInt(0);
+        buf.putInt(0);
+        buf.putInt(0);
+        buf.putInt(0x40000000);
+    }
+
+    private void ensureHeaderCapacity(int capacity) {
+        if (mHeader.capacity() < capacity) {
+            mHeader = ByteBuffer.allocate(capacity);
+        }
+    }
+
+    private void ensureFragmentCapacity(int extra) {
+        if (mFragmentData.remaining() < extra) {
+            int newCapacity = Math.max(mFragmentData.capacity() * 2,
+                    mFragmentData.position() + extra);
+            ByteBuffer bigger = ByteBuffer.allocate(newCapacity);
+            mFragmentData.flip();
+            bigger.put(mFragmentData);
+            mFragmentData = bigger;
+        }
+    }
+
+    private void writeFully(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            mChannel.write(buf);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.process.RecordLib.encoder;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bounded, lock-free handoff of camera frames from the GL thread to the encoder thread.
+ * <p>
+ * One producer calls offer() for every frame; one consumer calls poll() to get the next
+ * frame to encode.  Frame data lives in a {@link FrameTransformRing}, so the producer never
+ * waits and never allocates.  If the consumer can't keep up, the {@link Policy} decides
+ * which frames it skips; the backlog can't grow past the ring's capacity either way.
+ * <p>
+ * The consumer is woken by a message, but only one is outstanding at a time: offer() says
+ * when one is needed, and rearm() says when the consumer should go around again.  This keeps
+ * the Looper's queue from filling up with frame messages when the encoder falls behind.
+ * <p>
+ * Counters may be read from any thread.
+ */
+public class FrameQueue {
+    /**
+     * Which frames to skip when more than one is waiting.
+     */
+    public enum Policy {
+        /** Encode only the newest frame; the ones before it are coalesced away. */
+        COALESCE_LATEST,
+        /** Encode every other waiting frame, halving the rate until the encoder catches up. */
+        DROP_ALTERNATE
+    }
+
+    private final FrameTransformRing mRing;
+    private final int mCapacity;
+    private final Policy mPolicy;
+    private final AtomicBoolean mWakeupPending = new AtomicBoolean();
+
+    // Number of frames published.  Written by the producer.
+    private volatile long mTail;
+
+    // ----- accessed only by the consumer thread -----
+    private long mCursor;
+
+    // ----- written by one thread, read by anyone -----
+    private volatile long mEnqueuedCount;
+    private volatile long mConsumedCount;
+    private volatile long mCoalescedCount;
+    private volatile long mDroppedCount;
+
+    /**
+     * @param capacity Number of frames that can be waiting; must be a power of two.
+     */
+    public FrameQueue(int capacity, Policy policy) {
+        mRing = new FrameTransformRing(capacity);
+        mCapacity = capacity;
+        mPolicy = policy;
+    }
+
+    /**
+     * Adds a frame.  (Call from producer thread.)
+     *
+     * @param matrix 4x4 texture transform; copied.
+     * @param textureId Texture holding the frame; handed back by getLastTextureId().
+     * @param arrivalNanos When the producer got the frame (System.nanoTime()).
+     * @return True if the consumer needs to be woken up.
+     */
+    public boolean offer(float[] matrix, int textureId, long timestampNanos,
+            long arrivalNanos) {
+        long sequence = mRing.publish(matrix, textureId, timestampNanos, arrivalNanos);
+        mTail = sequence + 1;
+        mEnqueuedCount++;
+        return mWakeupPending.compareAndSet(false, true);
+    }
+
+    /**
+     * Returns the next frame to encode, as picked by the policy.  (Call from consumer thread.)
+     *
+     * @param matrix Receives the 4x4 texture transform.
+     * @return The frame's timestamp, or -1 if there's nothing waiting.
+     */
+    public long poll(float[] matrix) {
+        while (true) {
+            long tail = mTail;
+            if (mCursor >= tail) {
+                return -1;
+            }
+
+            long sequence;
+            if (mPolicy == Policy.COALESCE_LATEST) {
+                sequence = tail - 1;
+                mCoalescedCount += sequence - mCursor;
+            } else {
+                if (tail - mCursor > mCapacity) {
+                    // Lapped; those slots are gone.
+                    mDroppedCount += tail - mCapacity - mCursor;
+                    mCursor = tail - mCapacity;
+                }
+                sequence = mCursor;
+                if (tail - mCursor > 1) {
+                    mDroppedCount++;
+                    sequence++;
+                }
+            }
+            mCursor = sequence + 1;
+
+            long timestampNanos = mRing.read(sequence, matrix);
+            if (timestampNanos >= 0) {
+                mConsumedCount++;
+                return timestampNanos;
+            }
+            // Overwritten while we looked at it; a newer frame is there now.
+            mDroppedCount++;
+        }
+    }
+
+    /**
+     * Ends a round of polling.  (Call from consumer thread, after poll().)
+     *
+     * @return True if frames are still waiting and the consumer should wake itself up again.
+     *     False if it's idle, in which case the next offer() will ask for the wakeup.
+     */
+    public boolean rearm() {
+        mWakeupPending.set(false);
+        if (mCursor >= mTail) {
+            return false;
+        }
+        // A frame arrived in the meantime.  Unless offer() has already asked for a wakeup,
+        // it's on us.
+        return mWakeupPending.compareAndSet(false, true);
+    }
+
+    /**
+     * Returns the arrival time passed to offer() for the frame most recently returned by
+     * poll().  (Call from consumer thread.)
+     */
+    public long getLastArrivalNanos() {
+        return mRing.getLastReadArrivalNanos();
+    }
+
+    /**
+     * Returns the texture passed to offer() for the frame most recently returned by poll().
+     * (Call from consumer thread.)
+     */
+    public int getLastTextureId() {
+        return mRing.getLastReadTextureId();
+    }
+
+    public Policy getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * Returns the number of frames offered.
+     */
+    public long getEnqueuedCount() {
+        return mEnqueuedCount;
+    }
+
+    /**
+     * Returns the number of frames handed to the consumer.
+     */
+    public long getConsumedCount() {
+        return mConsumedCount;
+    }
+
+    /**
+     * Returns the number of frames skipped in favor of a newer one under
+     * {@link Policy#COALESCE_LATEST}.
+     */
+    public long getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    /**
+     * Returns the number of frames skipped under {@link Policy#DROP_ALTERNATE}, or lost to
+     * the ring wrapping around.
+     */
+    public long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    @Override
+    public String toString() {
+        return "FrameQueue " + mPolicy + ": enqueued=" + mEnqueuedCount + " consumed=" +
+                mConsumedCount + " coalesced=" + mCoalescedCount + " dropped=" + mDroppedCount;
+    }
+}
@@ -0,0 +1,132 @@
+package com.process.RecordLib.encoder;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed ring of texture / transform / timestamp slots, for handing frames from the thread
+ * that latches the SurfaceTexture to the encoder thread without allocating.
+ * <p>
+ * The producer writes each frame into the slot for its sequence number and sends the
+ * sequence number along (e.g. in a Message).  The consumer reads the slot back by sequence
+ * number.  If the consumer has fallen a whole ring behind, the slot has been reused, and
+ * read() says so rather than returning the newer frame's data.
+ * <p>
+ * Each slot is guarded by a stamp, seqlock style: odd while being written, even once
+ * complete.  The matrix is held as float bits in an atomic array, so the reads can't be
+ * reordered around the stamp checks.
+ * <p>
+ * One producer thread and one consumer thread.  All storage is allocated up front.
+ */
+class FrameTransformRing {
+    private static final int MATRIX_SIZE = 16;
+
+    private final int mMask;
+    private final AtomicLongArray mStamps;
+    private final AtomicLongArray mTimestamps;
+    private final AtomicLongArray mArrivals;
+    private final AtomicIntegerArray mTextures;
+    private final AtomicIntegerArray mMatrices;
+
+    // ----- accessed only by the producer thread -----
+    private long mNextSequence;
+
+    // ----- accessed only by the consumer thread -----
+    private long mDroppedCount;
+    private long mLastReadArrivalNanos;
+    private int mLastReadTextureId;
+
+    /**
+     * @param capacity Number of slots; must be a power of two.
+     */
+    public FrameTransformRing(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("capacity must be a power of 2: " + capacity);
+        }
+        mMask = capacity - 1;
+        mStamps = new AtomicLongArray(capacity);
+        mTimestamps = new AtomicLongArray(capacity);
+        mArrivals = new AtomicLongArray(capacity);
+        mTextures = new AtomicIntegerArray(capacity);
+        mMatrices = new AtomicIntegerArray(capacity * MATRIX_SIZE);
+    }
+
+    /**
+     * Stores a frame in the next slot.  (Call from producer thread.)
+     *
+     * @param matrix 4x4 texture transform; copied.
+     * @param textureId Texture holding the frame; opaque to the ring.
+     * @param arrivalNanos When the producer got the frame (System.nanoTime()).
+     * @return The frame's sequence number, to be passed to read().
+     */
+    public long publish(float[] matrix, int textureId, long timestampNanos,
+            long arrivalNanos) {
+        long sequence = mNextSequence++;
+        int slot = (int) (sequence & mMask);
+        int base = slot * MATRIX_SIZE;
+
+        mStamps.set(slot, sequence * 2 + 1);        // writing
+        for (int i = 0; i < MATRIX_SIZE; i++) {
+            mMatrices.set(base + i, Float.floatToRawIntBits(matrix[i]));
+        }
+        mTextures.set(slot, textureId);
+        mTimestamps.set(slot, timestampNanos);
+        mArrivals.set(slot, arrivalNanos);
+        mStamps.set(slot, sequence * 2 + 2);        // complete
+        return sequence;
+    }
+
+    /**
+     * Copies a frame out of its slot.  (Call from consumer thread.)
+     *
+     * @param matrix Receives the 4x4 texture transform.
+     * @return The frame's timestamp, or -1 if the slot has since been reused.
+     */
+    public long read(long sequence, float[] matrix) {
+        int slot = (int) (sequence & mMask);
+        int base = slot * MATRIX_SIZE;
+        long expected = sequence * 2 + 2;
+
+        if (mStamps.get(slot) != expected) {
+            mDroppedCount++;
+            return -1;
+        }
+        for (int i = 0; i < MATRIX_SIZE; i++) {
+            matrix[i] = Float.intBitsToFloat(mMatrices.get(base + i));
+        }
+        long timestampNanos = mTimestamps.get(slot);
+        long arrivalNanos = mArrivals.get(slot);
+        int textureId = mTextures.get(slot);
+        if (mStamps.get(slot) != expected) {
+            // Overwritten while we were copying.
+            mDroppedCount++;
+            return -1;
+        }
+        mLastReadArrivalNanos = arrivalNanos;
+        mLastReadTextureId = textureId;
+        return timestampNanos;
+    }
+
+    /**
+     * Returns the arrival time of the frame most recently returned by read().  (Call from
+     * consumer thread.)
+     */
+    public long getLastReadArrivalNanos() {
+        return mLastReadArrivalNanos;
+    }
+
+    /**
+     * Returns the texture of the frame most recently returned by read().  (Call from consumer
+     * thread.)
+     */
+    public int getLastReadTextureId() {
+        return mLastReadTextureId;
+    }
+
+    /**
+     * Returns the number of reads that found their slot reused.  (Call from consumer thread.)
+     */
+    public long getDroppedCount() {
+        return mDroppedCount;
+    }
+}
@@ -0,0 +1,120 @@
+package com.process.RecordLib.encoder;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size histogram of durations, in nanoseconds.
+ * <p>
+ * Buckets are log-linear: each power of two from 1us up is split into eight, so a
+ * reported percentile is within about 6% of the real value.  Anything under 1us lands in
+ * the first bucket, anything over ~17s in the last.
+ * <p>
+ * record() may be called from any number of threads at once.  It doesn't allocate or
+ * lock.  Reads are not a consistent snapshot while records are going on, which is fine for
+ * monitoring.
+ */
+public class LatencyHistogram {
+    private static final int MIN_EXPONENT = 10;         // 2^10 ns ~= 1us
+    private static final int MAX_EXPONENT = 34;         // 2^34 ns ~= 17s
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT =
+            1 + (MAX_EXPONENT - MIN_EXPONENT + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mTotalCount = new AtomicLong();
+    private final AtomicLong mMaxNanos = new AtomicLong();
+
+    /**
+     * Adds one duration.  Negative values are ignored.
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            return;
+        }
+        mCounts.incrementAndGet(bucketIndex(nanos));
+        mTotalCount.incrementAndGet();
+        long max;
+        while (nanos > (max = mMaxNanos.get())) {
+            if (mMaxNanos.compareAndSet(max, nanos)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of values recorded.
+     */
+    public long getCount() {
+        return mTotalCount.get();
+    }
+
+    /**
+     * Returns the largest value recorded, exactly.
+     */
+    public long getMaxNanos() {
+        return mMaxNanos.get();
+    }
+
+    /**
+     * Returns the value below which the given percentage of recorded values fall, or 0 if
+     * nothing has been recorded.
+     *
+     * @param percentile 0 to 100.
+     */
+    public long getPercentileNanos(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("bad percentile " + percentile);
+        }
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            total += mCounts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts.get(i);
+            if (seen >= target) {
+                return Math.min(bucketMidpoint(i), mMaxNanos.get());
+            }
+        }
+        return mMaxNanos.get();
+    }
+
+    /**
+     * Clears all counts.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts.set(i, 0);
+        }
+        mTotalCount.set(0);
+        mMaxNanos.set(0);
+    }
+
+    static int bucketIndex(long nanos) {
+        if (nanos < (1L << MIN_EXPONENT)) {
+            return 0;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int sub = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return 1 + (exponent - MIN_EXPONENT) * SUB_BUCKETS + sub;
+    }
+
+    static long bucketMidpoint(int index) {
+        if (index == 0) {
+            return (1L << MIN_EXPONENT) / 2;
+        }
+        int exponent = MIN_EXPONENT + (index - 1) / SUB_BUCKETS;
+        int sub = (index - 1) % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (SUB_BUCKETS + sub) * width + width / 2;
+    }
+}
@@ -0,0 +1,65 @@
+package com.process.RecordLib.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes the video track to a .mp4 file with MediaMuxer.
+ */
+public class Mp4Muxer implements VideoMuxer {
+    private static final String TAG = "Mp4Muxer";
+
+    private MediaMuxer mMuxer;
+    private int mTrackIndex = -1;
+    private boolean mStarted;
+    private int mSampleCount;
+
+    /**
+     * Creates the output file.  We can't add the video track and start() the muxer here,
+     * because we don't have the codec-specific data until the encoder has started.
+     */
+    public Mp4Muxer(File outputFile) throws IOException {
+        mMuxer = new MediaMuxer(outputFile.toString(),
+                MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+    }
+
+    @Override
+    public void start(MediaFormat format) {
+        if (mStarted) {
+            throw new RuntimeException("muxer already started");
+        }
+        mTrackIndex = mMuxer.addTrack(format);
+        mMuxer.start();
+        mStarted = true;
+    }
+
+    @Override
+    public void writeSampleData(ByteBuffer encodedData, MediaCodec.BufferInfo info) {
+        if (!mStarted) {
+            throw new RuntimeException("muxer hasn't started");
+        }
+        mMuxer.writeSampleData(mTrackIndex, encodedData, info);
+        mSampleCount++;
+    }
+
+    @Override
+    public void release() {
+        if (mMuxer == null) {
+            return;
+        }
+        // stop() throws an exception if you haven't fed it any data.
+        if (mStarted && mSampleCount > 0) {
+            mMuxer.stop();
+        } else {
+            Log.w(TAG, "no samples written, not stopping muxer");
+        }
+        mMuxer.release();
+        mMuxer = null;
+    }
+}
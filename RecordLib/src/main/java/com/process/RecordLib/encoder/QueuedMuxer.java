@@ -0,0 +1,387 @@
+package com.process.RecordLib.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Moves muxer writes off the thread that drains the encoder.
+ * <p>
+ * Each sample is copied into a pooled buffer and passed over a bounded queue to a writer
+ * thread, which forwards it to the real muxer.  A slow storage write then only backs up the
+ * queue, not the codec (and, through it, the GL thread feeding the codec).
+ * <p>
+ * The pool holds as many packets as the queue, so once it's warmed up the steady state
+ * doesn't allocate.  What happens when the queue is full is up to the {@link OverflowPolicy}.
+ * <p>
+ * start(), writeSampleData() and release() may come from different threads (in async output
+ * mode the codec's callback thread writes, and the encoder thread starts and releases), but
+ * the calls must not overlap, and each must happen-before the next.  VideoEncoderCore
+ * arranges that through its output lock.  The statistics may be read from any thread.
+ */
+public class QueuedMuxer implements VideoMuxer {
+    private static final String TAG = "QueuedMuxer";
+    private static final boolean VERBOSE = false;
+
+    // Pooled packet buffers start at this size, and grow if a bigger sample shows up.
+    private static final int MIN_PACKET_CAPACITY = 64 * 1024;
+
+    /**
+     * What to do with a sample when the queue is full.
+     */
+    public enum OverflowPolicy {
+        /** Wait for the writer to catch up. */
+        BLOCK,
+        /**
+         * Drop samples that don't affect decoding of later ones.  A non-reference frame
+         * (nal_ref_idc == 0 on its slices) is dropped on its own.  Dropping a reference frame
+         * breaks the frames that follow, so we drop everything up to the next sync frame too.
+         * Sync frames are never dropped; we wait for room instead.  AVC only: other codecs'
+         * NAL headers are laid out differently.
+         */
+        DROP_NON_REFERENCE,
+        /** Throw an exception. */
+        FAIL_FAST
+    }
+
+    private static final int TYPE_FORMAT = 0;
+    private static final int TYPE_SAMPLE = 1;
+    private static final int TYPE_END = 2;
+
+    /**
+     * One entry in the queue.
+     */
+    private static class Packet {
+        int mType;
+        ByteBuffer mData;
+        final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+        MediaFormat mFormat;
+    }
+
+    private final VideoMuxer mTarget;
+    private final OverflowPolicy mPolicy;
+    private final int mCapacity;
+    private final ArrayBlockingQueue<Packet> mQueue;
+    private final ArrayBlockingQueue<Packet> mFreePackets;
+    private final Thread mWriterThread;
+
+    // ----- accessed only by the producer thread -----
+    private boolean mDroppingUntilSync;
+
+    // ----- written by one thread, read by anyone -----
+    private volatile RuntimeException mWriterFailure;
+    private volatile int mMaxQueueDepth;
+    private volatile long mDroppedCount;
+    private volatile long mWrittenCount;
+    private volatile long mLastWriteNanos;
+    private volatile long mMaxWriteNanos;
+    private volatile long mTotalWriteNanos;
+
+    // ----- set by any thread, used by the writer thread -----
+    private volatile BitrateController mBitrateController;
+
+    /**
+     * Starts the writer thread.
+     *
+     * @param target The muxer that receives the samples.  Called only from the writer thread.
+     * @param capacity Maximum number of samples waiting to be written.
+     * @param policy What to do when the queue is full.
+     */
+    public QueuedMuxer(VideoMuxer target, int capacity, OverflowPolicy policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        mTarget = target;
+        mPolicy = policy;
+        mCapacity = capacity;
+
+        // Two extra slots for the format and end packets, so those never wait.
+        mQueue = new ArrayBlockingQueue<Packet>(capacity + 2);
+        mFreePackets = new ArrayBlockingQueue<Packet>(capacity);
+        for (int i = 0; i < capacity; i++) {
+            Packet packet = new Packet();
+            packet.mType = TYPE_SAMPLE;
+            mFreePackets.add(packet);
+        }
+
+        mWriterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writerLoop();
+            }
+        }, "QueuedMuxer-writer");
+        mWriterThread.start();
+    }
+
+    /**
+     * Reports how long each write to the target muxer takes to "controller", from the writer
+     * thread.  May be null.
+     */
+    public void setBitrateController(BitrateController controller) {
+        mBitrateController = controller;
+    }
+
+    @Override
+    public void start(MediaFormat format) {
+        Packet packet = new Packet();
+        packet.mType = TYPE_FORMAT;
+        packet.mFormat = format;
+        mQueue.add(packet);
+    }
+
+    @Override
+    public void writeSampleData(ByteBuffer encodedData, MediaCodec.BufferInfo info) {
+        RuntimeException failure = mWriterFailure;
+        if (failure != null) {
+            throw new RuntimeException("muxer writer failed", failure);
+        }
+
+        boolean isSync = (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+        if (mDroppingUntilSync) {
+            if (!isSync) {
+                mDroppedCount++;
+                return;
+            }
+            mDroppingUntilSync = false;
+        }
+
+        Packet packet = mFreePackets.poll();
+        if (packet == null) {
+            packet = handleOverflow(encodedData, info, isSync);
+            if (packet == null) {
+                return;     // dropped
+            }
+        }
+
+        int size = info.size;
+        if (packet.mData == null || packet.mData.capacity() < size) {
+            packet.mData = ByteBuffer.allocateDirect(Math.max(size, MIN_PACKET_CAPACITY));
+        }
+        ByteBuffer data = packet.mData;
+        data.clear();
+        encodedData.limit(info.offset + size);
+        encodedData.position(info.offset);
+        data.put(encodedData);
+        data.flip();
+        packet.mInfo.set(0, size, info.presentationTimeUs, info.flags);
+
+        // Can't block: there are never more sample packets than queue slots.
+        mQueue.add(packet);
+        int depth = mQueue.size();
+        if (depth > mMaxQueueDepth) {
+            mMaxQueueDepth = depth;
+        }
+    }
+
+    /**
+     * Applies the overflow policy to a sample that arrived with the queue full.
+     *
+     * @return A free packet to use, or null if the sample was dropped.
+     */
+    private Packet handleOverflow(ByteBuffer encodedData, MediaCodec.BufferInfo info,
+            boolean isSync) {
+        switch (mPolicy) {
+            case BLOCK:
+                return takeFreePacket();
+            case DROP_NON_REFERENCE:
+                if (isSync) {
+                    return takeFreePacket();
+                }
+                mDroppedCount++;
+                if (isReferenceFrame(encodedData, info)) {
+                    mDroppingUntilSync = true;
+                }
+                if (VERBOSE) Log.d(TAG, "queue full, dropped pts=" + info.presentationTimeUs);
+                return null;
+            case FAIL_FAST:
+                throw new IllegalStateException("muxer queue full (" + mFreePackets.size() +
+                        " free, depth " + mQueue.size() + ")");
+            default:
+                throw new RuntimeException("Unknown policy " + mPolicy);
+        }
+    }
+
+    private Packet takeFreePacket() {
+        while (true) {
+            try {
+                return mFreePackets.take();
+            } catch (InterruptedException ie) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Returns true unless the first slice of an Annex B sample has nal_ref_idc == 0.  Only
+     * slices (NAL types 1 and 5) count: encoders commonly put an access unit delimiter or
+     * SEI in front, and those always have nal_ref_idc == 0 whatever the frame is.  When in
+     * doubt we say yes, which is the safe answer for the caller.
+     */
+    static boolean isReferenceFrame(ByteBuffer data, MediaCodec.BufferInfo info) {
+        int end = info.offset + info.size;
+        int pos = findNalUnit(data, info.offset, end);
+        while (pos >= 0) {
+            int nalHeader = data.get(pos) & 0xff;
+            int nalType = nalHeader & 0x1f;
+            if (nalType == 1 || nalType == 5) {
+                return ((nalHeader >> 5) & 0x03) != 0;
+            }
+            pos = findNalUnit(data, pos + 1, end);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the offset of the header byte of the first NAL unit whose start code
+     * (00 00 01, possibly with a leading zero) begins at or after pos, or -1 if there isn't
+     * one before end.  Emulation prevention keeps start codes out of the payloads, so this
+     * can't be fooled by slice data.
+     */
+    private static int findNalUnit(ByteBuffer data, int pos, int end) {
+        for (int i = pos; i + 3 < end; i++) {
+            if ((data.get(i + 2) & 0xff) > 1) {
+                i += 2;         // none of the three can start a start code
+            } else if (data.get(i) == 0 && data.get(i + 1) == 0 && data.get(i + 2) == 1) {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void release() {
+        Packet packet = new Packet();
+        packet.mType = TYPE_END;
+        mQueue.add(packet);
+        try {
+            mWriterThread.join();
+        } catch (InterruptedException ie) {
+            Log.w(TAG, "writer thread join() was interrupted", ie);
+        }
+        Log.d(TAG, "released: written=" + mWrittenCount + " dropped=" + mDroppedCount +
+                " maxDepth=" + mMaxQueueDepth + " avgWriteUs=" + getAverageWriteNanos() / 1000 +
+                " maxWriteUs=" + mMaxWriteNanos / 1000);
+    }
+
+    /**
+     * Writer thread body.  Runs until it sees the end packet.
+     */
+    private void writerLoop() {
+        while (true) {
+            Packet packet;
+            try {
+                packet = mQueue.take();
+            } catch (InterruptedException ie) {
+                continue;
+            }
+
+            if (packet.mType == TYPE_END) {
+                try {
+                    mTarget.release();
+                } catch (RuntimeException re) {
+                    Log.e(TAG, "muxer release failed", re);
+                }
+                return;
+            }
+
+            if (mWriterFailure == null) {
+                try {
+                    if (packet.mType == TYPE_FORMAT) {
+                        mTarget.start(packet.mFormat);
+                    } else {
+                        writePacket(packet);
+                    }
+                } catch (RuntimeException re) {
+                    // Keep taking packets, so the producer doesn't wait forever on the pool;
+                    // it'll see the failure on its next write.
+                    Log.e(TAG, "muxer write failed", re);
+                    mWriterFailure = re;
+                }
+            }
+
+            if (packet.mType == TYPE_SAMPLE) {
+                mFreePackets.add(packet);
+            }
+        }
+    }
+
+    private void writePacket(Packet packet) {
+        long startNanos = System.nanoTime();
+        mTarget.writeSampleData(packet.mData, packet.mInfo);
+        long elapsed = System.nanoTime() - startNanos;
+
+        mLastWriteNanos = elapsed;
+        mTotalWriteNanos += elapsed;
+        if (elapsed > mMaxWriteNanos) {
+            mMaxWriteNanos = elapsed;
+        }
+        mWrittenCount++;
+        BitrateController controller = mBitrateController;
+        if (controller != null) {
+            controller.onSampleWritten(elapsed);
+        }
+        if (VERBOSE) {
+            Log.d(TAG, "wrote " + packet.mInfo.size + " bytes in " + elapsed / 1000 + "us");
+        }
+    }
+
+    /**
+     * Returns the number of packets waiting to be written.
+     */
+    public int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    /**
+     * Returns the number of samples the queue holds when full.
+     */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Returns the deepest the queue has been.
+     */
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    /**
+     * Returns the number of samples dropped under {@link OverflowPolicy#DROP_NON_REFERENCE}.
+     */
+    public long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * Returns the number of samples handed to the target muxer.
+     */
+    public long getWrittenCount() {
+        return mWrittenCount;
+    }
+
+    /**
+     * Returns how long the most recent target write took, in nanoseconds.
+     */
+    public long getLastWriteNanos() {
+        return mLastWriteNanos;
+    }
+
+    /**
+     * Returns the longest target write, in nanoseconds.
+     */
+    public long getMaxWriteNanos() {
+        return mMaxWriteNanos;
+    }
+
+    /**
+     * Returns the mean target write time, in nanoseconds.
+     */
+    public long getAverageWriteNanos() {
+        long count = mWrittenCount;
+        return count == 0 ? 0 : mTotalWriteNanos / count;
+    }
+}
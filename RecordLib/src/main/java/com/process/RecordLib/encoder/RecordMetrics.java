@@ -0,0 +1,137 @@
+package com.process.RecordLib.encoder;
+
+import com.process.RecordLib.IRecordMetrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects per-frame latencies through the record pipeline into {@link LatencyHistogram}s.
+ * <p>
+ * The first few stages all happen on the encoder thread, and are recorded together by
+ * recordFrame().  The codec output arrives later, possibly on another thread, and only
+ * carries the presentation time.  To connect the two, recordFrame() leaves the frame's
+ * swap time in a small ring keyed by presentation time, where recordOutput() finds it.
+ * If the ring wraps before the output shows up, that frame is left out of the later stages.
+ * <p>
+ * All timestamps are System.nanoTime().  The SurfaceTexture timestamp is assumed to use the
+ * same clock, which is true for camera frames on the devices we've seen; values that don't
+ * make sense (negative, or over ten seconds) are skipped rather than recorded.
+ * <p>
+ * Nothing here allocates after construction.  Safe to use from multiple threads.
+ */
+public class RecordMetrics implements IRecordMetrics {
+    private static final int IN_FLIGHT_SIZE = 64;       // power of 2
+    private static final long EMPTY = Long.MIN_VALUE;
+    private static final long MAX_SANE_NANOS = 10000000000L;
+
+    private final LatencyHistogram[] mHistograms;
+
+    // In-flight frames, keyed by presentation time in usec.  A slot is claimed by writing
+    // its key last, and released by CAS-ing the key back to EMPTY.
+    private final AtomicLongArray mInFlightKeys = new AtomicLongArray(IN_FLIGHT_SIZE);
+    private final AtomicLongArray mInFlightSwapNanos = new AtomicLongArray(IN_FLIGHT_SIZE);
+    private final AtomicLongArray mInFlightCameraNanos = new AtomicLongArray(IN_FLIGHT_SIZE);
+
+    public RecordMetrics() {
+        Stage[] stages = Stage.values();
+        mHistograms = new LatencyHistogram[stages.length];
+        for (int i = 0; i < stages.length; i++) {
+            mHistograms[i] = new LatencyHistogram();
+        }
+        for (int i = 0; i < IN_FLIGHT_SIZE; i++) {
+            mInFlightKeys.set(i, EMPTY);
+        }
+    }
+
+    /**
+     * Records the stages up to swapBuffers() for one frame.  (Call from encoder thread.)
+     *
+     * @param cameraNanos SurfaceTexture timestamp.
+     * @param drawNanos When onDrawFrame() started.
+     * @param encoderNanos When the encoder thread picked up the frame.
+     * @param swapNanos When swapBuffers() returned.
+     * @param ptsUs Presentation time the codec will report for this frame.
+     */
+    public void recordFrame(long cameraNanos, long drawNanos, long encoderNanos,
+            long swapNanos, long ptsUs) {
+        recordSane(Stage.CAMERA_TO_DRAW, drawNanos - cameraNanos);
+        recordSane(Stage.DRAW_TO_ENCODER, encoderNanos - drawNanos);
+        recordSane(Stage.ENCODER_TO_SWAP, swapNanos - encoderNanos);
+
+        int slot = slotFor(ptsUs);
+        mInFlightKeys.set(slot, EMPTY);
+        mInFlightSwapNanos.set(slot, swapNanos);
+        mInFlightCameraNanos.set(slot, cameraNanos);
+        mInFlightKeys.set(slot, ptsUs);
+    }
+
+    /**
+     * Records the stages after the codec for one frame.  (Call from the thread that
+     * handles codec output.)
+     *
+     * @param ptsUs Presentation time from the codec.
+     * @param dequeueNanos When the output buffer was received.
+     * @param writtenNanos When the muxer write returned.
+     */
+    public void recordOutput(long ptsUs, long dequeueNanos, long writtenNanos) {
+        recordSane(Stage.OUTPUT_TO_MUXER, writtenNanos - dequeueNanos);
+
+        int slot = slotFor(ptsUs);
+        if (mInFlightKeys.get(slot) != ptsUs) {
+            return;
+        }
+        long swapNanos = mInFlightSwapNanos.get(slot);
+        long cameraNanos = mInFlightCameraNanos.get(slot);
+        if (!mInFlightKeys.compareAndSet(slot, ptsUs, EMPTY)) {
+            return;     // reused while we were reading it
+        }
+        recordSane(Stage.SWAP_TO_OUTPUT, dequeueNanos - swapNanos);
+        recordSane(Stage.TOTAL, writtenNanos - cameraNanos);
+    }
+
+    private void recordSane(Stage stage, long nanos) {
+        if (nanos >= 0 && nanos < MAX_SANE_NANOS) {
+            mHistograms[stage.ordinal()].record(nanos);
+        }
+    }
+
+    private static int slotFor(long ptsUs) {
+        long hash = ptsUs * 0x9e3779b97f4a7c15L;
+        return (int) (hash >>> 32) & (IN_FLIGHT_SIZE - 1);
+    }
+
+    @Override
+    public long getLatencyNanos(Stage stage, double percentile) {
+        return mHistograms[stage.ordinal()].getPercentileNanos(percentile);
+    }
+
+    @Override
+    public long getMaxLatencyNanos(Stage stage) {
+        return mHistograms[stage.ordinal()].getMaxNanos();
+    }
+
+    @Override
+    public long getFrameCount(Stage stage) {
+        return mHistograms[stage.ordinal()].getCount();
+    }
+
+    @Override
+    public void reset() {
+        for (LatencyHistogram histogram : mHistograms) {
+            histogram.reset();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("RecordMetrics (us, p50/p95/p99/max):");
+        for (Stage stage : Stage.values()) {
+            sb.append(' ').append(stage).append('=')
+                    .append(getLatencyNanos(stage, 50) / 1000).append('/')
+                    .append(getLatencyNanos(stage, 95) / 1000).append('/')
+                    .append(getLatencyNanos(stage, 99) / 1000).append('/')
+                    .append(getMaxLatencyNanos(stage) / 1000);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,166 @@
+package com.process.RecordLib.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Splits one encoded stream across a series of output files.
+ * <p>
+ * Once the current segment reaches its duration or size limit, the next sync frame starts a
+ * new segment, so every file begins with a sync frame and plays on its own.  The encoder
+ * keeps running across the switch; nothing is dropped at the boundaries.
+ * <p>
+ * With a long I-frame interval the segment would overshoot its limit by up to a GOP, so
+ * when the limit is reached we ask for a sync frame through the {@link SyncFrameRequester}
+ * if one was set.
+ * <p>
+ * Finishing a segment (e.g. MediaMuxer.stop()) happens on the calling thread.  Put a
+ * {@link QueuedMuxer} in front of this to keep that off the encoder thread.
+ */
+public class SegmentedMuxer implements VideoMuxer {
+    private static final String TAG = "SegmentedMuxer";
+    private static final boolean VERBOSE = false;
+
+    /**
+     * Creates the muxer for each segment.
+     */
+    public interface Factory {
+        /**
+         * Returns a new, unstarted muxer for segment number "index" (starting from 0).
+         */
+        VideoMuxer createMuxer(int index) throws IOException;
+    }
+
+    /**
+     * Asks the encoder for a sync frame.  Called from the thread that writes samples.
+     */
+    public interface SyncFrameRequester {
+        void requestSyncFrame();
+    }
+
+    private final Factory mFactory;
+    private final long mMaxDurationUs;
+    private final long mMaxBytes;
+    private volatile SyncFrameRequester mSyncFrameRequester;
+
+    private MediaFormat mFormat;
+    private VideoMuxer mCurrent;
+    private int mSegmentIndex = -1;
+    private long mSegmentStartUs;
+    private long mSegmentBytes;
+    private boolean mSyncFrameRequested;
+
+    /**
+     * @param factory Creates a muxer for each segment.
+     * @param maxDurationUs Start a new segment after this much video; 0 for no limit.
+     * @param maxBytes Start a new segment after this much data; 0 for no limit.
+     */
+    public SegmentedMuxer(Factory factory, long maxDurationUs, long maxBytes) {
+        if (maxDurationUs < 0 || maxBytes < 0) {
+            throw new IllegalArgumentException("bad limits: " + maxDurationUs + "us " +
+                    maxBytes + " bytes");
+        }
+        mFactory = factory;
+        mMaxDurationUs = maxDurationUs;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Sets the object used to ask for a sync frame when a segment is full.  May be null.
+     */
+    public void setSyncFrameRequester(SyncFrameRequester requester) {
+        mSyncFrameRequester = requester;
+    }
+
+    /**
+     * Returns the index of the segment being written, or -1 before the first sample.
+     */
+    public int getSegmentIndex() {
+        return mSegmentIndex;
+    }
+
+    @Override
+    public void start(MediaFormat format) {
+        // The segment muxers are started on their first sync frame.
+        mFormat = format;
+    }
+
+    @Override
+    public void writeSampleData(ByteBuffer encodedData, MediaCodec.BufferInfo info) {
+        if (mFormat == null) {
+            throw new RuntimeException("muxer hasn't started");
+        }
+        boolean isSync = (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+
+        if (mCurrent == null || (isSync && isSegmentFull(info.presentationTimeUs))) {
+            if (!isSync) {
+                // Can't start a file on a non-sync frame.  Shouldn't happen; the codec
+                // always leads with one.
+                Log.w(TAG, "dropping non-sync frame before first segment");
+                return;
+            }
+            nextSegment(info.presentationTimeUs);
+        } else if (!mSyncFrameRequested && isSegmentFull(info.presentationTimeUs)) {
+            SyncFrameRequester requester = mSyncFrameRequester;
+            if (requester != null) {
+                if (VERBOSE) Log.d(TAG, "segment " + mSegmentIndex + " full, requesting sync");
+                requester.requestSyncFrame();
+            }
+            mSyncFrameRequested = true;
+        }
+
+        mCurrent.writeSampleData(encodedData, info);
+        mSegmentBytes += info.size;
+    }
+
+    @Override
+    public void release() {
+        if (mCurrent != null) {
+            mCurrent.release();
+            mCurrent = null;
+        }
+    }
+
+    private boolean isSegmentFull(long ptsUs) {
+        return (mMaxDurationUs > 0 && ptsUs - mSegmentStartUs >= mMaxDurationUs) ||
+                (mMaxBytes > 0 && mSegmentBytes >= mMaxBytes);
+    }
+
+    private void nextSegment(long ptsUs) {
+        if (mCurrent != null) {
+            Log.d(TAG, "finishing segment " + mSegmentIndex + ": " + mSegmentBytes +
+                    " bytes, " + (ptsUs - mSegmentStartUs) / 1000 + "ms");
+            mCurrent.release();
+            mCurrent = null;
+        }
+        mSegmentIndex++;
+        try {
+            mCurrent = mFactory.createMuxer(mSegmentIndex);
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+        mCurrent.start(mFormat);
+        mSegmentStartUs = ptsUs;
+        mSegmentBytes = 0;
+        mSyncFrameRequested = false;
+    }
+
+    /**
+     * Returns the file for segment "index" of a recording to "baseFile".  The index goes
+     * in front of the extension, e.g. movie.mp4 becomes movie_003.mp4.
+     */
+    public static File getSegmentFile(File baseFile, int index) {
+        String name = baseFile.getName();
+        int dot = name.lastIndexOf('.');
+        String stem = (dot > 0) ? name.substring(0, dot) : name;
+        String ext = (dot > 0) ? name.substring(dot) : "";
+        return new File(baseFile.getParentFile(),
+                String.format(Locale.US, "%s_%03d%s", stem, index, ext));
+    }
+}
@@ -17,21 +17,29 @@
 package com.process.RecordLib.encoder;
 
 import android.graphics.SurfaceTexture;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
 import android.opengl.EGLContext;
 import android.opengl.GLES20;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.util.Log;
 
+import com.process.RecordLib.IRecordMetrics;
 import com.process.RecordLib.opengl.EglCore;
 import com.process.RecordLib.opengl.FullFrameRect;
+import com.process.RecordLib.opengl.GlUtil;
+import com.process.RecordLib.opengl.ProgramCache;
 import com.process.RecordLib.opengl.Texture2dProgram;
+import com.process.RecordLib.opengl.TextureHandoff;
 import com.process.RecordLib.opengl.WindowSurface;
 
 import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 
 /**
  * Encode a movie from frames rendered from an external texture image.
@@ -46,14 +54,21 @@ import java.lang.ref.WeakReference;
  * in question is a GLSurfaceView, we don't have full control over the EGL context creation
  * on that side, so we have to bend a bit backwards here.
  * <p>
+ * The encoder thread, codec, EGL context and shader program outlive a single recording.
+ * They're set up by prewarm() (or by the first startRecording()), and a recording only
+ * attaches an output file to them.  Recordings with different codec settings rebuild the
+ * codec.  Everything is torn down by release().
+ * <p>
  * To use:
  * <ul>
  * <li>create TextureMovieEncoder object
  * <li>create an EncoderConfig
+ * <li>optionally, call TextureMovieEncoder#prewarm() with the config ahead of time
  * <li>call TextureMovieEncoder#startRecording() with the config
  * <li>call TextureMovieEncoder#setTextureId() with the texture object that receives frames
  * <li>for each frame, after latching it with SurfaceTexture#updateTexImage(),
  *     call TextureMovieEncoder#frameAvailable().
+ * <li>call TextureMovieEncoder#release() when done with it
  * </ul>
  *
  * TODO: tweak the API (esp. textureId) so it's less awkward for simple use cases.
@@ -68,21 +83,64 @@ public class TextureMovieEncoder implements Runnable {
     private static final int MSG_SET_TEXTURE_ID = 3;
     private static final int MSG_UPDATE_SHARED_CONTEXT = 4;
     private static final int MSG_QUIT = 5;
+    private static final int MSG_PREWARM = 6;
+    private static final int MSG_PAUSE_RECORDING = 7;
+    private static final int MSG_RESUME_RECORDING = 8;
+
+    // Gap left between the last frame before a pause and the first one after, if we
+    // don't have a measured frame interval yet.
+    private static final long DEFAULT_FRAME_INTERVAL_NANOS =
+            1000000000L / VideoEncoderCore.DEFAULT_FRAME_RATE;
+
+    // Default number of frames in flight between frameAvailable() and the encoder thread.
+    // The encoder never has more than this many waiting; see FrameQueue.
+    private static final int DEFAULT_FRAME_QUEUE_SIZE = 8;
+
+    // Means "leave it to the codec" for the bit rate mode, quality, profile and level.
+    public static final int CODEC_DEFAULT = -1;
+
+    // Texture id meaning "the external texture from setTextureId()".  GL never hands out 0.
+    private static final int EXTERNAL_TEXTURE = 0;
 
     // ----- accessed exclusively by encoder thread -----
     private WindowSurface mInputWindowSurface;
+    private WindowSurface mProxyWindowSurface;  // null unless the config has a proxy
     private EglCore mEglCore;
+    private ProgramCache mProgramCache;         // for mEglCore's context
     private FullFrameRect mFullScreen;
+    private FullFrameRect mBlitFullScreen;      // TEXTURE_2D, for pre-rendered frames
     private int mTextureId;
     private int mFrameNum;
     private VideoEncoderCore mVideoEncoder;
+    private VideoEncoderCore mProxyEncoder;
+    private EncoderConfig mCodecConfig;         // settings mVideoEncoder was created with
+    private EGLContext mSharedContext;          // context mEglCore shares with
+    private BitrateController mBitrateController;   // null unless adaptive
+    private QueuedMuxer mOutputQueue;           // main output's writer queue, if any
+    private boolean mBitRateChanged;            // codec no longer at the configured rate
+    private boolean mRecording;                 // muxer attached to mVideoEncoder
+    private boolean mPaused;
+    private boolean mRebasePending;             // first frame after resume not seen yet
+    private long mTimestampOffsetNanos;         // total time spent paused
+    private long mLastFrameNanos;               // after rebasing
+    private long mFrameIntervalNanos;
+    private final float[] mDrawTransform = new float[16];
+
+    // ----- accessed exclusively by the thread calling frameAvailable() -----
+    private final float[] mLatchTransform = new float[16];
 
     // ----- accessed by multiple threads -----
+    private volatile FrameQueue mFrameQueue;     // replaced for each recording
+    private final RecordMetrics mMetrics = new RecordMetrics();
     private volatile EncoderHandler mHandler;
+    private volatile TextureHandoff mTextureHandoff;    // for 2D textures, if set
 
-    private Object mReadyFence = new Object();      // guards ready/running
+    private Object mReadyFence = new Object();      // guards ready/running/thread/pending
     private boolean mReady;
     private boolean mRunning;
+    private boolean mThreadStarted;
+    // Messages sent before the encoder thread's Handler exists.
+    private final ArrayList<Message> mPendingMessages = new ArrayList<Message>();
 
 
     /**
@@ -90,79 +148,533 @@ public class TextureMovieEncoder implements Runnable {
      * <p>
      * Object is immutable, which means we can safely pass it between threads without
      * explicit synchronization (and don't need to worry about it getting tweaked out from
-     * under us).
-     * <p>
-     * TODO: make frame rate and iframe interval configurable?  Maybe use builder pattern
-     *       with reasonable defaults for those and bit rate.
+     * under us).  Optional settings are made through {@link Builder}.
      */
     public static class EncoderConfig {
         final File mOutputFile;
         final int mWidth;
         final int mHeight;
         final int mBitRate;
+        final int mFrameRate;
+        final String mMimeType;
+        final int mBitrateMode;
+        final int mQuality;
+        final int mIFrameInterval;
+        final int mProfile;
+        final int mLevel;
+        final int mFrameQueueSize;
         final EGLContext mEglContext;
+        final File mProxyFile;
+        final int mProxyWidth;
+        final int mProxyHeight;
+        final int mProxyBitRate;
+        final boolean mAsyncOutput;
+        final FrameQueue.Policy mFramePolicy;
+        final boolean mFragmentedOutput;
+        final long mSegmentDurationUs;
+        final long mSegmentBytes;
+        final int mMuxerQueueCapacity;
+        final QueuedMuxer.OverflowPolicy mMuxerOverflowPolicy;
+        final int mMinBitRate;
+        final int mMaxBitRate;
 
         public EncoderConfig(File outputFile, int width, int height, int bitRate,
                 EGLContext sharedEglContext) {
-            mOutputFile = outputFile;
-            mWidth = width;
-            mHeight = height;
-            mBitRate = bitRate;
-            mEglContext = sharedEglContext;
+            this(new Builder(outputFile, width, height, bitRate, sharedEglContext));
+        }
+
+        private EncoderConfig(Builder builder) {
+            mOutputFile = builder.mOutputFile;
+            mWidth = builder.mWidth;
+            mHeight = builder.mHeight;
+            mBitRate = builder.mBitRate;
+            mFrameRate = builder.mFrameRate;
+            mMimeType = builder.mMimeType;
+            mBitrateMode = builder.mBitrateMode;
+            mQuality = builder.mQuality;
+            mIFrameInterval = builder.mIFrameInterval;
+            mProfile = builder.mProfile;
+            mLevel = builder.mLevel;
+            mFrameQueueSize = builder.mFrameQueueSize;
+            mEglContext = builder.mEglContext;
+            mProxyFile = builder.mProxyFile;
+            mProxyWidth = builder.mProxyWidth;
+            mProxyHeight = builder.mProxyHeight;
+            mProxyBitRate = builder.mProxyBitRate;
+            mAsyncOutput = builder.mAsyncOutput;
+            mFramePolicy = builder.mFramePolicy;
+            mFragmentedOutput = builder.mFragmentedOutput;
+            mSegmentDurationUs = builder.mSegmentDurationUs;
+            mSegmentBytes = builder.mSegmentBytes;
+            mMuxerQueueCapacity = builder.mMuxerQueueCapacity;
+            mMuxerOverflowPolicy = builder.mMuxerOverflowPolicy;
+            mMinBitRate = builder.mMinBitRate;
+            mMaxBitRate = builder.mMaxBitRate;
+        }
+
+        boolean hasProxy() {
+            return mProxyFile != null;
+        }
+
+        boolean isSegmented() {
+            return mSegmentDurationUs > 0 || mSegmentBytes > 0;
+        }
+
+        boolean hasAdaptiveBitrate() {
+            return mMaxBitRate > 0;
+        }
+
+        /**
+         * Creates the codec format for an output of the given size and bit rate; the rest
+         * comes from this configuration.
+         */
+        MediaFormat createFormat(int width, int height, int bitRate) {
+            MediaFormat format = VideoEncoderCore.createFormat(mMimeType, width, height,
+                    bitRate, mFrameRate, mIFrameInterval);
+            if (mBitrateMode != CODEC_DEFAULT) {
+                format.setInteger(MediaFormat.KEY_BITRATE_MODE, mBitrateMode);
+            }
+            if (mQuality != CODEC_DEFAULT && Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+                format.setInteger(MediaFormat.KEY_QUALITY, mQuality);
+            }
+            if (mProfile != CODEC_DEFAULT) {
+                format.setInteger(MediaFormat.KEY_PROFILE, mProfile);
+                // The level is only looked at along with a profile, and only from API 23.
+                if (mLevel != CODEC_DEFAULT && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                    format.setInteger(MediaFormat.KEY_LEVEL, mLevel);
+                }
+            }
+            return format;
         }
 
         @Override
         public String toString() {
-            return "EncoderConfig: " + mWidth + "x" + mHeight + " @" + mBitRate +
-                    " to '" + mOutputFile.toString() + "' ctxt=" + mEglContext;
+            return "EncoderConfig: " + mMimeType + " " + mWidth + "x" + mHeight + " @" +
+                    mBitRate + " " + mFrameRate + "fps gop=" + mIFrameInterval + "s" +
+                    (mBitrateMode != CODEC_DEFAULT ? " mode=" + mBitrateMode : "") +
+                    (mQuality != CODEC_DEFAULT ? " quality=" + mQuality : "") +
+                    (mProfile != CODEC_DEFAULT ? " profile=" + mProfile + "/" + mLevel : "") +
+                    " to '" + mOutputFile.toString() + "' ctxt=" + mEglContext +
+                    (hasProxy() ? " proxy " + mProxyWidth + "x" + mProxyHeight + " @" +
+                            mProxyBitRate + " to '" + mProxyFile + "'" : "") +
+                    (mAsyncOutput ? " async" : "") + " " + mFramePolicy + "/" +
+                    mFrameQueueSize +
+                    (mFragmentedOutput ? " fmp4" : "") +
+                    (isSegmented() ? " segments=" + mSegmentDurationUs / 1000000 + "s/" +
+                            mSegmentBytes + "B" : "") +
+                    (mMuxerQueueCapacity > 0 ?
+                            " queue=" + mMuxerQueueCapacity + "/" + mMuxerOverflowPolicy : "") +
+                    (hasAdaptiveBitrate() ?
+                            " adaptive=" + mMinBitRate + "-" + mMaxBitRate : "");
+        }
+
+        /**
+         * Builds an EncoderConfig.  The required values are taken by the constructor; the
+         * setters cover optional behavior, and default to what EncoderConfig's own
+         * constructor gives you.
+         */
+        public static class Builder {
+            private final File mOutputFile;
+            private final int mWidth;
+            private final int mHeight;
+            private final int mBitRate;
+            private final EGLContext mEglContext;
+            private int mFrameRate = VideoEncoderCore.DEFAULT_FRAME_RATE;
+            private String mMimeType = VideoEncoderCore.DEFAULT_MIME_TYPE;
+            private int mBitrateMode = CODEC_DEFAULT;
+            private int mQuality = CODEC_DEFAULT;
+            private int mIFrameInterval = VideoEncoderCore.DEFAULT_IFRAME_INTERVAL;
+            private int mProfile = CODEC_DEFAULT;
+            private int mLevel = CODEC_DEFAULT;
+            private int mFrameQueueSize = DEFAULT_FRAME_QUEUE_SIZE;
+            private File mProxyFile;
+            private int mProxyWidth;
+            private int mProxyHeight;
+            private int mProxyBitRate;
+            private boolean mAsyncOutput;
+            private FrameQueue.Policy mFramePolicy = FrameQueue.Policy.COALESCE_LATEST;
+            private boolean mFragmentedOutput;
+            private long mSegmentDurationUs;
+            private long mSegmentBytes;
+            private int mMuxerQueueCapacity;
+            private QueuedMuxer.OverflowPolicy mMuxerOverflowPolicy =
+                    QueuedMuxer.OverflowPolicy.BLOCK;
+            private int mMinBitRate;
+            private int mMaxBitRate;
+
+            public Builder(File outputFile, int width, int height, int bitRate,
+                    EGLContext sharedEglContext) {
+                mOutputFile = outputFile;
+                mWidth = width;
+                mHeight = height;
+                mBitRate = bitRate;
+                mEglContext = sharedEglContext;
+            }
+
+            /**
+             * Sets the frame rate the codec is configured for.  The default is
+             * {@link VideoEncoderCore#DEFAULT_FRAME_RATE}.
+             */
+            public Builder setFrameRate(int frameRate) {
+                if (frameRate <= 0) {
+                    throw new IllegalArgumentException("bad frame rate " + frameRate);
+                }
+                mFrameRate = frameRate;
+                return this;
+            }
+
+            /**
+             * Sets the codec, e.g. MediaFormat.MIMETYPE_VIDEO_HEVC.  The default is
+             * {@link VideoEncoderCore#DEFAULT_MIME_TYPE}.  Fragmented output only works
+             * with AVC.
+             */
+            public Builder setMimeType(String mimeType) {
+                if (mimeType == null || !mimeType.startsWith("video/")) {
+                    throw new IllegalArgumentException("bad mime type " + mimeType);
+                }
+                mMimeType = mimeType;
+                return this;
+            }
+
+            /**
+             * Sets the rate control mode, one of MediaCodecInfo.EncoderCapabilities
+             * BITRATE_MODE_*, or {@link #CODEC_DEFAULT}.  A mode the codec doesn't support
+             * is dropped, with a warning.  For BITRATE_MODE_CQ, see setQuality().
+             */
+            public Builder setBitrateMode(int mode) {
+                mBitrateMode = mode;
+                return this;
+            }
+
+            /**
+             * Sets the quality for constant-quality mode, on the codec's own scale (API 28
+             * and up; ignored before).  {@link #CODEC_DEFAULT} leaves it to the codec.
+             */
+            public Builder setQuality(int quality) {
+                mQuality = quality;
+                return this;
+            }
+
+            /**
+             * Sets the seconds between sync frames; 0 makes every frame a sync frame.  The
+             * default is {@link VideoEncoderCore#DEFAULT_IFRAME_INTERVAL}.  Segments can only
+             * start on a sync frame, so this also bounds how late a segment split can be.
+             */
+            public Builder setIFrameInterval(int seconds) {
+                if (seconds < 0) {
+                    throw new IllegalArgumentException("bad i-frame interval " + seconds);
+                }
+                mIFrameInterval = seconds;
+                return this;
+            }
+
+            /**
+             * Sets the codec profile and level, MediaCodecInfo.CodecProfileLevel values for
+             * the codec in use, or {@link #CODEC_DEFAULT}.  The level needs API 23, and is
+             * ignored without a profile.
+             */
+            public Builder setProfileLevel(int profile, int level) {
+                mProfile = profile;
+                mLevel = level;
+                return this;
+            }
+
+            /**
+             * Sets how many frames can wait between frameAvailable() and the encoder thread
+             * before the frame policy starts skipping them.  Must be a power of two.  See
+             * {@link FrameQueue}.
+             */
+            public Builder setFrameQueueSize(int size) {
+                if (size < 1 || (size & (size - 1)) != 0) {
+                    throw new IllegalArgumentException("frame queue size must be a power of 2: " +
+                            size);
+                }
+                mFrameQueueSize = size;
+                return this;
+            }
+
+            /**
+             * Records a second, usually smaller, file alongside the main one.  It has its own
+             * encoder, but is rendered from the same latched camera frame in the same EGL
+             * context.  The fragmented and queue settings apply to it too; segmenting doesn't.
+             */
+            public Builder setProxyOutput(File proxyFile, int width, int height, int bitRate) {
+                if (width <= 0 || height <= 0 || bitRate <= 0) {
+                    throw new IllegalArgumentException("bad proxy settings " + width + "x" +
+                            height + " @" + bitRate);
+                }
+                mProxyFile = proxyFile;
+                mProxyWidth = width;
+                mProxyHeight = height;
+                mProxyBitRate = bitRate;
+                return this;
+            }
+
+            /**
+             * Has the codec push its output to the muxer from its own thread, instead of
+             * draining it before every frame.  See {@link VideoEncoderCore}.
+             */
+            public Builder setAsyncOutput(boolean asyncOutput) {
+                mAsyncOutput = asyncOutput;
+                return this;
+            }
+
+            /**
+             * Chooses which camera frames to skip when the encoder falls behind.  The
+             * default is {@link FrameQueue.Policy#COALESCE_LATEST}.
+             */
+            public Builder setFramePolicy(FrameQueue.Policy policy) {
+                mFramePolicy = policy;
+                return this;
+            }
+
+            /**
+             * Writes fragmented MP4 instead of going through MediaMuxer, so the file stays
+             * playable up to the last GOP if recording is cut short.  See
+             * {@link FragmentedMp4Writer}.
+             */
+            public Builder setFragmentedOutput(boolean fragmentedOutput) {
+                mFragmentedOutput = fragmentedOutput;
+                return this;
+            }
+
+            /**
+             * Splits the recording into a series of files, starting a new one at the first
+             * sync frame after "maxDurationSec" seconds or "maxBytes" bytes, whichever comes
+             * first.  Zero disables a limit; both zero (the default) records a single file.
+             * <p>
+             * The files are named after the output file, e.g. movie_000.mp4, movie_001.mp4.
+             * See {@link SegmentedMuxer}.
+             */
+            public Builder setSegmentLimits(int maxDurationSec, long maxBytes) {
+                if (maxDurationSec < 0 || maxBytes < 0) {
+                    throw new IllegalArgumentException("bad segment limits " +
+                            maxDurationSec + "s " + maxBytes + "B");
+                }
+                mSegmentDurationUs = maxDurationSec * 1000000L;
+                mSegmentBytes = maxBytes;
+                return this;
+            }
+
+            /**
+             * Writes to the muxer from a separate thread, through a queue of up to "capacity"
+             * samples.  Zero (the default) writes directly from the encoder thread.  See
+             * {@link QueuedMuxer}.  DROP_NON_REFERENCE only understands AVC.
+             */
+            public Builder setMuxerQueue(int capacity, QueuedMuxer.OverflowPolicy policy) {
+                if (capacity < 0) {
+                    throw new IllegalArgumentException("bad capacity " + capacity);
+                }
+                mMuxerQueueCapacity = capacity;
+                mMuxerOverflowPolicy = policy;
+                return this;
+            }
+
+            /**
+             * Lets the main output's bit rate move between the given bounds while recording,
+             * following the output side: down when the muxer queue fills or writes get slow,
+             * back up when they recover.  Storage trouble then costs quality rather than
+             * frames.  The starting rate is the one given to the constructor.  Both zero (the
+             * default) keeps the rate fixed.  See {@link BitrateController}.
+             */
+            public Builder setAdaptiveBitrate(int minBitRate, int maxBitRate) {
+                if (minBitRate < 0 || minBitRate > maxBitRate) {
+                    throw new IllegalArgumentException("bad bit rate bounds " + minBitRate +
+                            "-" + maxBitRate);
+                }
+                mMinBitRate = minBitRate;
+                mMaxBitRate = maxBitRate;
+                return this;
+            }
+
+            /**
+             * Checks the settings against each other, and creates the configuration.
+             *
+             * @throws IllegalArgumentException if they don't go together.
+             */
+            public EncoderConfig build() {
+                if (mWidth <= 0 || mHeight <= 0 || mWidth % 2 != 0 || mHeight % 2 != 0) {
+                    throw new IllegalArgumentException("bad size " + mWidth + "x" + mHeight);
+                }
+                if (mBitRate <= 0) {
+                    throw new IllegalArgumentException("bad bit rate " + mBitRate);
+                }
+                if (mFragmentedOutput &&
+                        !VideoEncoderCore.DEFAULT_MIME_TYPE.equals(mMimeType)) {
+                    throw new IllegalArgumentException("fragmented output needs " +
+                            VideoEncoderCore.DEFAULT_MIME_TYPE + ", not " + mMimeType);
+                }
+                if (mLevel != CODEC_DEFAULT && mProfile == CODEC_DEFAULT) {
+                    throw new IllegalArgumentException("level " + mLevel + " without profile");
+                }
+                if (mMuxerQueueCapacity > 0 &&
+                        mMuxerOverflowPolicy == QueuedMuxer.OverflowPolicy.DROP_NON_REFERENCE &&
+                        !VideoEncoderCore.DEFAULT_MIME_TYPE.equals(mMimeType)) {
+                    // The NAL header check would misread other codecs' headers.
+                    throw new IllegalArgumentException(mMuxerOverflowPolicy + " needs " +
+                            VideoEncoderCore.DEFAULT_MIME_TYPE + ", not " + mMimeType);
+                }
+                if (mMaxBitRate > 0) {
+                    if (mMinBitRate == 0 || mBitRate < mMinBitRate || mBitRate > mMaxBitRate) {
+                        throw new IllegalArgumentException("bit rate " + mBitRate +
+                                " outside adaptive bounds " + mMinBitRate + "-" + mMaxBitRate);
+                    }
+                    if (mBitrateMode == MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ) {
+                        throw new IllegalArgumentException("no adaptive bit rate in CQ mode");
+                    }
+                }
+                return new EncoderConfig(this);
+            }
         }
     }
 
+    /**
+     * Sets up the encoder thread, codec, EGL context and program for recordings with this
+     * configuration, so that startRecording() doesn't have to.  The output file is ignored.
+     * (Call from non-encoder thread.)
+     * <p>
+     * Returns immediately.  Calling it again with a different EGL context or codec settings
+     * rebuilds whatever changed.
+     */
+    public void prewarm(EncoderConfig config) {
+        Log.d(TAG, "Encoder: prewarm()");
+        sendToEncoder(MSG_PREWARM, 0, config);
+    }
+
     /**
      * Tells the video recorder to start recording.  (Call from non-encoder thread.)
      * <p>
-     * Creates a new thread, which will create an encoder using the provided configuration.
+     * Starts the encoder thread if it isn't running yet.  If the encoder was prewarmed
+     * with matching settings, all that's left is creating the output file.
      * <p>
-     * Returns after the recorder thread has started and is ready to accept Messages.  The
-     * encoder may not yet be fully configured.
+     * Returns immediately, without waiting for the encoder thread.  Frames passed to
+     * frameAvailable() from now on are queued for the recording.
      */
     public void startRecording(EncoderConfig config) {
         Log.d(TAG, "Encoder: startRecording()");
         synchronized (mReadyFence) {
             if (mRunning) {
-                Log.w(TAG, "Encoder thread already running");
+                Log.w(TAG, "Encoder already recording");
                 return;
             }
             mRunning = true;
-            new Thread(this, "TextureMovieEncoder").start();
-            while (!mReady) {
-                try {
-                    mReadyFence.wait();
-                } catch (InterruptedException ie) {
-                    // ignore
-                }
-            }
+            mFrameQueue = new FrameQueue(config.mFrameQueueSize, config.mFramePolicy);
+            sendToEncoderLocked(MSG_START_RECORDING, 0, config);
         }
-
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_START_RECORDING, config));
     }
 
     /**
      * Tells the video recorder to stop recording.  (Call from non-encoder thread.)
      * <p>
      * Returns immediately; the encoder/muxer may not yet be finished creating the movie.
+     * The encoder stays warm for the next recording.
      * <p>
      * TODO: have the encoder thread invoke a callback on the UI thread just before it shuts down
      * so we can provide reasonable status UI (and let the caller know that movie encoding
      * has completed).
      */
     public void stopRecording() {
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_STOP_RECORDING));
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_QUIT));
-        // We don't know when these will actually finish (or even start).  We don't want to
+        sendToEncoder(MSG_STOP_RECORDING, 0, null);
+        // We don't know when this will actually finish (or even start).  We don't want to
         // delay the UI thread though, so we return immediately.
     }
 
+    /**
+     * Stops feeding frames to the recording, without finishing the file.  (Call from
+     * non-encoder thread.)  The codec and muxer stay up, and resumeRecording() continues the
+     * same file.  Has no effect unless recording.
+     */
+    public void pauseRecording() {
+        sendToEncoder(MSG_PAUSE_RECORDING, 0, null);
+    }
+
+    /**
+     * Continues a paused recording.  (Call from non-encoder thread.)  Timestamps are
+     * shifted so the file has no gap where the pause was.
+     */
+    public void resumeRecording() {
+        sendToEncoder(MSG_RESUME_RECORDING, 0, null);
+    }
+
+    /**
+     * Stops any recording in progress, releases the codec and EGL resources, and ends the
+     * encoder thread.  (Call from non-encoder thread.)  Returns immediately.
+     */
+    public void release() {
+        synchronized (mReadyFence) {
+            if (!mThreadStarted) {
+                return;
+            }
+            sendToEncoderLocked(MSG_QUIT, 0, null);
+        }
+    }
+
+    private void sendToEncoder(int what, int arg1, Object obj) {
+        synchronized (mReadyFence) {
+            sendToEncoderLocked(what, arg1, obj);
+        }
+    }
+
+    /**
+     * Sends a message to the encoder thread, starting the thread if needed.  If its Handler
+     * doesn't exist yet, the message is held until it does.
+     */
+    private void sendToEncoderLocked(int what, int arg1, Object obj) {
+        if (!mThreadStarted) {
+            mThreadStarted = true;
+            new Thread(this, "TextureMovieEncoder").start();
+        }
+        if (mHandler != null) {
+            mHandler.sendMessage(mHandler.obtainMessage(what, arg1, 0, obj));
+        } else {
+            Message msg = Message.obtain();
+            msg.what = what;
+            msg.arg1 = arg1;
+            msg.obj = obj;
+            mPendingMessages.add(msg);
+        }
+    }
+
+    /**
+     * Returns the number of frames passed to frameAvailable() during the current (or last)
+     * recording.  Together with the counts below, this shows the encoder's real throughput.
+     */
+    public long getEnqueuedFrameCount() {
+        FrameQueue queue = mFrameQueue;
+        return queue == null ? 0 : queue.getEnqueuedCount();
+    }
+
+    /**
+     * Returns the number of frames actually rendered to the encoder.
+     */
+    public long getEncodedFrameCount() {
+        FrameQueue queue = mFrameQueue;
+        return queue == null ? 0 : queue.getConsumedCount();
+    }
+
+    /**
+     * Returns the number of frames skipped in favor of a newer frame.
+     */
+    public long getCoalescedFrameCount() {
+        FrameQueue queue = mFrameQueue;
+        return queue == null ? 0 : queue.getCoalescedCount();
+    }
+
+    /**
+     * Returns the number of frames dropped because the encoder fell behind.
+     */
+    public long getDroppedFrameCount() {
+        FrameQueue queue = mFrameQueue;
+        return queue == null ? 0 : queue.getDroppedCount();
+    }
+
+    /**
+     * Returns per-stage frame latencies.  They accumulate across recordings until reset.
+     */
+    public IRecordMetrics getMetrics() {
+        return mMetrics;
+    }
+
     /**
      * Returns true if recording has been started.
      */
@@ -176,7 +688,7 @@ public class TextureMovieEncoder implements Runnable {
      * Tells the video recorder to refresh its EGL surface.  (Call from non-encoder thread.)
      */
     public void updateSharedContext(EGLContext sharedContext) {
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_UPDATE_SHARED_CONTEXT, sharedContext));
+        sendToEncoder(MSG_UPDATE_SHARED_CONTEXT, 0, sharedContext);
     }
 
     /**
@@ -193,14 +705,69 @@ public class TextureMovieEncoder implements Runnable {
      * stall the caller while this thread does work.
      */
     public void frameAvailable(SurfaceTexture st) {
+        frameAvailable(st, System.nanoTime());
+    }
+
+    /**
+     * Like {@link #frameAvailable(SurfaceTexture)}, with the time (System.nanoTime()) the
+     * caller started handling the frame, e.g. at the top of onDrawFrame().  Used for the
+     * latency metrics.
+     */
+    public void frameAvailable(SurfaceTexture st, long drawStartNanos) {
+        frameAvailable(st, EXTERNAL_TEXTURE, drawStartNanos);
+    }
+
+    /**
+     * Tells the video recorder that a new frame is available, already rendered into a
+     * GL_TEXTURE_2D (e.g. a filtered framebuffer) in a context shared with ours.  The texture
+     * is drawn as-is, with an identity transform; the SurfaceTexture only supplies the
+     * timestamp.  (Call from non-encoder thread.)
+     * <p>
+     * The texture should come from the {@link TextureHandoff} given to setTextureHandoff(),
+     * queued with endWrite() under the SurfaceTexture's timestamp.  The handoff orders our
+     * reads against the caller's writes on the GPU, and a frame whose texture has been taken
+     * back by the time we get to it is skipped.  Without a handoff the texture is drawn
+     * directly, and keeping the two contexts apart is up to the caller.
+     *
+     * @param textureId The texture, or 0 to draw the external texture from setTextureId().
+     */
+    public void frameAvailable(SurfaceTexture st, int textureId, long drawStartNanos) {
+        frameAvailable(st, textureId, null, drawStartNanos);
+    }
+
+    /**
+     * Like {@link #frameAvailable(SurfaceTexture, int, long)}, with the texture transform
+     * to draw with, e.g. the SurfaceTexture's with a crop applied.  (Call from non-encoder
+     * thread.)
+     *
+     * @param texMatrix Transform for the texture, or null for the SurfaceTexture's own (for
+     *     the external texture) or identity (for a 2D texture).  Copied before returning.
+     */
+    public void frameAvailable(SurfaceTexture st, int textureId, float[] texMatrix,
+            long drawStartNanos) {
+        // handleQuit() clears mHandler once the thread is on its way out, so take what we
+        // need while the fence says it's still there.
+        EncoderHandler handler;
+        FrameQueue queue;
         synchronized (mReadyFence) {
-            if (!mReady) {
+            if (!mReady || !mRunning) {
                 return;
             }
+            handler = mHandler;
+            queue = mFrameQueue;
+        }
+        if (handler == null) {
+            return;
         }
 
-        float[] transform = new float[16];      // TODO - avoid alloc every frame
-        st.getTransformMatrix(transform);
+        float[] transform = mLatchTransform;
+        if (texMatrix != null) {
+            System.arraycopy(texMatrix, 0, transform, 0, transform.length);
+        } else if (textureId == EXTERNAL_TEXTURE) {
+            st.getTransformMatrix(transform);
+        } else {
+            System.arraycopy(GlUtil.IDENTITY_MATRIX, 0, transform, 0, transform.length);
+        }
         long timestamp = st.getTimestamp();
         if (timestamp == 0) {
             // Seeing this after device is toggled off/on with power button.  The
@@ -212,8 +779,11 @@ public class TextureMovieEncoder implements Runnable {
             return;
         }
 
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_FRAME_AVAILABLE,
-                (int) (timestamp >> 32), (int) timestamp, transform));
+        // The frame goes into a preallocated slot.  We only send a message if the encoder
+        // thread isn't already due to look at the queue.
+        if (queue.offer(transform, textureId, timestamp, drawStartNanos)) {
+            handler.sendMessage(handler.obtainMessage(MSG_FRAME_AVAILABLE));
+        }
     }
 
     /**
@@ -223,12 +793,26 @@ public class TextureMovieEncoder implements Runnable {
      * TODO: do something less clumsy
      */
     public void setTextureId(int id) {
+        EncoderHandler handler;
         synchronized (mReadyFence) {
             if (!mReady) {
                 return;
             }
+            handler = mHandler;
+        }
+        if (handler == null) {
+            return;
         }
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_SET_TEXTURE_ID, id, 0, null));
+        handler.sendMessage(handler.obtainMessage(MSG_SET_TEXTURE_ID, id, 0, null));
+    }
+
+    /**
+     * Sets the handoff that 2D textures passed to frameAvailable() come through, or null.
+     * Call from the thread that renders them, when it creates the handoff; it replaces any
+     * previous one.
+     */
+    public void setTextureHandoff(TextureHandoff handoff) {
+        mTextureHandoff = handoff;
     }
 
     /**
@@ -242,15 +826,23 @@ public class TextureMovieEncoder implements Runnable {
         Looper.prepare();
         synchronized (mReadyFence) {
             mHandler = new EncoderHandler(this);
+            for (Message msg : mPendingMessages) {
+                mHandler.sendMessage(msg);
+            }
+            mPendingMessages.clear();
             mReady = true;
-            mReadyFence.notify();
         }
         Looper.loop();
 
         Log.d(TAG, "Encoder thread exiting");
         synchronized (mReadyFence) {
             mReady = mRunning = false;
-            mHandler = null;
+            mThreadStarted = false;
+            if (!mPendingMessages.isEmpty()) {
+                // Something was sent while we were shutting down; it needs a new thread.
+                mThreadStarted = true;
+                new Thread(this, "TextureMovieEncoder").start();
+            }
         }
     }
 
@@ -277,16 +869,23 @@ public class TextureMovieEncoder implements Runnable {
             }
 
             switch (what) {
+                case MSG_PREWARM:
+                    encoder.preparePipeline((EncoderConfig) obj);
+                    break;
                 case MSG_START_RECORDING:
                     encoder.handleStartRecording((EncoderConfig) obj);
                     break;
                 case MSG_STOP_RECORDING:
                     encoder.handleStopRecording();
                     break;
+                case MSG_PAUSE_RECORDING:
+                    encoder.handlePauseRecording();
+                    break;
+                case MSG_RESUME_RECORDING:
+                    encoder.handleResumeRecording();
+                    break;
                 case MSG_FRAME_AVAILABLE:
-                    long timestamp = (((long) inputMessage.arg1) << 32) |
-                            (((long) inputMessage.arg2) & 0xffffffffL);
-                    encoder.handleFrameAvailable((float[]) obj, timestamp);
+                    encoder.handleFrameAvailable();
                     break;
                 case MSG_SET_TEXTURE_ID:
                     encoder.handleSetTexture(inputMessage.arg1);
@@ -295,7 +894,7 @@ public class TextureMovieEncoder implements Runnable {
                     encoder.handleUpdateSharedContext((EGLContext) inputMessage.obj);
                     break;
                 case MSG_QUIT:
-                    Looper.myLooper().quit();
+                    encoder.handleQuit();
                     break;
                 default:
                     throw new RuntimeException("Unhandled msg what=" + what);
@@ -304,13 +903,31 @@ public class TextureMovieEncoder implements Runnable {
     }
 
     /**
-     * Starts recording.
+     * Starts recording.  The pipeline is set up first, if prewarm() didn't already.
      */
     private void handleStartRecording(EncoderConfig config) {
         Log.d(TAG, "handleStartRecording " + config);
         mFrameNum = 0;
-        prepareEncoder(config.mEglContext, config.mWidth, config.mHeight, config.mBitRate,
-                config.mOutputFile);
+        mLastFrameNanos = -1;
+        mFrameIntervalNanos = 1000000000L / config.mFrameRate;
+        mTimestampOffsetNanos = 0;
+        mPaused = mRebasePending = false;
+        preparePipeline(config);
+        if (mBitRateChanged) {
+            // Left lowered (or raised) by the last recording's controller.
+            mVideoEncoder.setBitRate(config.mBitRate);
+            mBitRateChanged = false;
+        }
+        attachOutput(config);
+        if (config.hasAdaptiveBitrate()) {
+            mBitrateController = new BitrateController(config.mMinBitRate, config.mMaxBitRate,
+                    config.mBitRate, 1000000000L / config.mFrameRate);
+            if (mOutputQueue != null) {
+                mOutputQueue.setBitrateController(mBitrateController);
+            }
+        }
+        mVideoEncoder.setBitrateController(mBitrateController);
+        mRecording = true;
     }
 
     /**
@@ -319,27 +936,183 @@ public class TextureMovieEncoder implements Runnable {
      * The texture is rendered onto the encoder's input surface, along with a moving
      * box (just because we can).
      * <p>
-     * @param transform The texture transform, from SurfaceTexture.
-     * @param timestampNanos The frame's timestamp, from SurfaceTexture.
+     * We render one frame per message, so other messages (e.g. stop) aren't held up by a
+     * steady stream of frames.  If more are waiting, we post another message to ourselves.
      */
-    private void handleFrameAvailable(float[] transform, long timestampNanos) {
-        if (VERBOSE) Log.d(TAG, "handleFrameAvailable tr=" + transform);
-        mVideoEncoder.drainEncoder(false);
-        mFullScreen.drawFrame(mTextureId, transform);
+    private void handleFrameAvailable() {
+        long encoderNanos = System.nanoTime();
+        FrameQueue queue = mFrameQueue;
+        float[] transform = mDrawTransform;
+        long timestampNanos = queue.poll(transform);
+        if (queue.rearm()) {
+            mHandler.sendMessage(mHandler.obtainMessage(MSG_FRAME_AVAILABLE));
+        }
+        if (timestampNanos < 0 || !mRecording || mPaused) {
+            return;
+        }
+        long cameraNanos = timestampNanos;
+        if (mRebasePending) {
+            // Pick up one frame interval after where we left off.
+            mTimestampOffsetNanos = timestampNanos - (mLastFrameNanos + mFrameIntervalNanos);
+            mRebasePending = false;
+            Log.d(TAG, "resumed, timestamp offset now " + mTimestampOffsetNanos + "ns");
+        }
+        timestampNanos -= mTimestampOffsetNanos;
+        if (timestampNanos <= mLastFrameNanos) {
+            // Latched before the pause but delivered after; it would go backward.
+            if (VERBOSE) Log.d(TAG, "dropping out-of-order frame ts=" + timestampNanos);
+            return;
+        }
+
+        // Either the raw camera frame, or one the renderer has already filtered for us.  The
+        // renderer may have taken a filtered frame's texture back for a newer frame already.
+        int textureId = queue.getLastTextureId();
+        TextureHandoff handoff = null;
+        int handoffIndex = -1;
+        if (textureId != EXTERNAL_TEXTURE) {
+            handoff = mTextureHandoff;
+            if (handoff != null) {
+                handoffIndex = handoff.beginRead(textureId, cameraNanos);
+                if (handoffIndex < 0) {
+                    if (VERBOSE) Log.d(TAG, "dropping frame ts=" + timestampNanos +
+                            ", texture reused");
+                    return;
+                }
+            }
+        }
+
+        if (mLastFrameNanos >= 0) {
+            mFrameIntervalNanos = timestampNanos - mLastFrameNanos;
+        }
+        if (VERBOSE) Log.d(TAG, "handleFrameAvailable ts=" + timestampNanos);
+        mLastFrameNanos = timestampNanos;
+        mVideoEncoder.drainEncoder(false);      // no-op in async output mode
+
+        FullFrameRect rect = mFullScreen;
+        if (textureId == EXTERNAL_TEXTURE) {
+            textureId = mTextureId;
+        } else {
+            if (mBlitFullScreen == null) {
+                mBlitFullScreen = new FullFrameRect(
+                        mProgramCache.get(Texture2dProgram.ProgramType.TEXTURE_2D), false);
+            }
+            rect = mBlitFullScreen;
+        }
+        GLES20.glViewport(0, 0, mInputWindowSurface.getWidth(),
+                mInputWindowSurface.getHeight());
+        rect.drawFrame(textureId, transform);
 
 //        drawBox(mFrameNum++);
 
         mInputWindowSurface.setPresentationTime(timestampNanos);
         mInputWindowSurface.swapBuffers();
+        long swapNanos = System.nanoTime();
+
+        if (mProxyWindowSurface != null) {
+            // Same texture, same transform; only the target and its size differ.
+            mProxyEncoder.drainEncoder(false);
+            mProxyWindowSurface.makeCurrent();
+            GLES20.glViewport(0, 0, mProxyWindowSurface.getWidth(),
+                    mProxyWindowSurface.getHeight());
+            rect.drawFrame(textureId, transform);
+            mProxyWindowSurface.setPresentationTime(timestampNanos);
+            mProxyWindowSurface.swapBuffers();
+            mInputWindowSurface.makeCurrent();
+        }
+        if (handoffIndex >= 0) {
+            handoff.endRead(handoffIndex);
+        }
+
+        if (mBitrateController != null) {
+            adjustBitrate(swapNanos);
+        }
+
+        // The codec reports presentation times in usec.
+        mMetrics.recordFrame(cameraNanos, queue.getLastArrivalNanos(), encoderNanos,
+                swapNanos, timestampNanos / 1000);
+    }
+
+    /**
+     * Passes the writer queue depth to the bit rate controller, and applies its decision.
+     * Most calls do nothing; it only reconsiders a couple of times a second.
+     */
+    private void adjustBitrate(long nowNanos) {
+        if (mOutputQueue != null) {
+            mBitrateController.onQueueDepth(mOutputQueue.getQueueDepth(),
+                    mOutputQueue.getCapacity());
+        }
+        if (mBitrateController.update(nowNanos)) {
+            Log.d(TAG, mBitrateController.toString());
+            mVideoEncoder.setBitRate(mBitrateController.getBitRate());
+            mBitRateChanged = true;
+        }
     }
 
     /**
      * Handles a request to stop encoding.
      */
     private void handleStopRecording() {
-        Log.d(TAG, "handleStopRecording");
-        mVideoEncoder.drainEncoder(true);
+        if (!mRecording) {
+            return;
+        }
+        Log.d(TAG, "handleStopRecording " + mFrameQueue);
+        Log.d(TAG, mMetrics.toString());
+        TextureHandoff handoff = mTextureHandoff;
+        if (handoff != null) {
+            Log.d(TAG, "frames skipped for reused textures: " + handoff.getSkippedCount());
+        }
+        long lastFrameUs = mLastFrameNanos < 0 ? -1 : mLastFrameNanos / 1000;
+        mVideoEncoder.detachMuxer(lastFrameUs);
+        if (mProxyEncoder != null) {
+            mProxyEncoder.detachMuxer(lastFrameUs);
+        }
+        if (mBitrateController != null) {
+            Log.d(TAG, mBitrateController.toString());
+            mVideoEncoder.setBitrateController(null);
+            mBitrateController = null;
+        }
+        mOutputQueue = null;
+        mRecording = false;
+        synchronized (mReadyFence) {
+            mRunning = false;
+        }
+    }
+
+    /**
+     * Stops rendering frames to the encoder.  The codec and muxer keep going.
+     */
+    private void handlePauseRecording() {
+        if (!mRecording || mPaused) {
+            return;
+        }
+        Log.d(TAG, "handlePauseRecording at " + mLastFrameNanos);
+        mPaused = true;
+    }
+
+    /**
+     * Starts rendering frames again; the first one sets the new timestamp offset.
+     */
+    private void handleResumeRecording() {
+        if (!mRecording || !mPaused) {
+            return;
+        }
+        Log.d(TAG, "handleResumeRecording");
+        mPaused = false;
+        // If nothing was recorded before the pause there's no gap to close.
+        mRebasePending = mLastFrameNanos >= 0;
+    }
+
+    /**
+     * Finishes any recording, releases everything, and ends the thread.
+     */
+    private void handleQuit() {
+        handleStopRecording();
         releaseEncoder();
+        synchronized (mReadyFence) {
+            mReady = false;
+            mHandler = null;
+        }
+        Looper.myLooper().quit();
     }
 
     /**
@@ -359,51 +1132,213 @@ public class TextureMovieEncoder implements Runnable {
      */
     private void handleUpdateSharedContext(EGLContext newSharedContext) {
         Log.d(TAG, "handleUpdatedSharedContext " + newSharedContext);
+        if (mEglCore == null) {
+            // Nothing built yet; preparePipeline() will use the context from the config.
+            return;
+        }
+        mSharedContext = newSharedContext;
 
         // Release the EGLSurface and EGLContext.
         mInputWindowSurface.releaseEglSurface();
+        if (mProxyWindowSurface != null) {
+            mProxyWindowSurface.releaseEglSurface();
+        }
         mFullScreen.release(false);
+        if (mBlitFullScreen != null) {
+            mBlitFullScreen.release(false);
+            mBlitFullScreen = null;                 // recreated on first use
+        }
+        mProgramCache.release(false);               // go away with the context
         mEglCore.release();
 
         // Create a new EGLContext and recreate the window surface.
         mEglCore = new EglCore(newSharedContext, EglCore.FLAG_RECORDABLE);
+        mProgramCache = new ProgramCache();
+        if (mProxyWindowSurface != null) {
+            mProxyWindowSurface.recreate(mEglCore);
+        }
         mInputWindowSurface.recreate(mEglCore);
         mInputWindowSurface.makeCurrent();
 
-        // Create new programs and such for the new context.
+        // Programs can't come along from the old context, so this compiles again.
         mFullScreen = new FullFrameRect(
-                new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_EXT));
+                mProgramCache.get(Texture2dProgram.ProgramType.TEXTURE_EXT), false);
     }
 
-    private void prepareEncoder(EGLContext sharedContext, int width, int height, int bitRate,
-            File outputFile) {
+    /**
+     * Makes sure the codec, EGL context, input surface and program are ready for recordings
+     * with this configuration.  Anything already set up with matching settings is kept.
+     */
+    private void preparePipeline(EncoderConfig config) {
+        // The view may have been recreated with a new context since we were last here.
+        if (mEglCore != null && !config.mEglContext.equals(mSharedContext)) {
+            handleUpdateSharedContext(config.mEglContext);
+        }
+        if (mVideoEncoder != null && !hasSameCodecSettings(mCodecConfig, config)) {
+            if (mRecording) {
+                Log.w(TAG, "codec settings changed while recording; ignoring " + config);
+                return;
+            }
+            Log.d(TAG, "codec settings changed, rebuilding encoder");
+            releaseInputSurface();
+            releaseCodecs();
+        }
+        if (mVideoEncoder == null) {
+            try {
+                mVideoEncoder = new VideoEncoderCore(
+                        config.createFormat(config.mWidth, config.mHeight, config.mBitRate),
+                        config.mAsyncOutput);
+                mVideoEncoder.setMetrics(mMetrics);     // main output only
+                if (config.hasProxy()) {
+                    mProxyEncoder = new VideoEncoderCore(config.createFormat(
+                            config.mProxyWidth, config.mProxyHeight, config.mProxyBitRate),
+                            config.mAsyncOutput);
+                }
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+            mCodecConfig = config;
+        }
+
+        if (mEglCore == null) {
+            mEglCore = new EglCore(config.mEglContext, EglCore.FLAG_RECORDABLE);
+            mProgramCache = new ProgramCache();
+            mSharedContext = config.mEglContext;
+        }
+        if (mInputWindowSurface == null) {
+            mInputWindowSurface = new WindowSurface(mEglCore, mVideoEncoder.getInputSurface(),
+                    true);
+            if (mProxyEncoder != null) {
+                mProxyWindowSurface = new WindowSurface(mEglCore,
+                        mProxyEncoder.getInputSurface(), true);
+            }
+        }
+        mInputWindowSurface.makeCurrent();
+
+        if (mFullScreen == null) {
+            mFullScreen = new FullFrameRect(
+                    mProgramCache.get(Texture2dProgram.ProgramType.TEXTURE_EXT), false);
+        }
+    }
+
+    /**
+     * Returns true if an encoder created for "a" can be used for "b".
+     */
+    private static boolean hasSameCodecSettings(EncoderConfig a, EncoderConfig b) {
+        return a.mWidth == b.mWidth && a.mHeight == b.mHeight && a.mBitRate == b.mBitRate &&
+                a.mFrameRate == b.mFrameRate && a.mMimeType.equals(b.mMimeType) &&
+                a.mBitrateMode == b.mBitrateMode && a.mQuality == b.mQuality &&
+                a.mIFrameInterval == b.mIFrameInterval && a.mProfile == b.mProfile &&
+                a.mLevel == b.mLevel && a.mAsyncOutput == b.mAsyncOutput &&
+                a.hasProxy() == b.hasProxy() &&
+                a.mProxyWidth == b.mProxyWidth && a.mProxyHeight == b.mProxyHeight &&
+                a.mProxyBitRate == b.mProxyBitRate;
+    }
+
+    /**
+     * Creates the muxer chain for the configuration and attaches it to the encoder.
+     */
+    private void attachOutput(EncoderConfig config) {
         try {
-            mVideoEncoder = new VideoEncoderCore(width, height, bitRate, outputFile);
+            final File outputFile = config.mOutputFile;
+            final boolean fragmented = config.mFragmentedOutput;
+            VideoMuxer muxer;
+            SegmentedMuxer segmentedMuxer = null;
+            if (config.isSegmented()) {
+                segmentedMuxer = new SegmentedMuxer(new SegmentedMuxer.Factory() {
+                    @Override
+                    public VideoMuxer createMuxer(int index) throws IOException {
+                        File file = SegmentedMuxer.getSegmentFile(outputFile, index);
+                        Log.d(TAG, "starting segment " + file);
+                        return createFileMuxer(file, fragmented);
+                    }
+                }, config.mSegmentDurationUs, config.mSegmentBytes);
+                muxer = segmentedMuxer;
+            } else {
+                muxer = createFileMuxer(outputFile, fragmented);
+            }
+            muxer = wrapInQueue(muxer, config);
+            mOutputQueue = muxer instanceof QueuedMuxer ? (QueuedMuxer) muxer : null;
+            final VideoEncoderCore encoder = mVideoEncoder;
+            if (segmentedMuxer != null) {
+                segmentedMuxer.setSyncFrameRequester(new SegmentedMuxer.SyncFrameRequester() {
+                    @Override
+                    public void requestSyncFrame() {
+                        encoder.requestSyncFrame();
+                    }
+                });
+            }
+            encoder.attachMuxer(muxer);
+
+            if (mProxyEncoder != null) {
+                mProxyEncoder.attachMuxer(
+                        wrapInQueue(createFileMuxer(config.mProxyFile, fragmented), config));
+            }
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
-        mEglCore = new EglCore(sharedContext, EglCore.FLAG_RECORDABLE);
-        mInputWindowSurface = new WindowSurface(mEglCore, mVideoEncoder.getInputSurface(), true);
-        mInputWindowSurface.makeCurrent();
+    }
 
-        mFullScreen = new FullFrameRect(
-                new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_EXT));
+    private static VideoMuxer wrapInQueue(VideoMuxer muxer, EncoderConfig config) {
+        if (config.mMuxerQueueCapacity > 0) {
+            return new QueuedMuxer(muxer, config.mMuxerQueueCapacity,
+                    config.mMuxerOverflowPolicy);
+        }
+        return muxer;
     }
 
-    private void releaseEncoder() {
-        mVideoEncoder.release();
+    private static VideoMuxer createFileMuxer(File file, boolean fragmented)
+            throws IOException {
+        if (fragmented) {
+            return new FragmentedMp4Muxer(file);
+        } else {
+            return new Mp4Muxer(file);
+        }
+    }
+
+    private void releaseInputSurface() {
         if (mInputWindowSurface != null) {
             mInputWindowSurface.release();
             mInputWindowSurface = null;
         }
+        if (mProxyWindowSurface != null) {
+            mProxyWindowSurface.release();
+            mProxyWindowSurface = null;
+        }
+    }
+
+    private void releaseCodecs() {
+        if (mVideoEncoder != null) {
+            mVideoEncoder.release();
+            mVideoEncoder = null;
+        }
+        if (mProxyEncoder != null) {
+            mProxyEncoder.release();
+            mProxyEncoder = null;
+        }
+        mBitRateChanged = false;
+    }
+
+    private void releaseEncoder() {
+        releaseInputSurface();
+        releaseCodecs();
         if (mFullScreen != null) {
             mFullScreen.release(false);
             mFullScreen = null;
         }
+        if (mBlitFullScreen != null) {
+            mBlitFullScreen.release(false);
+            mBlitFullScreen = null;
+        }
+        if (mProgramCache != null) {
+            mProgramCache.release(false);
+            mProgramCache = null;
+        }
         if (mEglCore != null) {
             mEglCore.release();
             mEglCore = null;
         }
+        mSharedContext = null;
     }
 
     /**
@@ -19,7 +19,10 @@ package com.process.RecordLib.encoder;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.Log;
 import android.view.Surface;
 
@@ -36,22 +39,51 @@ import java.nio.ByteBuffer;
  * <p>
  * This class is not thread-safe, with one exception: it is valid to use the input surface
  * on one thread, and drain the output on a different thread.
+ * <p>
+ * In asynchronous output mode the codec pushes output buffers to us through
+ * MediaCodec.Callback, on a dedicated thread, and they go straight to the muxer.  There's
+ * no need to call drainEncoder() per frame (it returns immediately).  release() sends EOS
+ * and waits for it, so the codec is never stopped under a running callback.
+ * <p>
+ * The codec can also be created without an output, and kept running across recordings:
+ * attachMuxer() starts sending output to a muxer (from the next sync frame on), and
+ * detachMuxer() finishes the output without sending EOS, so the codec is ready for the
+ * next attachMuxer().  That takes codec setup off the start-recording path.
  */
 public class VideoEncoderCore {
     private static final String TAG = "VideoEncoderCore";
     private static final boolean VERBOSE = false;
 
-    // TODO: these ought to be configurable as well
-    private static final String MIME_TYPE = "video/avc";    // H.264 Advanced Video Coding
-    private static final int FRAME_RATE = 30;               // 30fps
-    private static final int IFRAME_INTERVAL = 5;           // 5 seconds between I-frames
+    // Defaults for the constructors that don't take a MediaFormat.
+    public static final String DEFAULT_MIME_TYPE = "video/avc";     // H.264 Advanced Video Coding
+    public static final int DEFAULT_FRAME_RATE = 30;                // 30fps
+    public static final int DEFAULT_IFRAME_INTERVAL = 5;            // 5 seconds between I-frames
 
     private Surface mInputSurface;
-    private MediaMuxer mMuxer;
-    private MediaCodec mEncoder;
+    private volatile MediaCodec mEncoder;
     private MediaCodec.BufferInfo mBufferInfo;
-    private int mTrackIndex;
+
+    // Output side.  In asynchronous mode these are touched by both the output thread and
+    // the thread attaching / detaching the muxer, so everything goes through mOutputLock.
+    // The sample write itself happens outside the lock, because storage can be slow and
+    // attach / detach run on the encoder thread; mWritingMuxer is the muxer being written
+    // to meanwhile, so detach knows to wait before releasing it.
+    private final Object mOutputLock = new Object();
+    private VideoMuxer mMuxer;
+    private VideoMuxer mWritingMuxer;
     private boolean mMuxerStarted;
+    private boolean mWaitingForSync;        // drop output until the next sync frame
+    private MediaFormat mOutputFormat;
+    private long mLastOutputPtsUs = -1;
+    private volatile RecordMetrics mMetrics;
+    private volatile BitrateController mBitrateController;
+
+    // Asynchronous output mode.  The codec callbacks run on mOutputThread; mEosLock guards
+    // the end-of-stream handshake with drainEncoder().
+    private HandlerThread mOutputThread;
+    private final Object mEosLock = new Object();
+    private boolean mEosReached;
+    private boolean mEosSent;               // only touched by the thread driving the codec
 
 
     /**
@@ -59,37 +91,213 @@ public class VideoEncoderCore {
      */
     public VideoEncoderCore(int width, int height, int bitRate, File outputFile)
             throws IOException {
-        mBufferInfo = new MediaCodec.BufferInfo();
+        this(width, height, bitRate, outputFile, false);
+    }
 
-        MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
+    /**
+     * Configures encoder and muxer state, and prepares the input Surface.
+     *
+     * @param asyncOutput Receive encoder output through MediaCodec.Callback rather than by
+     *     polling in drainEncoder().  Needs API 23 to direct the callbacks to our own thread;
+     *     on older releases we log a warning and poll as usual.
+     */
+    public VideoEncoderCore(int width, int height, int bitRate, File outputFile,
+            boolean asyncOutput) throws IOException {
+        this(width, height, bitRate, new Mp4Muxer(outputFile), asyncOutput);
+    }
 
-        // Set some properties.  Failing to specify some of these can cause the MediaCodec
-        // configure() call to throw an unhelpful exception.
-        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
-                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
-        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
-        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
-        if (VERBOSE) Log.d(TAG, "format: " + format);
+    /**
+     * Configures encoder state, and prepares the input Surface.  Output goes to the supplied
+     * muxer, which we take ownership of (it's released by release()).
+     *
+     * @param asyncOutput See {@link #VideoEncoderCore(int, int, int, File, boolean)}.
+     */
+    public VideoEncoderCore(int width, int height, int bitRate, VideoMuxer muxer,
+            boolean asyncOutput) throws IOException {
+        this(width, height, bitRate, asyncOutput);
+        attachMuxer(muxer);
+    }
+
+    /**
+     * Configures and starts the encoder, without an output.  Frames fed to the input surface
+     * before attachMuxer() are encoded and thrown away, so generally you don't want to.
+     *
+     * @param asyncOutput See {@link #VideoEncoderCore(int, int, int, File, boolean)}.
+     */
+    public VideoEncoderCore(int width, int height, int bitRate, boolean asyncOutput)
+            throws IOException {
+        this(width, height, bitRate, DEFAULT_FRAME_RATE, asyncOutput);
+    }
+
+    /**
+     * Like {@link #VideoEncoderCore(int, int, int, boolean)}, with the frame rate the
+     * encoder should plan its rate control around.  Frames are still timed by their
+     * presentation times; this doesn't drop or repeat any.
+     */
+    public VideoEncoderCore(int width, int height, int bitRate, int frameRate,
+            boolean asyncOutput) throws IOException {
+        this(createFormat(DEFAULT_MIME_TYPE, width, height, bitRate, frameRate,
+                DEFAULT_IFRAME_INTERVAL), asyncOutput);
+    }
+
+    /**
+     * Configures and starts an encoder for the given format, without an output.  Start
+     * from {@link #createFormat} and add whatever else the codec should be told, e.g.
+     * KEY_BITRATE_MODE or KEY_PROFILE.  A bit rate mode the codec doesn't support is
+     * replaced with its default, with a warning, rather than failing in configure().
+     *
+     * @param asyncOutput See {@link #VideoEncoderCore(int, int, int, File, boolean)}.
+     */
+    public VideoEncoderCore(MediaFormat format, boolean asyncOutput) throws IOException {
+        mBufferInfo = new MediaCodec.BufferInfo();
+        String mimeType = format.getString(MediaFormat.KEY_MIME);
 
         // Create a MediaCodec encoder, and configure it with our format.  Get a Surface
         // we can use for input and wrap it with a class that handles the EGL work.
-        mEncoder = MediaCodec.createEncoderByType(MIME_TYPE);
+        mEncoder = MediaCodec.createEncoderByType(mimeType);
+        if (format.containsKey(MediaFormat.KEY_BITRATE_MODE)) {
+            int mode = format.getInteger(MediaFormat.KEY_BITRATE_MODE);
+            MediaCodecInfo.EncoderCapabilities caps = mEncoder.getCodecInfo()
+                    .getCapabilitiesForType(mimeType).getEncoderCapabilities();
+            if (!caps.isBitrateModeSupported(mode)) {
+                Log.w(TAG, mEncoder.getName() + " doesn't support bit rate mode " + mode +
+                        ", using its default");
+                format.removeKey(MediaFormat.KEY_BITRATE_MODE);
+            }
+        }
+        if (VERBOSE) Log.d(TAG, "format: " + format);
+        if (asyncOutput) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                // The callback must be set before configure().
+                mOutputThread = new HandlerThread("VideoEncoderCore-output");
+                mOutputThread.start();
+                mEncoder.setCallback(new EncoderCallback(),
+                        new Handler(mOutputThread.getLooper()));
+            } else {
+                Log.w(TAG, "async output needs API 23, falling back to polling");
+            }
+        }
         mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         mInputSurface = mEncoder.createInputSurface();
         mEncoder.start();
+    }
 
-        // Create a MediaMuxer.  We can't add the video track and start() the muxer here,
-        // because our MediaFormat doesn't have the Magic Goodies.  These can only be
-        // obtained from the encoder after it has started processing data.
-        //
-        // We're not actually interested in multiplexing audio.  We just want to convert
-        // the raw H.264 elementary stream we get from MediaCodec into a .mp4 file.
-        mMuxer = new MediaMuxer(outputFile.toString(),
-                MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+    /**
+     * Creates a format with the settings every surface-input encoder needs.  Failing to
+     * specify some of these can cause the MediaCodec configure() call to throw an unhelpful
+     * exception.
+     *
+     * @param iFrameIntervalSec Seconds between sync frames; 0 makes every frame one.
+     */
+    public static MediaFormat createFormat(String mimeType, int width, int height,
+            int bitRate, int frameRate, int iFrameIntervalSec) {
+        MediaFormat format = MediaFormat.createVideoFormat(mimeType, width, height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, iFrameIntervalSec);
+        return format;
+    }
 
-        mTrackIndex = -1;
-        mMuxerStarted = false;
+    /**
+     * Starts sending encoder output to the muxer, which we take ownership of.  The first
+     * sample written is a sync frame; we ask the codec for one, and drop anything before it.
+     * <p>
+     * We may not be able to start the muxer here, because it needs the Magic Goodies from
+     * the output format, and these can only be obtained from the encoder after it has
+     * started processing data.  If so, it's started when they show up.
+     */
+    public void attachMuxer(VideoMuxer muxer) {
+        synchronized (mOutputLock) {
+            if (mMuxer != null) {
+                throw new IllegalStateException("muxer already attached");
+            }
+            mMuxer = muxer;
+            mMuxerStarted = false;
+            mWaitingForSync = true;
+            if (mOutputFormat != null) {
+                startMuxerLocked();
+            }
+        }
+        requestSyncFrame();
+    }
+
+    /**
+     * Stops sending output to the muxer, and releases it.  The codec keeps running.
+     * <p>
+     * Frames already submitted may still be inside the codec.  We wait (up to a limit) for
+     * the output with the given presentation time before letting go of the muxer.
+     *
+     * @param lastFrameUs Presentation time of the last frame submitted, or -1 to not wait.
+     */
+    public void detachMuxer(long lastFrameUs) {
+        final long TIMEOUT_MSEC = 1000;
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MSEC;
+        if (lastFrameUs >= 0) {
+            if (mOutputThread == null) {
+                while (getLastOutputPtsUs() < lastFrameUs &&
+                        System.currentTimeMillis() < deadline) {
+                    drainEncoder(false);
+                }
+            } else {
+                synchronized (mOutputLock) {
+                    while (mLastOutputPtsUs < lastFrameUs) {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        try {
+                            mOutputLock.wait(remaining);
+                        } catch (InterruptedException ie) {
+                            // ignore
+                        }
+                    }
+                }
+            }
+            if (getLastOutputPtsUs() < lastFrameUs) {
+                Log.w(TAG, "timed out waiting for frame " + lastFrameUs + "us, last out " +
+                        getLastOutputPtsUs());
+            }
+        }
+
+        VideoMuxer muxer = takeMuxer();
+        if (muxer != null) {
+            muxer.release();        // may be slow; don't hold up the output thread
+        }
+    }
+
+    /**
+     * Disconnects the muxer from the output, waiting for a sample write already under way
+     * to finish, and returns it.
+     */
+    private VideoMuxer takeMuxer() {
+        synchronized (mOutputLock) {
+            VideoMuxer muxer = mMuxer;
+            mMuxer = null;
+            mMuxerStarted = false;
+            while (muxer != null && mWritingMuxer == muxer) {
+                try {
+                    mOutputLock.wait();
+                } catch (InterruptedException ie) {
+                    // ignore
+                }
+            }
+            return muxer;
+        }
+    }
+
+    private boolean hasMuxer() {
+        synchronized (mOutputLock) {
+            return mMuxer != null;
+        }
+    }
+
+    private long getLastOutputPtsUs() {
+        synchronized (mOutputLock) {
+            return mLastOutputPtsUs;
+        }
     }
 
     /**
@@ -99,22 +307,102 @@ public class VideoEncoderCore {
         return mInputSurface;
     }
 
+    /**
+     * Returns true if encoder output is delivered through MediaCodec.Callback.
+     */
+    public boolean isAsyncOutput() {
+        return mOutputThread != null;
+    }
+
+    /**
+     * Reports output and muxer timing for each sample to "metrics".  May be null.
+     */
+    public void setMetrics(RecordMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Reports the size of each sample to "controller", and how long the muxer took to take
+     * it.  A {@link QueuedMuxer} only copies the sample here, so it should be given the
+     * controller too, and report its writes itself.  May be null.
+     */
+    public void setBitrateController(BitrateController controller) {
+        mBitrateController = controller;
+    }
+
+    /**
+     * Changes the bit rate while encoding.  Not every codec honors it right away.  May be
+     * called from any thread.
+     */
+    public void setBitRate(int bitRate) {
+        MediaCodec encoder = mEncoder;
+        if (encoder == null) {
+            return;
+        }
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+        try {
+            encoder.setParameters(params);
+        } catch (IllegalStateException ise) {
+            Log.w(TAG, "bit rate change failed", ise);
+        }
+    }
+
+    /**
+     * Asks the codec to make the next frame a sync frame.  May be called from any thread.
+     */
+    public void requestSyncFrame() {
+        MediaCodec encoder = mEncoder;
+        if (encoder == null) {
+            return;
+        }
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        try {
+            encoder.setParameters(params);
+        } catch (IllegalStateException ise) {
+            // Codec was released under us; nothing left to ask for.
+            Log.w(TAG, "sync frame request failed", ise);
+        }
+    }
+
     /**
      * Releases encoder resources.
+     * <p>
+     * If drainEncoder(true) hasn't been called, output still inside the codec is drained
+     * first.  It goes to the muxer if one is attached.  In async output mode this always
+     * happens, with a time limit, because stopping the codec under a running callback
+     * would make it fail.
      */
     public void release() {
         if (VERBOSE) Log.d(TAG, "releasing encoder objects");
+        if (mEncoder != null && !mEosSent) {
+            if (mOutputThread != null) {
+                awaitEndOfStream();
+            } else if (hasMuxer()) {
+                drainEncoder(true);
+            }
+        }
+        if (mOutputThread != null) {
+            // EOS was the last output, so nothing more should be delivered.  Ending the
+            // thread before stopping the codec makes sure of it even if we timed out
+            // waiting: a late callback finds the Looper gone rather than a stopped codec.
+            mOutputThread.quitSafely();
+            try {
+                mOutputThread.join();
+            } catch (InterruptedException ie) {
+                Log.w(TAG, "output thread join() was interrupted", ie);
+            }
+            mOutputThread = null;
+        }
         if (mEncoder != null) {
             mEncoder.stop();
             mEncoder.release();
             mEncoder = null;
         }
-        if (mMuxer != null) {
-            // TODO: stop() throws an exception if you haven't fed it any data.  Keep track
-            //       of frames submitted, and don't call stop() if we haven't written anything.
-            mMuxer.stop();
-            mMuxer.release();
-            mMuxer = null;
+        VideoMuxer muxer = takeMuxer();
+        if (muxer != null) {
+            muxer.release();
         }
     }
 
@@ -132,9 +420,18 @@ public class VideoEncoderCore {
         final int TIMEOUT_USEC = 10000;
         if (VERBOSE) Log.d(TAG, "drainEncoder(" + endOfStream + ")");
 
+        if (mOutputThread != null) {
+            // Output is pushed to us; the only thing to do is wait for EOS.
+            if (endOfStream) {
+                awaitEndOfStream();
+            }
+            return;
+        }
+
         if (endOfStream) {
             if (VERBOSE) Log.d(TAG, "sending EOS to encoder");
             mEncoder.signalEndOfInputStream();
+            mEosSent = true;
         }
 
         ByteBuffer[] encoderOutputBuffers = mEncoder.getOutputBuffers();
@@ -151,17 +448,7 @@ public class VideoEncoderCore {
                 // not expected for an encoder
                 encoderOutputBuffers = mEncoder.getOutputBuffers();
             } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                // should happen before receiving buffers, and should only happen once
-                if (mMuxerStarted) {
-                    throw new RuntimeException("format changed twice");
-                }
-                MediaFormat newFormat = mEncoder.getOutputFormat();
-                Log.d(TAG, "encoder output format changed: " + newFormat);
-
-                // now that we have the Magic Goodies, start the muxer
-                mTrackIndex = mMuxer.addTrack(newFormat);
-                mMuxer.start();
-                mMuxerStarted = true;
+                handleOutputFormat(mEncoder.getOutputFormat());
             } else if (encoderStatus < 0) {
                 Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " +
                         encoderStatus);
@@ -173,29 +460,7 @@ public class VideoEncoderCore {
                             " was null");
                 }
 
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                    // The codec config data was pulled out and fed to the muxer when we got
-                    // the INFO_OUTPUT_FORMAT_CHANGED status.  Ignore it.
-                    if (VERBOSE) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
-                    mBufferInfo.size = 0;
-                }
-
-                if (mBufferInfo.size != 0) {
-                    if (!mMuxerStarted) {
-                        throw new RuntimeException("muxer hasn't started");
-                    }
-
-                    // adjust the ByteBuffer values to match BufferInfo (not needed?)
-                    encodedData.position(mBufferInfo.offset);
-                    encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
-
-                    mMuxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
-                    if (VERBOSE) {
-                        Log.d(TAG, "sent " + mBufferInfo.size + " bytes to muxer, ts=" +
-                                mBufferInfo.presentationTimeUs);
-                    }
-                }
-
+                handleOutputBuffer(encodedData, mBufferInfo);
                 mEncoder.releaseOutputBuffer(encoderStatus, false);
 
                 if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
@@ -209,4 +474,177 @@ public class VideoEncoderCore {
             }
         }
     }
+
+    /**
+     * Handles the encoder's output format, which carries the codec-specific data the muxer
+     * needs.  Should happen before receiving buffers, and should only happen once.
+     */
+    private void handleOutputFormat(MediaFormat newFormat) {
+        synchronized (mOutputLock) {
+            if (mOutputFormat != null) {
+                throw new RuntimeException("format changed twice");
+            }
+            Log.d(TAG, "encoder output format changed: " + newFormat);
+            mOutputFormat = newFormat;
+
+            // now that we have the Magic Goodies, start the muxer
+            if (mMuxer != null) {
+                startMuxerLocked();
+            }
+        }
+    }
+
+    private void startMuxerLocked() {
+        mMuxer.start(mOutputFormat);
+        mMuxerStarted = true;
+    }
+
+    /**
+     * Forwards one encoder output buffer to the muxer.  The caller releases the buffer.
+     */
+    private void handleOutputBuffer(ByteBuffer encodedData, MediaCodec.BufferInfo info) {
+        long dequeueNanos = System.nanoTime();
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // The codec config data was pulled out and fed to the muxer when we got
+            // the INFO_OUTPUT_FORMAT_CHANGED status.  Ignore it.
+            if (VERBOSE) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
+            info.size = 0;
+        }
+
+        if (info.size == 0) {
+            return;
+        }
+
+        VideoMuxer muxer;
+        synchronized (mOutputLock) {
+            mLastOutputPtsUs = info.presentationTimeUs;
+            mOutputLock.notifyAll();
+
+            muxer = mMuxer;
+            if (muxer == null) {
+                if (VERBOSE) Log.d(TAG, "no muxer, dropping ts=" + info.presentationTimeUs);
+                return;
+            }
+            if (mWaitingForSync) {
+                if ((info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) == 0) {
+                    if (VERBOSE) Log.d(TAG, "waiting for sync, dropping ts=" +
+                            info.presentationTimeUs);
+                    return;
+                }
+                mWaitingForSync = false;
+            }
+            if (!mMuxerStarted) {
+                throw new RuntimeException("muxer hasn't started");
+            }
+            mWritingMuxer = muxer;
+        }
+
+        // adjust the ByteBuffer values to match BufferInfo (not needed?)
+        encodedData.position(info.offset);
+        encodedData.limit(info.offset + info.size);
+
+        long writtenNanos;
+        try {
+            muxer.writeSampleData(encodedData, info);
+            writtenNanos = System.nanoTime();
+        } finally {
+            synchronized (mOutputLock) {
+                mWritingMuxer = null;
+                mOutputLock.notifyAll();
+            }
+        }
+        RecordMetrics metrics = mMetrics;
+        if (metrics != null) {
+            metrics.recordOutput(info.presentationTimeUs, dequeueNanos, writtenNanos);
+        }
+        BitrateController controller = mBitrateController;
+        if (controller != null) {
+            controller.onFrameEncoded(info.size);
+            if (!(muxer instanceof QueuedMuxer)) {
+                controller.onSampleWritten(writtenNanos - dequeueNanos);
+            }
+        }
+        if (VERBOSE) {
+            Log.d(TAG, "sent " + info.size + " bytes to muxer, ts=" + info.presentationTimeUs);
+        }
+    }
+
+    /**
+     * Sends EOS to the encoder and waits for the output thread to see it come out the other
+     * end.
+     */
+    private void awaitEndOfStream() {
+        final long TIMEOUT_MSEC = 3000;
+
+        if (VERBOSE) Log.d(TAG, "sending EOS to encoder");
+        mEosSent = true;
+        try {
+            mEncoder.signalEndOfInputStream();
+        } catch (IllegalStateException ise) {
+            // Already failed (see onError()); nothing more will come out.
+            Log.w(TAG, "couldn't send EOS", ise);
+            return;
+        }
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MSEC;
+        synchronized (mEosLock) {
+            while (!mEosReached) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    Log.w(TAG, "timed out waiting for end of stream");
+                    break;
+                }
+                try {
+                    mEosLock.wait(remaining);
+                } catch (InterruptedException ie) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Receives encoder output in asynchronous mode.  Runs on the output thread.
+     */
+    private class EncoderCallback extends MediaCodec.Callback {
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            // Input comes from the Surface; not expected.
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index,
+                MediaCodec.BufferInfo info) {
+            ByteBuffer encodedData = codec.getOutputBuffer(index);
+            if (encodedData == null) {
+                throw new RuntimeException("encoderOutputBuffer " + index + " was null");
+            }
+            handleOutputBuffer(encodedData, info);
+            codec.releaseOutputBuffer(index, false);
+
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                if (VERBOSE) Log.d(TAG, "end of stream reached");
+                signalEndOfStream();
+            }
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            Log.e(TAG, "encoder error: " + e.getDiagnosticInfo(), e);
+            // Nothing more is coming; don't leave drainEncoder() waiting.
+            signalEndOfStream();
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            handleOutputFormat(format);
+        }
+
+        private void signalEndOfStream() {
+            synchronized (mEosLock) {
+                mEosReached = true;
+                mEosLock.notifyAll();
+            }
+        }
+    }
 }
@@ -0,0 +1,35 @@
+package com.process.RecordLib.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Destination for the encoded video stream coming out of VideoEncoderCore.
+ * <p>
+ * This is the subset of MediaMuxer that we use, for a single video track.  Calls arrive in
+ * order: start(), any number of writeSampleData(), then release().
+ */
+public interface VideoMuxer {
+    /**
+     * Starts the output.
+     *
+     * @param format The encoder's output format, which holds the codec-specific data.
+     */
+    void start(MediaFormat format);
+
+    /**
+     * Writes one encoded sample.  The data is only valid for the duration of the call.
+     *
+     * @param encodedData Buffer holding the sample at info.offset.
+     * @param info Size, flags and presentation time of the sample.
+     */
+    void writeSampleData(ByteBuffer encodedData, MediaCodec.BufferInfo info);
+
+    /**
+     * Finishes the output and releases resources.  It's fine to call this if start() was
+     * never called.
+     */
+    void release();
+}
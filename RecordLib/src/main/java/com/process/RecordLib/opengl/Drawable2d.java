@@ -16,12 +16,16 @@
 
 package com.process.RecordLib.opengl;
 
+import android.opengl.GLES20;
+import android.util.Log;
+
 import java.nio.FloatBuffer;
 
 /**
  * Base class for stuff we like to draw.
  */
 public class Drawable2d {
+    private static final String TAG = GlUtil.TAG;
     private static final int SIZEOF_FLOAT = 4;
 
     /**
@@ -98,6 +102,10 @@ public class Drawable2d {
     private int mTexCoordStride;
     private Prefab mPrefab;
 
+    // GPU copies of the arrays, if createVertexBuffers() has been called.
+    private int mVertexBufferId;
+    private int mTexCoordBufferId;
+
     /**
      * Enum values for constructor.
      */
@@ -158,6 +166,73 @@ public class Drawable2d {
         return mTexCoordArray;
     }
 
+    /**
+     * Copies the vertex and texture coordinate arrays into buffer objects in the current
+     * EGL context, so draws don't have to send them from client memory every time.  Does
+     * nothing if they already exist.
+     * <p>
+     * The buffers belong to the current context; call releaseVertexBuffers() before (or,
+     * with false, after) it goes away.
+     *
+     * @return True if the buffers are available.  False if they couldn't be created, in which
+     *     case the client arrays still work.
+     */
+    public boolean createVertexBuffers() {
+        if (mVertexBufferId != 0) {
+            return true;
+        }
+        int[] ids = new int[2];
+        GLES20.glGenBuffers(2, ids, 0);
+        if (ids[0] == 0 || ids[1] == 0) {
+            Log.w(TAG, "glGenBuffers failed; using client arrays for " + this);
+            GLES20.glDeleteBuffers(2, ids, 0);
+            return false;
+        }
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, ids[0]);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, mVertexArray.capacity() * SIZEOF_FLOAT,
+                mVertexArray, GLES20.GL_STATIC_DRAW);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, ids[1]);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, mTexCoordArray.capacity() * SIZEOF_FLOAT,
+                mTexCoordArray, GLES20.GL_STATIC_DRAW);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        if (GLES20.glGetError() != GLES20.GL_NO_ERROR) {
+            Log.w(TAG, "glBufferData failed; using client arrays for " + this);
+            GLES20.glDeleteBuffers(2, ids, 0);
+            return false;
+        }
+        mVertexBufferId = ids[0];
+        mTexCoordBufferId = ids[1];
+        return true;
+    }
+
+    /**
+     * Deletes the buffer objects, if any.  See {@link FullFrameRect#release(boolean)} for
+     * doEglCleanup.
+     */
+    public void releaseVertexBuffers(boolean doEglCleanup) {
+        if (mVertexBufferId != 0) {
+            if (doEglCleanup) {
+                int[] ids = new int[] { mVertexBufferId, mTexCoordBufferId };
+                GLES20.glDeleteBuffers(2, ids, 0);
+            }
+            mVertexBufferId = mTexCoordBufferId = 0;
+        }
+    }
+
+    /**
+     * Returns the buffer object holding the vertices, or 0 if there isn't one.
+     */
+    public int getVertexBufferId() {
+        return mVertexBufferId;
+    }
+
+    /**
+     * Returns the buffer object holding the texture coordinates, or 0 if there isn't one.
+     */
+    public int getTexCoordBufferId() {
+        return mTexCoordBufferId;
+    }
+
     /**
      * Returns the number of vertices stored in the vertex array.
      */
@@ -0,0 +1,208 @@
+package com.process.RecordLib.opengl;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Runs an ordered list of {@link FilterPass}es over a camera frame, one or two draws per
+ * enabled pass, leaving the result in a target framebuffer.
+ * <p>
+ * Between passes the image goes back and forth between two intermediate framebuffers the
+ * size of the target.  They're created on first need and kept across frames, and only
+ * recreated if the target size changes.  The order of draws comes from a
+ * {@link FilterChainPlan}, which is only recomputed when passes are added, moved, or
+ * switched on or off.  Programs come from a {@link ProgramCache} for the current context.
+ * <p>
+ * All methods must be called on the thread with the GL context current.
+ */
+public class FilterChain {
+    private static final String TAG = GlUtil.TAG;
+
+    private final ArrayList<FilterPass> mPasses = new ArrayList<FilterPass>();
+    private final FilterChainPlan mPlan = new FilterChainPlan();
+    private final FramebufferTexture[] mBuffers =
+            new FramebufferTexture[FilterChainPlan.MAX_BUFFERS];
+    private final Drawable2d mRectDrawable = new Drawable2d(Drawable2d.Prefab.FULL_RECTANGLE);
+    private final ProgramCache mProgramCache;
+    private boolean mVertexBuffersTried;
+
+    private int[] mPlannedDraws = new int[0];       // per pass, 0 if disabled
+    private boolean mPlanDirty = true;
+
+    /**
+     * @param programCache Cache for the context the chain will draw in.
+     */
+    public FilterChain(ProgramCache programCache) {
+        mProgramCache = programCache;
+    }
+
+    /**
+     * Adds a pass at the end of the chain.
+     */
+    public void addPass(FilterPass pass) {
+        mPasses.add(pass);
+        mPlanDirty = true;
+    }
+
+    /**
+     * Moves a pass already in the chain to the given position.
+     */
+    public void movePass(FilterPass pass, int index) {
+        if (!mPasses.remove(pass)) {
+            throw new IllegalArgumentException("not in chain: " + pass);
+        }
+        mPasses.add(index, pass);
+        mPlanDirty = true;
+    }
+
+    public int getPassCount() {
+        return mPasses.size();
+    }
+
+    public FilterPass getPass(int index) {
+        return mPasses.get(index);
+    }
+
+    /**
+     * Returns true if any pass is enabled, i.e. draw() would do more than copy.
+     */
+    public boolean hasEnabledPass() {
+        for (int i = 0; i < mPasses.size(); i++) {
+            if (mPasses.get(i).isEnabled()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Filters a frame into the target.  On return the default framebuffer is bound again,
+     * and the viewport is the target's.
+     *
+     * @param textureId External texture with the camera frame.
+     * @param texMatrix SurfaceTexture transform for textureId.
+     * @param texWidth Width of the camera frame, for the convolution texel size.
+     * @param texHeight Height of the camera frame.
+     * @param target Where the result goes.
+     */
+    public void draw(int textureId, float[] texMatrix, int texWidth, int texHeight,
+            FramebufferTexture target) {
+        if (mPlanDirty || enabledChanged()) {
+            updatePlan();
+        }
+        if (!mVertexBuffersTried) {
+            mRectDrawable.createVertexBuffers();    // falls back to client arrays if not
+            mVertexBuffersTried = true;
+        }
+
+        for (int step = 0; step < mPlan.getStepCount(); step++) {
+            int input = mPlan.getInput(step);
+            int output = mPlan.getOutput(step);
+
+            Texture2dProgram program;
+            int inputTexture;
+            float[] inputMatrix;
+            if (input == FilterChainPlan.SOURCE) {
+                inputTexture = textureId;
+                inputMatrix = texMatrix;
+            } else {
+                // Already transformed on the way in.
+                inputTexture = mBuffers[input].getTextureId();
+                inputMatrix = GlUtil.IDENTITY_MATRIX;
+            }
+            int pass = mPlan.getPass(step);
+            if (pass == FilterChainPlan.COPY) {
+                program = mProgramCache.get(Texture2dProgram.ProgramType.TEXTURE_EXT);
+            } else if (input == FilterChainPlan.SOURCE) {
+                program = mPasses.get(pass).getProgram(mProgramCache, mPlan.getDraw(step),
+                        true, texWidth, texHeight);
+            } else {
+                program = mPasses.get(pass).getProgram(mProgramCache, mPlan.getDraw(step),
+                        false, mBuffers[input].getWidth(), mBuffers[input].getHeight());
+            }
+
+            if (output == FilterChainPlan.TARGET) {
+                target.bind();
+            } else {
+                getBuffer(output, target.getWidth(), target.getHeight()).bind();
+            }
+            if (mRectDrawable.getVertexBufferId() != 0) {
+                program.draw(GlUtil.IDENTITY_MATRIX, mRectDrawable.getVertexBufferId(), 0,
+                        mRectDrawable.getVertexCount(), mRectDrawable.getCoordsPerVertex(),
+                        mRectDrawable.getVertexStride(),
+                        inputMatrix, mRectDrawable.getTexCoordBufferId(), inputTexture,
+                        mRectDrawable.getTexCoordStride());
+            } else {
+                program.draw(GlUtil.IDENTITY_MATRIX, mRectDrawable.getVertexArray(), 0,
+                        mRectDrawable.getVertexCount(), mRectDrawable.getCoordsPerVertex(),
+                        mRectDrawable.getVertexStride(),
+                        inputMatrix, mRectDrawable.getTexCoordArray(), inputTexture,
+                        mRectDrawable.getTexCoordStride());
+            }
+        }
+        target.unbind();
+    }
+
+    /**
+     * Returns true if a pass has been switched on or off since the plan was made.
+     */
+    private boolean enabledChanged() {
+        for (int i = 0; i < mPasses.size(); i++) {
+            if (getDrawCount(mPasses.get(i)) != mPlannedDraws[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int getDrawCount(FilterPass pass) {
+        return pass.isEnabled() ? pass.getDrawCount() : 0;
+    }
+
+    private void updatePlan() {
+        int count = mPasses.size();
+        if (mPlannedDraws.length < count) {
+            mPlannedDraws = new int[count];
+        }
+        for (int i = 0; i < count; i++) {
+            mPlannedDraws[i] = getDrawCount(mPasses.get(i));
+        }
+        mPlan.update(mPlannedDraws, count);
+        mPlanDirty = false;
+        Log.d(TAG, "filter chain " + mPasses + ": " + mPlan);
+    }
+
+    /**
+     * Returns an intermediate buffer, (re)creating it if it's missing or the wrong size.
+     */
+    private FramebufferTexture getBuffer(int index, int width, int height) {
+        FramebufferTexture buffer = mBuffers[index];
+        if (buffer != null && (buffer.getWidth() != width || buffer.getHeight() != height)) {
+            buffer.release();
+            buffer = null;
+        }
+        if (buffer == null) {
+            buffer = new FramebufferTexture(width, height);
+            mBuffers[index] = buffer;
+        }
+        return buffer;
+    }
+
+    /**
+     * Releases the intermediate buffers and vertex buffers.  The programs belong to the
+     * cache.  See {@link FullFrameRect#release(boolean)} for doEglCleanup.
+     */
+    public void release(boolean doEglCleanup) {
+        mRectDrawable.releaseVertexBuffers(doEglCleanup);
+        mVertexBuffersTried = false;
+        for (int i = 0; i < mBuffers.length; i++) {
+            if (mBuffers[i] != null) {
+                if (doEglCleanup) {
+                    mBuffers[i].release();
+                }
+                mBuffers[i] = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.process.RecordLib.opengl;
+
+/**
+ * Works out the order of draws for a {@link FilterChain}: which pass runs at each step,
+ * what it reads, and where it writes.  Pure bookkeeping with no GL calls, so it can be
+ * checked without a GPU.
+ * <p>
+ * A pass may take more than one draw (a separable blur takes two); each draw is a step.
+ * Disabled passes are skipped.  The first step reads the source texture and the last one
+ * writes the target.  Steps in between alternate between two intermediate buffers
+ * ("ping-pong"), so a chain of any length needs at most two.  If no pass is enabled there is
+ * a single step, with no pass, that copies the source to the target.
+ * <p>
+ * Arrays grow as needed in update(), and are reused after that.
+ */
+public class FilterChainPlan {
+    /** Step input: the chain's source texture. */
+    public static final int SOURCE = -1;
+    /** Step output: the chain's target framebuffer. */
+    public static final int TARGET = -2;
+    /** Step pass: no filter, just copy. */
+    public static final int COPY = -1;
+
+    /** Maximum number of intermediate buffers a plan will ask for. */
+    public static final int MAX_BUFFERS = 2;
+
+    private int[] mPasses = new int[0];
+    private int[] mDraws = new int[0];
+    private int[] mInputs = new int[0];
+    private int[] mOutputs = new int[0];
+    private int mStepCount;
+    private int mBufferCount;
+
+    /**
+     * Recomputes the plan.
+     *
+     * @param drawCounts Number of draws for each pass, in chain order; 0 if disabled.
+     * @param passCount Number of entries of drawCounts[] to use.
+     */
+    public void update(int[] drawCounts, int passCount) {
+        int active = 0;
+        for (int i = 0; i < passCount; i++) {
+            if (drawCounts[i] < 0) {
+                throw new IllegalArgumentException("bad draw count " + drawCounts[i]);
+            }
+            active += drawCounts[i];
+        }
+        int steps = Math.max(active, 1);
+        if (mPasses.length < steps) {
+            mPasses = new int[steps];
+            mDraws = new int[steps];
+            mInputs = new int[steps];
+            mOutputs = new int[steps];
+        }
+        mStepCount = steps;
+
+        if (active == 0) {
+            mPasses[0] = COPY;
+            mDraws[0] = 0;
+            mInputs[0] = SOURCE;
+            mOutputs[0] = TARGET;
+            mBufferCount = 0;
+            return;
+        }
+
+        int step = 0;
+        for (int i = 0; i < passCount; i++) {
+            for (int draw = 0; draw < drawCounts[i]; draw++) {
+                mPasses[step] = i;
+                mDraws[step] = draw;
+                mInputs[step] = step == 0 ? SOURCE : (step - 1) % MAX_BUFFERS;
+                mOutputs[step] = step == steps - 1 ? TARGET : step % MAX_BUFFERS;
+                step++;
+            }
+        }
+        mBufferCount = Math.min(steps - 1, MAX_BUFFERS);
+    }
+
+    /**
+     * Returns the number of draws.  Always at least one.
+     */
+    public int getStepCount() {
+        return mStepCount;
+    }
+
+    /**
+     * Returns the number of intermediate buffers the steps use, 0 to {@link #MAX_BUFFERS}.
+     */
+    public int getBufferCount() {
+        return mBufferCount;
+    }
+
+    /**
+     * Returns the chain index of the pass for a step, or {@link #COPY}.
+     */
+    public int getPass(int step) {
+        return mPasses[step];
+    }
+
+    /**
+     * Returns which of its pass's draws a step is, starting at 0.
+     */
+    public int getDraw(int step) {
+        return mDraws[step];
+    }
+
+    /**
+     * Returns what a step reads: {@link #SOURCE}, or an intermediate buffer index.
+     */
+    public int getInput(int step) {
+        return mInputs[step];
+    }
+
+    /**
+     * Returns where a step writes: {@link #TARGET}, or an intermediate buffer index.
+     */
+    public int getOutput(int step) {
+        return mOutputs[step];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("FilterChainPlan[");
+        for (int i = 0; i < mStepCount; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(name(mInputs[i])).append(" -(")
+                    .append(mPasses[i] == COPY ? "copy" : mPasses[i] + "." + mDraws[i])
+                    .append(")-> ").append(name(mOutputs[i]));
+        }
+        return sb.append(']').toString();
+    }
+
+    private static String name(int buffer) {
+        if (buffer == SOURCE) {
+            return "source";
+        } else if (buffer == TARGET) {
+            return "target";
+        }
+        return "buf" + buffer;
+    }
+}
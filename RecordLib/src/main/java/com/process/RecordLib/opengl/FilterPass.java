@@ -0,0 +1,138 @@
+package com.process.RecordLib.opengl;
+
+/**
+ * One stage of a {@link FilterChain}: an effect plus its settings.
+ * <p>
+ * The programs come from a {@link ProgramCache}, so a pass can be switched on and off, or
+ * moved around the chain, without recompiling anything.  It uses one of two variants,
+ * since only the first pass in a chain reads the external camera texture; the rest read 2D
+ * framebuffer textures.  The pass holds only settings, and has nothing to release.
+ */
+public class FilterPass {
+    /**
+     * What the pass does to each pixel.
+     */
+    public enum Effect {
+        /** Convert to black & white. */
+        BLACK_WHITE,
+        /** Apply a 3x3 convolution kernel to the whole frame; see setKernel(). */
+        CONVOLUTION,
+        /** Gaussian blur, as a horizontal and then a vertical draw; see setBlurRadius(). */
+        GAUSSIAN_BLUR
+    }
+
+    private final Effect mEffect;
+    private final float[] mKernel = new float[Texture2dProgram.KERNEL_SIZE];
+    private float mColorAdj;
+    private int mBlurRadius = 1;
+    private boolean mEnabled = true;
+
+    public FilterPass(Effect effect) {
+        mEffect = effect;
+        mKernel[Texture2dProgram.KERNEL_SIZE / 2] = 1f;    // identity
+    }
+
+    /**
+     * Creates a convolution pass.
+     *
+     * @param kernel Normalized filter values; KERNEL_SIZE elements.
+     */
+    public FilterPass(float[] kernel, float colorAdj) {
+        this(Effect.CONVOLUTION);
+        setKernel(kernel, colorAdj);
+    }
+
+    public Effect getEffect() {
+        return mEffect;
+    }
+
+    /**
+     * Sets the convolution kernel.  Takes effect on the next draw; no recompile.
+     */
+    public void setKernel(float[] kernel, float colorAdj) {
+        if (kernel.length != Texture2dProgram.KERNEL_SIZE) {
+            throw new IllegalArgumentException("Kernel size is " + kernel.length +
+                    " vs. " + Texture2dProgram.KERNEL_SIZE);
+        }
+        System.arraycopy(kernel, 0, mKernel, 0, kernel.length);
+        mColorAdj = colorAdj;
+    }
+
+    /**
+     * Sets the blur radius in texels, up to {@link Texture2dProgram#MAX_BLUR_RADIUS}.  The
+     * cost grows linearly with it.  Takes effect on the next draw; no recompile.
+     */
+    public void setBlurRadius(int radius) {
+        if (radius < 0 || radius > Texture2dProgram.MAX_BLUR_RADIUS) {
+            throw new IllegalArgumentException("Blur radius is " + radius + " vs. max " +
+                    Texture2dProgram.MAX_BLUR_RADIUS);
+        }
+        mBlurRadius = radius;
+    }
+
+    /**
+     * Returns the number of draws the pass takes.
+     */
+    public int getDrawCount() {
+        return mEffect == Effect.GAUSSIAN_BLUR ? 2 : 1;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Switches the pass on or off.  The chain notices on its next draw.
+     */
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     * Returns the program for reading the given kind of texture, set up with this pass's
+     * settings and the texel size of a texture of the given size.  (GL thread only.)
+     * <p>
+     * The program is shared with other passes through the cache, so this has to be called
+     * right before each draw.
+     *
+     * @param draw Which of the pass's draws this is, from 0 to getDrawCount() - 1.
+     */
+    Texture2dProgram getProgram(ProgramCache cache, int draw, boolean externalInput,
+            int texWidth, int texHeight) {
+        Texture2dProgram.ProgramType type;
+        switch (mEffect) {
+            case BLACK_WHITE:
+                type = externalInput ? Texture2dProgram.ProgramType.TEXTURE_EXT_BW :
+                        Texture2dProgram.ProgramType.TEXTURE_2D_BW;
+                break;
+            case CONVOLUTION:
+                type = externalInput ? Texture2dProgram.ProgramType.TEXTURE_EXT_CONV :
+                        Texture2dProgram.ProgramType.TEXTURE_2D_CONV;
+                break;
+            case GAUSSIAN_BLUR:
+                type = externalInput ? Texture2dProgram.ProgramType.TEXTURE_EXT_BLUR :
+                        Texture2dProgram.ProgramType.TEXTURE_2D_BLUR;
+                break;
+            default:
+                throw new RuntimeException("Unhandled effect " + mEffect);
+        }
+        Texture2dProgram program = cache.get(type);
+        if (mEffect == Effect.CONVOLUTION) {
+            program.setKernel(mKernel, mColorAdj);
+            program.setTexSize(texWidth, texHeight);
+        } else if (mEffect == Effect.GAUSSIAN_BLUR) {
+            program.setBlurRadius(mBlurRadius);
+            if (draw == 0) {
+                program.setBlurStep(1.0f / texWidth, 0f);
+            } else {
+                program.setBlurStep(0f, 1.0f / texHeight);
+            }
+        }
+        return program;
+    }
+
+    @Override
+    public String toString() {
+        return "FilterPass " + mEffect + (mEnabled ? "" : " (disabled)");
+    }
+}
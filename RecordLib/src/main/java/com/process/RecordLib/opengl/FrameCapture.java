@@ -0,0 +1,544 @@
+package com.process.RecordLib.opengl;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Saves rendered frames to image files without stalling the GL thread.
+ * <p>
+ * Any thread can request() a capture.  The GL thread calls onFrameDrawn() after drawing
+ * each frame.  With GLES 3, that starts an asynchronous glReadPixels into one of two pixel
+ * buffer objects and sets a fence.  A later onFrameDrawn(), once the fence has passed,
+ * copies the pixels out into a pooled buffer and hands it to the compression executor.
+ * Nothing on the GL thread ever waits: if the GPU or the compressor isn't done, the work
+ * waits for the next frame.
+ * <p>
+ * With only GLES 2 there are no pixel buffer objects, so the read is synchronous.  The
+ * buffer and the compression are still off the GL thread's hands.
+ * <p>
+ * A burst is a run of requests taken on consecutive frames.  The pool of pixel buffers is
+ * filled up front for it, and with an executor of several threads the frames compress in
+ * parallel.  The pool is also the backpressure: when every buffer is waiting on the
+ * compressor, finished reads stay in their pixel buffer objects, new reads aren't started,
+ * and those frames are skipped.  Memory stays at the pool size however slow the disk is.
+ * <p>
+ * Pixel buffers are allocated on first need at a given size and reused after that.  GL
+ * objects belong to the context current at the first capture; call release() when it
+ * goes away, and the next capture sets up again in the new one.
+ */
+public class FrameCapture {
+    private static final String TAG = GlUtil.TAG;
+    private static final boolean VERBOSE = false;
+
+    // Pixel buffer objects; one can be filling while the other is being read.
+    private static final int PBO_COUNT = 2;
+    // Default number of pixel copies waiting for, or being, compressed.
+    private static final int DEFAULT_POOL_SIZE = 2;
+    private static final int JPEG_QUALITY = 90;
+
+    /**
+     * Told when a capture is done.  Called on a compression executor thread, or on the GL
+     * thread if the capture failed there.
+     */
+    public interface Listener {
+        void onFrameCaptured(Capture capture);
+    }
+
+    /**
+     * One requested frame, and how it went.  Filled in as the capture moves along; read it
+     * from the listener.
+     */
+    public static class Capture {
+        private final File mFile;
+        private final int mIndex;
+        private final Listener mListener;
+        private long mFrameNumber = -1;
+        private long mReadStartNanos;
+        private long mCaptureNanos;
+        private long mEncodeNanos;
+        private boolean mSuccess;
+
+        Capture(File file, int index, Listener listener) {
+            mFile = file;
+            mIndex = index;
+            mListener = listener;
+        }
+
+        /** The file the frame is saved to. */
+        public File getFile() {
+            return mFile;
+        }
+
+        /** Position in the burst; 0 for a single capture. */
+        public int getIndex() {
+            return mIndex;
+        }
+
+        /**
+         * Counts onFrameDrawn() calls, so the gaps between a burst's frames show how many
+         * were skipped.  -1 if the read never started.
+         */
+        public long getFrameNumber() {
+            return mFrameNumber;
+        }
+
+        /** Start of the read to pixels in memory, including any wait for a free buffer. */
+        public long getCaptureNanos() {
+            return mCaptureNanos;
+        }
+
+        /** Compressing and writing the file. */
+        public long getEncodeNanos() {
+            return mEncodeNanos;
+        }
+
+        /** False if the frame couldn't be read or written. */
+        public boolean isSuccess() {
+            return mSuccess;
+        }
+    }
+
+    private final Executor mCompressExecutor;
+    private final int mPoolSize;
+    private final ConcurrentLinkedQueue<Capture> mRequests = new ConcurrentLinkedQueue<Capture>();
+    private final ArrayBlockingQueue<PixelBuffer> mPool;
+    private final AtomicInteger mPoolGeneration = new AtomicInteger();
+    // Held while clearing the pool for a new size, and while returning a buffer from the
+    // compressor, so a buffer of the old size can't slip in after the clear.
+    private final Object mPoolLock = new Object();
+    private volatile Listener mListener;
+    private volatile boolean mFillPool;                 // set by requestBurst()
+
+    // ----- accessed only by the GL thread -----
+    private int mGlVersion;                             // 0 until set up in a context
+    private int mWidth, mHeight;
+    private int mPoolAllocated;                         // buffers made for this size
+    private final int[] mPbos = new int[PBO_COUNT];
+    private final long[] mFences = new long[PBO_COUNT];
+    private final Capture[] mPboCaptures = new Capture[PBO_COUNT];   // non-null while in use
+    private final long[] mPboOrder = new long[PBO_COUNT];
+    private long mNextOrder;
+    private long mFrameNumber;
+
+    /**
+     * @param compressExecutor Runs the image compression.  Should not be the GL thread.
+     */
+    public FrameCapture(Executor compressExecutor) {
+        this(compressExecutor, DEFAULT_POOL_SIZE);
+    }
+
+    /**
+     * @param compressExecutor Runs the image compression.  Should not be the GL thread.
+     * @param poolSize Number of frames that can be waiting for, or in, compression.  More
+     *     than the executor's thread count keeps them all busy; each costs two frames of
+     *     memory (the pixels and a Bitmap).
+     */
+    public FrameCapture(Executor compressExecutor, int poolSize) {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("bad pool size " + poolSize);
+        }
+        mCompressExecutor = compressExecutor;
+        mPoolSize = poolSize;
+        mPool = new ArrayBlockingQueue<PixelBuffer>(poolSize);
+    }
+
+    /**
+     * Sets the listener for captures requested without one.
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Asks for the next drawn frame to be saved.  PNG, unless the name ends in .jpg or
+     * .jpeg.  (Any thread.)
+     */
+    public void request(File file) {
+        mRequests.add(new Capture(file, 0, null));
+    }
+
+    /**
+     * Asks for a run of frames to be saved, one per drawn frame from the next one on, as
+     * far as the pool keeps up.  The whole pool is allocated before the first read.
+     * (Any thread.)
+     *
+     * @param files Where to save each frame, in order.
+     * @param listener Told about each frame; null for the one from setListener().
+     */
+    public void requestBurst(File[] files, Listener listener) {
+        mFillPool = true;
+        for (int i = 0; i < files.length; i++) {
+            mRequests.add(new Capture(files[i], i, listener));
+        }
+    }
+
+    /**
+     * Returns true if captures are waiting to be started or finished.  (GL thread.)
+     */
+    public boolean isBusy() {
+        if (!mRequests.isEmpty()) {
+            return true;
+        }
+        return hasReadbackInFlight();
+    }
+
+    /**
+     * Moves captures along.  Call on the GL thread after drawing a frame, with the frame
+     * still in the bound framebuffer.  Never blocks.
+     *
+     * @param width Width of the framebuffer.
+     * @param height Height of the framebuffer.
+     */
+    public void onFrameDrawn(int width, int height) {
+        mFrameNumber++;
+        if (mGlVersion == 0) {
+            if (mRequests.isEmpty()) {
+                return;
+            }
+            mGlVersion = GlUtil.getGlVersion();
+            Log.d(TAG, "FrameCapture using " +
+                    (mGlVersion >= 3 ? "pixel buffer objects" : "synchronous reads"));
+        }
+
+        collectReadbacks();
+        if (mRequests.isEmpty()) {
+            return;
+        }
+
+        if (width != mWidth || height != mHeight) {
+            if (hasReadbackInFlight()) {
+                return;         // finish those at the old size first
+            }
+            resize(width, height);
+        }
+        if (mFillPool) {
+            fillPool();
+        }
+
+        if (mGlVersion >= 3) {
+            startReadback();
+        } else {
+            readNow();
+        }
+    }
+
+    /**
+     * Starts an asynchronous read into a free pixel buffer object, if there is one.
+     */
+    private void startReadback() {
+        int slot = -1;
+        for (int i = 0; i < PBO_COUNT; i++) {
+            if (mPboCaptures[i] == null) {
+                slot = i;
+                break;
+            }
+        }
+        if (slot < 0) {
+            return;             // both busy; try again next frame
+        }
+        if (mPbos[slot] == 0) {
+            int[] ids = new int[1];
+            GLES20.glGenBuffers(1, ids, 0);
+            mPbos[slot] = ids[0];
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPbos[slot]);
+            GLES20.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, mWidth * mHeight * 4, null,
+                    GLES30.GL_STREAM_READ);
+        } else {
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPbos[slot]);
+        }
+        Capture capture = mRequests.poll();
+        capture.mFrameNumber = mFrameNumber;
+        capture.mReadStartNanos = System.nanoTime();
+        // With a pack buffer bound, the last argument is an offset into it, and the call
+        // returns without waiting for the GPU.
+        GLES30.glReadPixels(0, 0, mWidth, mHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0);
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        GlUtil.checkGlError("glReadPixels PBO");
+
+        mFences[slot] = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        mPboCaptures[slot] = capture;
+        mPboOrder[slot] = mNextOrder++;
+        if (VERBOSE) Log.d(TAG, "started readback of " + capture.mFile + " in " + slot);
+    }
+
+    /**
+     * Hands finished reads to the compressor, oldest first, as far as the pool allows.
+     */
+    private void collectReadbacks() {
+        while (true) {
+            int slot = -1;
+            for (int i = 0; i < PBO_COUNT; i++) {
+                if (mPboCaptures[i] != null && (slot < 0 || mPboOrder[i] < mPboOrder[slot])) {
+                    slot = i;
+                }
+            }
+            if (slot < 0) {
+                return;
+            }
+
+            int status = GLES30.glClientWaitSync(mFences[slot], 0, 0);
+            if (status == GLES30.GL_TIMEOUT_EXPIRED) {
+                return;         // GPU isn't there yet
+            }
+            Capture capture = mPboCaptures[slot];
+            if (status == GLES30.GL_WAIT_FAILED) {
+                Log.w(TAG, "fence wait failed for " + capture.mFile);
+                freeSlot(slot);
+                notifyListener(capture, false);
+                continue;
+            }
+            PixelBuffer buffer = obtainBuffer();
+            if (buffer == null) {
+                return;         // compressor still busy with earlier frames
+            }
+
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPbos[slot]);
+            ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(
+                    GLES30.GL_PIXEL_PACK_BUFFER, 0, mWidth * mHeight * 4, GLES30.GL_MAP_READ_BIT);
+            boolean mappedOk = mapped != null;
+            if (mappedOk) {
+                buffer.mPixels.clear();
+                buffer.mPixels.put(mapped);
+                GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+            }
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+            freeSlot(slot);
+
+            capture.mCaptureNanos = System.nanoTime() - capture.mReadStartNanos;
+            if (mappedOk) {
+                compress(buffer, capture);
+            } else {
+                Log.w(TAG, "glMapBufferRange failed for " + capture.mFile);
+                mPool.offer(buffer);
+                notifyListener(capture, false);
+            }
+        }
+    }
+
+    /**
+     * Reads the frame synchronously.  Only for contexts without pixel buffer objects.
+     */
+    private void readNow() {
+        PixelBuffer buffer = obtainBuffer();
+        if (buffer == null) {
+            return;
+        }
+        Capture capture = mRequests.poll();
+        capture.mFrameNumber = mFrameNumber;
+        long startNanos = System.nanoTime();
+        buffer.mPixels.clear();
+        GLES20.glReadPixels(0, 0, mWidth, mHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE,
+                buffer.mPixels);
+        GlUtil.checkGlError("glReadPixels");
+        capture.mCaptureNanos = System.nanoTime() - startNanos;
+        compress(buffer, capture);
+    }
+
+    private void freeSlot(int slot) {
+        GLES30.glDeleteSync(mFences[slot]);
+        mFences[slot] = 0;
+        mPboCaptures[slot] = null;
+    }
+
+    private boolean hasReadbackInFlight() {
+        for (int i = 0; i < PBO_COUNT; i++) {
+            if (mPboCaptures[i] != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Switches to a new frame size.  The pixel buffer objects get reallocated on next use,
+     * and pooled buffers of the old size are dropped as they come back.
+     */
+    private void resize(int width, int height) {
+        Log.d(TAG, "FrameCapture size " + width + "x" + height);
+        deletePbos(true);
+        mWidth = width;
+        mHeight = height;
+        synchronized (mPoolLock) {
+            mPool.clear();
+            mPoolGeneration.incrementAndGet();
+        }
+        mPoolAllocated = 0;
+    }
+
+    /**
+     * Returns a free pixel buffer, allocating one if the pool isn't full yet, or null if
+     * they're all with the compressor.
+     */
+    private PixelBuffer obtainBuffer() {
+        PixelBuffer buffer = mPool.poll();
+        if (buffer == null && mPoolAllocated < mPoolSize) {
+            buffer = new PixelBuffer(mWidth, mHeight, mPoolGeneration.get());
+            mPoolAllocated++;
+        }
+        return buffer;
+    }
+
+    /**
+     * Allocates the rest of the pool, so a burst doesn't allocate between its frames.
+     */
+    private void fillPool() {
+        while (mPoolAllocated < mPoolSize) {
+            mPool.offer(new PixelBuffer(mWidth, mHeight, mPoolGeneration.get()));
+            mPoolAllocated++;
+        }
+        mFillPool = false;
+    }
+
+    private void compress(final PixelBuffer buffer, final Capture capture) {
+        mCompressExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long startNanos = System.nanoTime();
+                boolean success = buffer.save(capture.mFile);
+                capture.mEncodeNanos = System.nanoTime() - startNanos;
+                boolean pooled = false;
+                synchronized (mPoolLock) {
+                    if (buffer.mGeneration == mPoolGeneration.get()) {
+                        pooled = mPool.offer(buffer);
+                    }
+                }
+                if (!pooled) {
+                    buffer.recycle();   // from before a resize
+                }
+                notifyListener(capture, success);
+            }
+        });
+    }
+
+    private void notifyListener(Capture capture, boolean success) {
+        capture.mSuccess = success;
+        Listener listener = capture.mListener != null ? capture.mListener : mListener;
+        if (listener != null) {
+            listener.onFrameCaptured(capture);
+        }
+    }
+
+    private void deletePbos(boolean doEglCleanup) {
+        for (int i = 0; i < PBO_COUNT; i++) {
+            if (mPbos[i] != 0) {
+                if (doEglCleanup) {
+                    int[] ids = new int[] { mPbos[i] };
+                    GLES20.glDeleteBuffers(1, ids, 0);
+                }
+                mPbos[i] = 0;
+            }
+        }
+    }
+
+    /**
+     * Releases the GL objects.  Reads still in flight are reported as failed; requests not
+     * yet started stay queued for the next context.  See
+     * {@link FullFrameRect#release(boolean)} for doEglCleanup.
+     */
+    public void release(boolean doEglCleanup) {
+        for (int i = 0; i < PBO_COUNT; i++) {
+            if (mPboCaptures[i] != null) {
+                Capture capture = mPboCaptures[i];
+                if (doEglCleanup) {
+                    GLES30.glDeleteSync(mFences[i]);
+                }
+                mFences[i] = 0;
+                mPboCaptures[i] = null;
+                notifyListener(capture, false);
+            }
+        }
+        deletePbos(doEglCleanup);
+        mGlVersion = 0;
+        mWidth = mHeight = 0;
+    }
+
+    /**
+     * One frame's worth of pixels, plus a Bitmap of the same size to compress from.  The
+     * Bitmap is only touched on the compression thread.
+     */
+    private static class PixelBuffer {
+        final ByteBuffer mPixels;
+        final int mWidth;
+        final int mHeight;
+        final int mGeneration;
+        private final byte[] mRowA;
+        private final byte[] mRowB;
+        private Bitmap mBitmap;
+
+        PixelBuffer(int width, int height, int generation) {
+            mWidth = width;
+            mHeight = height;
+            mGeneration = generation;
+            mPixels = ByteBuffer.allocateDirect(width * height * 4);
+            mPixels.order(ByteOrder.LITTLE_ENDIAN);
+            mRowA = new byte[width * 4];
+            mRowB = new byte[width * 4];
+        }
+
+        /**
+         * Writes the pixels out.  (Compression thread.)
+         */
+        boolean save(File file) {
+            // GL's rows go bottom to top.
+            int stride = mWidth * 4;
+            for (int top = 0, bottom = mHeight - 1; top < bottom; top++, bottom--) {
+                mPixels.position(top * stride);
+                mPixels.get(mRowA);
+                mPixels.position(bottom * stride);
+                mPixels.get(mRowB);
+                mPixels.position(bottom * stride);
+                mPixels.put(mRowA);
+                mPixels.position(top * stride);
+                mPixels.put(mRowB);
+            }
+            mPixels.rewind();
+
+            if (mBitmap == null) {
+                mBitmap = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
+            }
+            mBitmap.copyPixelsFromBuffer(mPixels);
+
+            String name = file.getName().toLowerCase();
+            boolean jpeg = name.endsWith(".jpg") || name.endsWith(".jpeg");
+            OutputStream os = null;
+            try {
+                os = new BufferedOutputStream(new FileOutputStream(file));
+                mBitmap.compress(jpeg ? Bitmap.CompressFormat.JPEG : Bitmap.CompressFormat.PNG,
+                        JPEG_QUALITY, os);
+                Log.d(TAG, "Saved " + mWidth + "x" + mHeight + " frame as '" + file + "'");
+                return true;
+            } catch (IOException ioe) {
+                Log.w(TAG, "unable to save frame to " + file, ioe);
+                return false;
+            } finally {
+                if (os != null) {
+                    try {
+                        os.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+
+        void recycle() {
+            if (mBitmap != null) {
+                mBitmap.recycle();
+                mBitmap = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.process.RecordLib.opengl;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+/**
+ * An offscreen render target: a framebuffer object with an RGBA GL_TEXTURE_2D as its color
+ * attachment.  Draw into it between bind() and unbind(), then sample getTextureId() with a
+ * TEXTURE_2D program.
+ * <p>
+ * The texture lives in the EGL context that was current when this was created, and can be
+ * used from any context that shares with it.
+ */
+public class FramebufferTexture {
+    private static final String TAG = GlUtil.TAG;
+
+    private final int mWidth;
+    private final int mHeight;
+    private int mTextureId;
+    private int mFramebufferId;
+
+    /**
+     * Creates the texture and framebuffer.  An EGL context must be current.
+     */
+    public FramebufferTexture(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("bad size " + width + "x" + height);
+        }
+        mWidth = width;
+        mHeight = height;
+
+        int[] values = new int[1];
+        GLES20.glGenTextures(1, values, 0);
+        mTextureId = values[0];
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureId);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GlUtil.checkGlError("glTexImage2D");
+
+        GLES20.glGenFramebuffers(1, values, 0);
+        mFramebufferId = values[0];
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebufferId);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, mTextureId, 0);
+        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            release();
+            throw new RuntimeException("framebuffer not complete, status=0x" +
+                    Integer.toHexString(status));
+        }
+        Log.d(TAG, "Created framebuffer " + mFramebufferId + " texture " + mTextureId +
+                " " + width + "x" + height);
+    }
+
+    /**
+     * Directs rendering into the texture, and sets the viewport to cover it.
+     */
+    public void bind() {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebufferId);
+        GLES20.glViewport(0, 0, mWidth, mHeight);
+    }
+
+    /**
+     * Directs rendering back to the window surface.  The caller restores the viewport.
+     */
+    public void unbind() {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    }
+
+    /**
+     * Deletes the framebuffer and texture.  The creating context (or one sharing with it)
+     * must be current.
+     */
+    public void release() {
+        int[] values = new int[1];
+        if (mFramebufferId != 0) {
+            values[0] = mFramebufferId;
+            GLES20.glDeleteFramebuffers(1, values, 0);
+            mFramebufferId = 0;
+        }
+        if (mTextureId != 0) {
+            values[0] = mTextureId;
+            GLES20.glDeleteTextures(1, values, 0);
+            mTextureId = 0;
+        }
+    }
+
+    public int getTextureId() {
+        return mTextureId;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+}
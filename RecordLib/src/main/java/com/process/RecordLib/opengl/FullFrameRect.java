@@ -21,8 +21,14 @@ package com.process.RecordLib.opengl;
  * a texture, usually from an external source like the camera or video decoder.
  */
 public class FullFrameRect {
+    // Draw from vertex buffer objects rather than client arrays.  If they can't be created,
+    // we fall back to the client arrays anyway.
+    private static final boolean USE_VERTEX_BUFFERS = true;
+
     private final Drawable2d mRectDrawable = new Drawable2d(Drawable2d.Prefab.FULL_RECTANGLE);
     private Texture2dProgram mProgram;
+    private boolean mOwnsProgram;
+    private boolean mVertexBuffersTried;
 
     /**
      * Prepares the object.
@@ -31,7 +37,20 @@ public class FullFrameRect {
      *     the program when no longer needed.
      */
     public FullFrameRect(Texture2dProgram program) {
+        this(program, true);
+    }
+
+    /**
+     * Prepares the object.
+     *
+     * @param program The program to use.
+     * @param takeOwnership If true, FullFrameRect will release the program when no longer
+     *     needed.  Pass false for programs that belong to someone else, e.g. a
+     *     {@link ProgramCache}.
+     */
+    public FullFrameRect(Texture2dProgram program, boolean takeOwnership) {
         mProgram = program;
+        mOwnsProgram = takeOwnership;
     }
 
     /**
@@ -43,8 +62,10 @@ public class FullFrameRect {
      * can pass a flag that will tell this function to skip any EGL-context-specific cleanup.
      */
     public void release(boolean doEglCleanup) {
+        mRectDrawable.releaseVertexBuffers(doEglCleanup);
+        mVertexBuffersTried = false;
         if (mProgram != null) {
-            if (doEglCleanup) {
+            if (doEglCleanup && mOwnsProgram) {
                 mProgram.release();
             }
             mProgram = null;
@@ -59,13 +80,26 @@ public class FullFrameRect {
     }
 
     /**
-     * Changes the program.  The previous program will be released.
+     * Changes the program.  The previous program will be released, if we own it.  We own
+     * the new one.
      * <p>
      * The appropriate EGL context must be current.
      */
     public void changeProgram(Texture2dProgram program) {
-        mProgram.release();
+        changeProgram(program, true);
+    }
+
+    /**
+     * Changes the program.  The previous program will be released, if we own it.
+     *
+     * @param takeOwnership See {@link #FullFrameRect(Texture2dProgram, boolean)}.
+     */
+    public void changeProgram(Texture2dProgram program, boolean takeOwnership) {
+        if (mOwnsProgram) {
+            mProgram.release();
+        }
         mProgram = program;
+        mOwnsProgram = takeOwnership;
     }
 
     /**
@@ -79,7 +113,21 @@ public class FullFrameRect {
      * Draws a viewport-filling rect, texturing it with the specified texture object.
      */
     public void drawFrame(int textureId, float[] texMatrix) {
+        if (USE_VERTEX_BUFFERS && !mVertexBuffersTried) {
+            // First draw, so the context we'll be drawing in is current.
+            mRectDrawable.createVertexBuffers();
+            mVertexBuffersTried = true;
+        }
+
         // Use the identity matrix for MVP so our 2x2 FULL_RECTANGLE covers the viewport.
+        if (mRectDrawable.getVertexBufferId() != 0) {
+            mProgram.draw(GlUtil.IDENTITY_MATRIX, mRectDrawable.getVertexBufferId(), 0,
+                    mRectDrawable.getVertexCount(), mRectDrawable.getCoordsPerVertex(),
+                    mRectDrawable.getVertexStride(),
+                    texMatrix, mRectDrawable.getTexCoordBufferId(), textureId,
+                    mRectDrawable.getTexCoordStride());
+            return;
+        }
         mProgram.draw(GlUtil.IDENTITY_MATRIX, mRectDrawable.getVertexArray(), 0,
                 mRectDrawable.getVertexCount(), mRectDrawable.getCoordsPerVertex(),
                 mRectDrawable.getVertexStride(),
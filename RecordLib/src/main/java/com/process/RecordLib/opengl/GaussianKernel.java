@@ -0,0 +1,69 @@
+package com.process.RecordLib.opengl;
+
+/**
+ * Computes 1D Gaussian blur taps for the separable blur programs.  No GL calls.
+ * <p>
+ * A blur of radius r covers 2r+1 texels.  Rather than fetch each one, neighboring pairs
+ * are merged into a single fetch placed between them, at the point where the bilinear
+ * filter mixes the two in the right proportion.  One side then takes 1 + ceil(r/2) taps;
+ * the shader mirrors all but the center one, for r + 1 or r + 2 fetches per pass.
+ */
+public class GaussianKernel {
+    private GaussianKernel() {}
+
+    /**
+     * Returns the number of taps computeTaps() produces for a radius.
+     */
+    public static int getTapCount(int radius) {
+        return 1 + (radius + 1) / 2;
+    }
+
+    /**
+     * Fills in the tap offsets (in texels, from the center) and weights for one side of a
+     * blur.  Tap 0 is the center.  The weights, counting every tap but the center twice,
+     * add up to 1.
+     *
+     * @param radius Blur radius in texels; 0 is no blur.
+     * @param offsets Receives getTapCount(radius) offsets.
+     * @param weights Receives getTapCount(radius) weights.
+     * @return The number of taps.
+     */
+    public static int computeTaps(int radius, float[] offsets, float[] weights) {
+        if (radius < 0) {
+            throw new IllegalArgumentException("bad radius " + radius);
+        }
+        int tapCount = getTapCount(radius);
+        if (offsets.length < tapCount || weights.length < tapCount) {
+            throw new IllegalArgumentException("need " + tapCount + " taps for radius " +
+                    radius);
+        }
+        if (radius == 0) {
+            offsets[0] = 0f;
+            weights[0] = 1f;
+            return 1;
+        }
+
+        // Two sigmas each way leaves ~5% of the curve outside the radius, which doesn't
+        // show, and keeps small radii from collapsing onto the center texel.
+        double sigma = radius / 2.0;
+        double total = gaussian(0, sigma);
+        for (int i = 1; i <= radius; i++) {
+            total += 2 * gaussian(i, sigma);
+        }
+
+        offsets[0] = 0f;
+        weights[0] = (float) (gaussian(0, sigma) / total);
+        for (int tap = 1; tap < tapCount; tap++) {
+            int first = tap * 2 - 1;
+            double w1 = gaussian(first, sigma) / total;
+            double w2 = first + 1 <= radius ? gaussian(first + 1, sigma) / total : 0.0;
+            weights[tap] = (float) (w1 + w2);
+            offsets[tap] = (float) ((first * w1 + (first + 1) * w2) / (w1 + w2));
+        }
+        return tapCount;
+    }
+
+    private static double gaussian(int x, double sigma) {
+        return Math.exp(-(x * x) / (2 * sigma * sigma));
+    }
+}
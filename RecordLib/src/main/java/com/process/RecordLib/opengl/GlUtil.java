@@ -178,6 +178,64 @@ public class GlUtil {
         return fb;
     }
 
+    /**
+     * Computes a texture transform that fills a destination of a different shape with the
+     * middle of the source, cropping whichever sides stick out.  Nothing is stretched.
+     * <p>
+     * The crop is applied on the texture coordinates before texMatrix, so it's in the
+     * destination's orientation; if texMatrix turns the image sideways (as the camera's
+     * often does), the source's width and height are swapped to match.
+     *
+     * @param texMatrix Transform for the whole source, e.g. from SurfaceTexture.
+     * @param srcWidth Width of the source texture, before texMatrix.
+     * @param srcHeight Height of the source texture, before texMatrix.
+     * @param dstWidth Width of the area being drawn.
+     * @param dstHeight Height of the area being drawn.
+     * @param result Receives the transform.  May be texMatrix.
+     */
+    public static void centerCropMatrix(float[] texMatrix, int srcWidth, int srcHeight,
+            int dstWidth, int dstHeight, float[] result) {
+        // Column-major.  If x comes out of the transform as y, the image is on its side.
+        boolean sideways = Math.abs(texMatrix[1]) > Math.abs(texMatrix[0]);
+        float srcAspect = sideways ? (float) srcHeight / srcWidth : (float) srcWidth / srcHeight;
+        float dstAspect = (float) dstWidth / dstHeight;
+        float scaleX = 1f;
+        float scaleY = 1f;
+        if (srcAspect > dstAspect) {
+            scaleX = dstAspect / srcAspect;         // source is wider; crop left and right
+        } else {
+            scaleY = srcAspect / dstAspect;         // source is taller; crop top and bottom
+        }
+        float offsetX = (1f - scaleX) / 2f;
+        float offsetY = (1f - scaleY) / 2f;
+
+        // result = texMatrix * (translate(offset) * scale), worked out by hand.
+        for (int i = 0; i < 4; i++) {
+            result[12 + i] = offsetX * texMatrix[i] + offsetY * texMatrix[4 + i] +
+                    texMatrix[12 + i];
+            result[i] = scaleX * texMatrix[i];
+            result[4 + i] = scaleY * texMatrix[4 + i];
+            result[8 + i] = texMatrix[8 + i];
+        }
+    }
+
+    /**
+     * Returns the major version of the current context, from the GL_VERSION string
+     * ("OpenGL ES 3.2 ...").  Contexts we didn't create ourselves, e.g. GLSurfaceView's, are
+     * often a newer version than was asked for; this says whether GLES30 calls will work.
+     */
+    public static int getGlVersion() {
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        String prefix = "OpenGL ES ";
+        if (version != null && version.startsWith(prefix) && version.length() > prefix.length()) {
+            char major = version.charAt(prefix.length());
+            if (Character.isDigit(major)) {
+                return major - '0';
+            }
+        }
+        return 2;
+    }
+
     /**
      * Writes GL version info to the log.
      */
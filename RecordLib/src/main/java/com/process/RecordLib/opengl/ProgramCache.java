@@ -0,0 +1,118 @@
+package com.process.RecordLib.opengl;
+
+import android.util.Log;
+
+/**
+ * Compiled {@link Texture2dProgram}s for one EGL context, one per ProgramType.
+ * <p>
+ * Compiling and linking a program takes long enough to drop a frame, so each type is built
+ * the first time it's asked for (or up front, with precompile()) and handed out again after
+ * that.  Programs from the cache are shared: callers must not release them, and must set
+ * any per-draw state (kernel, texture size) before each draw rather than assume it stuck.
+ * <p>
+ * Programs belong to the context that was current when they were compiled.  Use one cache
+ * per context, from that context's thread, and drop it along with the context.
+ */
+public class ProgramCache {
+    private static final String TAG = GlUtil.TAG;
+
+    private final Texture2dProgram[] mPrograms =
+            new Texture2dProgram[Texture2dProgram.ProgramType.values().length];
+
+    private int mHitCount;
+    private int mMissCount;
+    private long mCompileNanos;
+    private long mMaxCompileNanos;
+
+    /**
+     * Returns the program for the given type, compiling it if this is the first request.
+     */
+    public Texture2dProgram get(Texture2dProgram.ProgramType type) {
+        Texture2dProgram program = mPrograms[type.ordinal()];
+        if (program != null) {
+            mHitCount++;
+            return program;
+        }
+        mMissCount++;
+        return compile(type);
+    }
+
+    /**
+     * Compiles the given types now, if they aren't already, so later get() calls don't
+     * stall.  Doesn't count as hits or misses.
+     */
+    public void precompile(Texture2dProgram.ProgramType... types) {
+        for (Texture2dProgram.ProgramType type : types) {
+            if (mPrograms[type.ordinal()] == null) {
+                compile(type);
+            }
+        }
+    }
+
+    /**
+     * Compiles every program type.
+     */
+    public void precompileAll() {
+        precompile(Texture2dProgram.ProgramType.values());
+    }
+
+    private Texture2dProgram compile(Texture2dProgram.ProgramType type) {
+        long startNanos = System.nanoTime();
+        Texture2dProgram program = new Texture2dProgram(type);
+        long elapsedNanos = System.nanoTime() - startNanos;
+        mPrograms[type.ordinal()] = program;
+        mCompileNanos += elapsedNanos;
+        mMaxCompileNanos = Math.max(mMaxCompileNanos, elapsedNanos);
+        Log.d(TAG, "compiled " + type + " in " + elapsedNanos / 1000 + "us");
+        return program;
+    }
+
+    /**
+     * Returns the number of get() calls answered from the cache.
+     */
+    public int getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * Returns the number of get() calls that had to compile.
+     */
+    public int getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Returns the total time spent compiling, including precompile().
+     */
+    public long getCompileNanos() {
+        return mCompileNanos;
+    }
+
+    /**
+     * Returns the longest single compile.
+     */
+    public long getMaxCompileNanos() {
+        return mMaxCompileNanos;
+    }
+
+    /**
+     * Releases all programs.  See {@link FullFrameRect#release(boolean)} for doEglCleanup.
+     */
+    public void release(boolean doEglCleanup) {
+        Log.d(TAG, "releasing " + this);
+        for (int i = 0; i < mPrograms.length; i++) {
+            if (mPrograms[i] != null) {
+                if (doEglCleanup) {
+                    mPrograms[i].release();
+                }
+                mPrograms[i] = null;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ProgramCache hits=" + mHitCount + " misses=" + mMissCount + " compile=" +
+                mCompileNanos / 1000 + "us (max " + mMaxCompileNanos / 1000 + "us)";
+    }
+}
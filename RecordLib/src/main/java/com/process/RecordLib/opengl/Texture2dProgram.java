@@ -29,7 +29,9 @@ public class Texture2dProgram {
     private static final String TAG = GlUtil.TAG;
 
     public enum ProgramType {
-        TEXTURE_2D, TEXTURE_EXT, TEXTURE_EXT_BW, TEXTURE_EXT_FILT
+        TEXTURE_2D, TEXTURE_EXT, TEXTURE_EXT_BW, TEXTURE_EXT_FILT,
+        TEXTURE_2D_BW, TEXTURE_2D_FILT,
+        TEXTURE_EXT_CONV, TEXTURE_2D_CONV, TEXTURE_EXT_BLUR, TEXTURE_2D_BLUR
     }
 
     // Simple vertex shader, used for all programs.
@@ -113,6 +115,94 @@ public class Texture2dProgram {
             "    gl_FragColor = sum;\n" +
             "}\n";
 
+    // Vertex shader for full-frame convolution.  Working out the neighbors' coordinates
+    // here, rather than in the fragment shader, lets the GPU fetch the texels without
+    // waiting on arithmetic.  The center is vTextureCoord; the other eight are packed two
+    // to a varying.
+    private static final String VERTEX_SHADER_CONV =
+            "#define KERNEL_SIZE " + KERNEL_SIZE + "\n" +
+            "uniform mat4 uMVPMatrix;\n" +
+            "uniform mat4 uTexMatrix;\n" +
+            "uniform vec2 uTexOffset[KERNEL_SIZE];\n" +
+            "attribute vec4 aPosition;\n" +
+            "attribute vec4 aTextureCoord;\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "varying vec4 vTaps01;\n" +
+            "varying vec4 vTaps23;\n" +
+            "varying vec4 vTaps56;\n" +
+            "varying vec4 vTaps78;\n" +
+            "void main() {\n" +
+            "    gl_Position = uMVPMatrix * aPosition;\n" +
+            "    vec2 tc = (uTexMatrix * aTextureCoord).xy;\n" +
+            "    vTextureCoord = tc;\n" +
+            "    vTaps01 = vec4(tc + uTexOffset[0], tc + uTexOffset[1]);\n" +
+            "    vTaps23 = vec4(tc + uTexOffset[2], tc + uTexOffset[3]);\n" +
+            "    vTaps56 = vec4(tc + uTexOffset[5], tc + uTexOffset[6]);\n" +
+            "    vTaps78 = vec4(tc + uTexOffset[7], tc + uTexOffset[8]);\n" +
+            "}\n";
+
+    // Fragment shader that applies the 3x3 kernel to the whole frame.  Unlike
+    // FRAGMENT_SHADER_EXT_FILT there's no split view, and the output is opaque.
+    private static final String FRAGMENT_SHADER_EXT_CONV =
+            "#extension GL_OES_EGL_image_external : require\n" +
+            "#define KERNEL_SIZE " + KERNEL_SIZE + "\n" +
+            "precision mediump float;\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "varying vec4 vTaps01;\n" +
+            "varying vec4 vTaps23;\n" +
+            "varying vec4 vTaps56;\n" +
+            "varying vec4 vTaps78;\n" +
+            "uniform samplerExternalOES sTexture;\n" +
+            "uniform float uKernel[KERNEL_SIZE];\n" +
+            "uniform float uColorAdjust;\n" +
+            "void main() {\n" +
+            "    vec4 sum = texture2D(sTexture, vTaps01.xy) * uKernel[0];\n" +
+            "    sum += texture2D(sTexture, vTaps01.zw) * uKernel[1];\n" +
+            "    sum += texture2D(sTexture, vTaps23.xy) * uKernel[2];\n" +
+            "    sum += texture2D(sTexture, vTaps23.zw) * uKernel[3];\n" +
+            "    sum += texture2D(sTexture, vTextureCoord) * uKernel[4];\n" +
+            "    sum += texture2D(sTexture, vTaps56.xy) * uKernel[5];\n" +
+            "    sum += texture2D(sTexture, vTaps56.zw) * uKernel[6];\n" +
+            "    sum += texture2D(sTexture, vTaps78.xy) * uKernel[7];\n" +
+            "    sum += texture2D(sTexture, vTaps78.zw) * uKernel[8];\n" +
+            "    gl_FragColor = vec4(sum.rgb + uColorAdjust, 1.0);\n" +
+            "}\n";
+
+    // Fragment shader for one direction of a separable Gaussian blur.  Run it once with a
+    // horizontal step and once with a vertical one.  The taps come from GaussianKernel;
+    // each one but the center is fetched on both sides.
+    public static final int MAX_BLUR_RADIUS = 16;
+    private static final int MAX_BLUR_TAPS = GaussianKernel.getTapCount(MAX_BLUR_RADIUS);
+    private static final String FRAGMENT_SHADER_EXT_BLUR =
+            "#extension GL_OES_EGL_image_external : require\n" +
+            "#define MAX_TAPS " + MAX_BLUR_TAPS + "\n" +
+            "precision mediump float;\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "uniform samplerExternalOES sTexture;\n" +
+            "uniform vec2 uBlurStep;\n" +
+            "uniform float uBlurOffset[MAX_TAPS];\n" +
+            "uniform float uBlurWeight[MAX_TAPS];\n" +
+            "uniform int uBlurTapCount;\n" +
+            "void main() {\n" +
+            "    vec4 sum = texture2D(sTexture, vTextureCoord) * uBlurWeight[0];\n" +
+            "    for (int i = 1; i < MAX_TAPS; i++) {\n" +
+            "        if (i >= uBlurTapCount) {\n" +
+            "            break;\n" +
+            "        }\n" +
+            "        vec2 offset = uBlurStep * uBlurOffset[i];\n" +
+            "        sum += (texture2D(sTexture, vTextureCoord + offset) +\n" +
+            "                texture2D(sTexture, vTextureCoord - offset)) * uBlurWeight[i];\n" +
+            "    }\n" +
+            "    gl_FragColor = sum;\n" +
+            "}\n";
+
+    // The same filters, reading a "normal" 2D texture, for passes after the first in a
+    // FilterChain.
+    private static final String FRAGMENT_SHADER_2D_BW = toTexture2d(FRAGMENT_SHADER_EXT_BW);
+    private static final String FRAGMENT_SHADER_2D_FILT = toTexture2d(FRAGMENT_SHADER_EXT_FILT);
+    private static final String FRAGMENT_SHADER_2D_CONV = toTexture2d(FRAGMENT_SHADER_EXT_CONV);
+    private static final String FRAGMENT_SHADER_2D_BLUR = toTexture2d(FRAGMENT_SHADER_EXT_BLUR);
+
     private ProgramType mProgramType;
 
     // Handles to the GL program and various components of it.
@@ -122,6 +212,10 @@ public class Texture2dProgram {
     private int muKernelLoc;
     private int muTexOffsetLoc;
     private int muColorAdjustLoc;
+    private int muBlurStepLoc;
+    private int muBlurOffsetLoc;
+    private int muBlurWeightLoc;
+    private int muBlurTapCountLoc;
     private int maPositionLoc;
     private int maTextureCoordLoc;
 
@@ -131,6 +225,12 @@ public class Texture2dProgram {
     private float[] mTexOffset;
     private float mColorAdjust;
 
+    private int mBlurRadius = -1;
+    private final float[] mBlurOffset = new float[MAX_BLUR_TAPS];
+    private final float[] mBlurWeight = new float[MAX_BLUR_TAPS];
+    private int mBlurTapCount;
+    private float mBlurStepX, mBlurStepY;
+
 
     /**
      * Prepares the program in the current EGL context.
@@ -155,6 +255,32 @@ public class Texture2dProgram {
                 mTextureTarget = GLES11Ext.GL_TEXTURE_EXTERNAL_OES;
                 mProgramHandle = GlUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER_EXT_FILT);
                 break;
+            case TEXTURE_2D_BW:
+                mTextureTarget = GLES20.GL_TEXTURE_2D;
+                mProgramHandle = GlUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER_2D_BW);
+                break;
+            case TEXTURE_2D_FILT:
+                mTextureTarget = GLES20.GL_TEXTURE_2D;
+                mProgramHandle = GlUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER_2D_FILT);
+                break;
+            case TEXTURE_EXT_CONV:
+                mTextureTarget = GLES11Ext.GL_TEXTURE_EXTERNAL_OES;
+                mProgramHandle = GlUtil.createProgram(VERTEX_SHADER_CONV,
+                        FRAGMENT_SHADER_EXT_CONV);
+                break;
+            case TEXTURE_2D_CONV:
+                mTextureTarget = GLES20.GL_TEXTURE_2D;
+                mProgramHandle = GlUtil.createProgram(VERTEX_SHADER_CONV,
+                        FRAGMENT_SHADER_2D_CONV);
+                break;
+            case TEXTURE_EXT_BLUR:
+                mTextureTarget = GLES11Ext.GL_TEXTURE_EXTERNAL_OES;
+                mProgramHandle = GlUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER_EXT_BLUR);
+                break;
+            case TEXTURE_2D_BLUR:
+                mTextureTarget = GLES20.GL_TEXTURE_2D;
+                mProgramHandle = GlUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER_2D_BLUR);
+                break;
             default:
                 throw new RuntimeException("Unhandled type " + programType);
         }
@@ -190,6 +316,32 @@ public class Texture2dProgram {
             setKernel(new float[] {0f, 0f, 0f,  0f, 1f, 0f,  0f, 0f, 0f}, 0f);
             setTexSize(256, 256);
         }
+        muBlurWeightLoc = GLES20.glGetUniformLocation(mProgramHandle, "uBlurWeight");
+        if (muBlurWeightLoc < 0) {
+            // not a blur
+            muBlurWeightLoc = -1;
+            muBlurOffsetLoc = -1;
+            muBlurStepLoc = -1;
+            muBlurTapCountLoc = -1;
+        } else {
+            muBlurOffsetLoc = GLES20.glGetUniformLocation(mProgramHandle, "uBlurOffset");
+            GlUtil.checkLocation(muBlurOffsetLoc, "uBlurOffset");
+            muBlurStepLoc = GLES20.glGetUniformLocation(mProgramHandle, "uBlurStep");
+            GlUtil.checkLocation(muBlurStepLoc, "uBlurStep");
+            muBlurTapCountLoc = GLES20.glGetUniformLocation(mProgramHandle, "uBlurTapCount");
+            GlUtil.checkLocation(muBlurTapCountLoc, "uBlurTapCount");
+
+            // initialize default values
+            setBlurRadius(0);
+        }
+    }
+
+    /**
+     * Turns a fragment shader for an external texture into one for a 2D texture.
+     */
+    private static String toTexture2d(String extShader) {
+        return extShader.replace("#extension GL_OES_EGL_image_external : require\n", "")
+                .replace("samplerExternalOES", "sampler2D");
     }
 
     /**
@@ -225,8 +377,9 @@ public class Texture2dProgram {
         GLES20.glBindTexture(mTextureTarget, texId);
         GlUtil.checkGlError("glBindTexture " + texId);
 
+        // Linear both ways: the blur relies on the bilinear filter to blend texel pairs.
         GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER,
-                GLES20.GL_NEAREST);
+                GLES20.GL_LINEAR);
         GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER,
                 GLES20.GL_LINEAR);
         GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_S,
@@ -260,15 +413,46 @@ public class Texture2dProgram {
         float rw = 1.0f / width;
         float rh = 1.0f / height;
 
-        // Don't need to create a new array here, but it's syntactically convenient.
-        mTexOffset = new float[] {
-            -rw, -rh,   0f, -rh,    rw, -rh,
-            -rw, 0f,    0f, 0f,     rw, 0f,
-            -rw, rh,    0f, rh,     rw, rh
-        };
+        // Cached programs get this on every draw, so fill in the array we have.
+        float[] offset = mTexOffset;
+        if (offset == null) {
+            offset = mTexOffset = new float[KERNEL_SIZE * 2];
+        }
+        int i = 0;
+        for (int y = -1; y <= 1; y++) {
+            for (int x = -1; x <= 1; x++) {
+                offset[i++] = x * rw;
+                offset[i++] = y * rh;
+            }
+        }
         //Log.d(TAG, "filt size: " + width + "x" + height + ": " + Arrays.toString(mTexOffset));
     }
 
+    /**
+     * Sets the radius of the Gaussian blur, in texels.  Cheap if the radius hasn't changed.
+     *
+     * @param radius 0 to MAX_BLUR_RADIUS.
+     */
+    public void setBlurRadius(int radius) {
+        if (radius < 0 || radius > MAX_BLUR_RADIUS) {
+            throw new IllegalArgumentException("Blur radius is " + radius + " vs. max " +
+                    MAX_BLUR_RADIUS);
+        }
+        if (radius != mBlurRadius) {
+            mBlurTapCount = GaussianKernel.computeTaps(radius, mBlurOffset, mBlurWeight);
+            mBlurRadius = radius;
+        }
+    }
+
+    /**
+     * Sets the direction of the blur: the distance from one texel to the next, in texture
+     * coordinates.  (1/width, 0) for horizontal, (0, 1/height) for vertical.
+     */
+    public void setBlurStep(float x, float y) {
+        mBlurStepX = x;
+        mBlurStepY = y;
+    }
+
     /**
      * Issues the draw call.  Does the full setup on every call.
      *
@@ -289,21 +473,7 @@ public class Texture2dProgram {
                      float[] texMatrix, FloatBuffer texBuffer, int textureId, int texStride) {
         GlUtil.checkGlError("draw start");
 
-        // Select the program.
-        GLES20.glUseProgram(mProgramHandle);
-        GlUtil.checkGlError("glUseProgram");
-
-        // Set the texture.
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(mTextureTarget, textureId);
-
-        // Copy the model / view / projection matrix over.
-        GLES20.glUniformMatrix4fv(muMVPMatrixLoc, 1, false, mvpMatrix, 0);
-        GlUtil.checkGlError("glUniformMatrix4fv");
-
-        // Copy the texture transformation matrix over.
-        GLES20.glUniformMatrix4fv(muTexMatrixLoc, 1, false, texMatrix, 0);
-        GlUtil.checkGlError("glUniformMatrix4fv");
+        prepareDraw(mvpMatrix, texMatrix, textureId);
 
         // Enable the "aPosition" vertex attribute.
         GLES20.glEnableVertexAttribArray(maPositionLoc);
@@ -323,6 +493,66 @@ public class Texture2dProgram {
                 GLES20.GL_FLOAT, false, texStride, texBuffer);
             GlUtil.checkGlError("glVertexAttribPointer");
 
+        finishDraw(firstVertex, vertexCount);
+    }
+
+    /**
+     * Issues the draw call, with vertex data from buffer objects (see
+     * {@link Drawable2d#createVertexBuffers()}).  Nothing is copied from client memory, so
+     * the driver doesn't have to upload the vertices again every frame.
+     *
+     * @param vertexBufferId GL_ARRAY_BUFFER with vertex position data.
+     * @param texBufferId GL_ARRAY_BUFFER with vertex texture data.
+     * @see #draw(float[], FloatBuffer, int, int, int, int, float[], FloatBuffer, int, int)
+     */
+    public void draw(float[] mvpMatrix, int vertexBufferId, int firstVertex,
+                     int vertexCount, int coordsPerVertex, int vertexStride,
+                     float[] texMatrix, int texBufferId, int textureId, int texStride) {
+        GlUtil.checkGlError("draw start");
+
+        prepareDraw(mvpMatrix, texMatrix, textureId);
+
+        // Connect the vertex buffer to "aPosition".
+        GLES20.glEnableVertexAttribArray(maPositionLoc);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBufferId);
+        GLES20.glVertexAttribPointer(maPositionLoc, coordsPerVertex,
+                GLES20.GL_FLOAT, false, vertexStride, 0);
+        GlUtil.checkGlError("glVertexAttribPointer");
+
+        // Connect the texture coordinate buffer to "aTextureCoord".
+        GLES20.glEnableVertexAttribArray(maTextureCoordLoc);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, texBufferId);
+        GLES20.glVertexAttribPointer(maTextureCoordLoc, 2,
+                GLES20.GL_FLOAT, false, texStride, 0);
+        GlUtil.checkGlError("glVertexAttribPointer");
+
+        // The attributes remember their buffers.  Unbind so that client-array draws
+        // elsewhere in this context aren't taken as buffer offsets.
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+
+        finishDraw(firstVertex, vertexCount);
+    }
+
+    /**
+     * Selects the program and texture, and sets the uniforms.
+     */
+    private void prepareDraw(float[] mvpMatrix, float[] texMatrix, int textureId) {
+        // Select the program.
+        GLES20.glUseProgram(mProgramHandle);
+        GlUtil.checkGlError("glUseProgram");
+
+        // Set the texture.
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(mTextureTarget, textureId);
+
+        // Copy the model / view / projection matrix over.
+        GLES20.glUniformMatrix4fv(muMVPMatrixLoc, 1, false, mvpMatrix, 0);
+        GlUtil.checkGlError("glUniformMatrix4fv");
+
+        // Copy the texture transformation matrix over.
+        GLES20.glUniformMatrix4fv(muTexMatrixLoc, 1, false, texMatrix, 0);
+        GlUtil.checkGlError("glUniformMatrix4fv");
+
         // Populate the convolution kernel, if present.
         if (muKernelLoc >= 0) {
             GLES20.glUniform1fv(muKernelLoc, KERNEL_SIZE, mKernel, 0);
@@ -330,6 +560,19 @@ public class Texture2dProgram {
             GLES20.glUniform1f(muColorAdjustLoc, mColorAdjust);
         }
 
+        // Populate the blur taps, if present.
+        if (muBlurWeightLoc >= 0) {
+            GLES20.glUniform1fv(muBlurWeightLoc, MAX_BLUR_TAPS, mBlurWeight, 0);
+            GLES20.glUniform1fv(muBlurOffsetLoc, MAX_BLUR_TAPS, mBlurOffset, 0);
+            GLES20.glUniform1i(muBlurTapCountLoc, mBlurTapCount);
+            GLES20.glUniform2f(muBlurStepLoc, mBlurStepX, mBlurStepY);
+        }
+    }
+
+    /**
+     * Draws the rect, then disables the vertex arrays, texture, and program.
+     */
+    private void finishDraw(int firstVertex, int vertexCount) {
         // Draw the rect.
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, firstVertex, vertexCount);
         GlUtil.checkGlError("glDrawArrays");
@@ -0,0 +1,231 @@
+package com.process.RecordLib.opengl;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Passes textures rendered on one thread to another thread that samples them from its own
+ * EGL context, in the same share group, without either side touching a texture the other is
+ * still using on the GPU.
+ * <p>
+ * glFlush() only gets commands submitted; it doesn't order them against another context's.
+ * So each texture goes FREE -> WRITING -> QUEUED -> READING -> FREE, and every handover
+ * carries a fence: the reader waits on the writer's fence before sampling, and the writer
+ * waits on the reader's fence before drawing into the texture again.  Both waits are
+ * glWaitSync(), which holds up the GPU rather than the calling thread.  Fences need GLES 3
+ * in both contexts; otherwise the side handing a texture over calls glFinish() instead.
+ * Frames the reader won't see don't need either, and skip them with cancelWrite().
+ * <p>
+ * The writer never waits for the reader to get around to a texture.  If none is free it takes
+ * back the oldest one still queued, and the reader skips that frame when it comes to it.
+ * With three textures the reader can hold one while the writer fills another and a third
+ * waits.
+ * <p>
+ * There must be exactly one writer thread and one reader thread.  The per-texture arrays
+ * belong to whichever side holds the texture; changing its state publishes them.
+ */
+public class TextureHandoff {
+    private static final String TAG = GlUtil.TAG;
+
+    private static final int FREE = 0;
+    private static final int WRITING = 1;
+    private static final int QUEUED = 2;
+    private static final int READING = 3;
+
+    private static final int UNKNOWN = -1;
+
+    private final int mCount;
+    private final AtomicIntegerArray mStates;
+    private final int[] mTextureIds;
+    private final long[] mTimestamps;
+    private final long[] mWriteFences;         // 0 if none
+    private final long[] mReadFences;          // 0 if none
+
+    private final boolean mWriterHasFences;
+    private volatile int mReaderHasFences = UNKNOWN;    // set by the first beginRead()
+
+    // ----- accessed exclusively by the reader thread -----
+    private long mSkippedCount;
+
+    /**
+     * Creates a handoff for the given number of textures.  Call on the writer thread, with
+     * its context current.
+     */
+    public TextureHandoff(int count) {
+        if (count < 2) {
+            throw new IllegalArgumentException("need at least 2 textures, got " + count);
+        }
+        mCount = count;
+        mStates = new AtomicIntegerArray(count);
+        mTextureIds = new int[count];
+        mTimestamps = new long[count];
+        mWriteFences = new long[count];
+        mReadFences = new long[count];
+        mWriterHasFences = GlUtil.getGlVersion() >= 3;
+    }
+
+    /**
+     * Returns the number of textures.
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Picks the texture to draw the next frame into, and returns its index.  The caller may
+     * create or replace the texture at that index as it likes, then must call endWrite(), or
+     * cancelWrite() if the frame isn't going to the reader.  Any GPU wait for the reader to
+     * finish with it has been queued on return.  (Call from the writer thread.)
+     */
+    public int beginWrite() {
+        int index;
+        do {
+            index = claimForWrite();
+        } while (index < 0);    // the reader took the one we wanted; it'll free one shortly
+
+        long readFence = mReadFences[index];
+        if (readFence != 0) {
+            GLES30.glWaitSync(readFence, 0, GLES30.GL_TIMEOUT_IGNORED);
+            GLES30.glDeleteSync(readFence);
+            mReadFences[index] = 0;
+        }
+        return index;
+    }
+
+    /**
+     * Queues the texture at index for the reader, once the commands drawing into it are
+     * complete.  The texture id and timestamp together are what beginRead() looks for.
+     * (Call from the writer thread.)
+     */
+    public void endWrite(int index, int textureId, long timestampNanos) {
+        mTextureIds[index] = textureId;
+        mTimestamps[index] = timestampNanos;
+        if (mWriteFences[index] != 0) {
+            GLES30.glDeleteSync(mWriteFences[index]);
+            mWriteFences[index] = 0;
+        }
+        if (useFences()) {
+            mWriteFences[index] = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+            GLES20.glFlush();       // the fence must be submitted before anyone waits on it
+        } else {
+            GLES20.glFinish();
+        }
+        mStates.set(index, QUEUED);
+    }
+
+    /**
+     * Frees the texture at index without queueing it, for a frame the reader won't be told
+     * about.  There's no fence or glFinish(): the writer's own later use of the texture is
+     * ordered by its context, and the reader can't claim a texture that isn't queued.
+     * (Call from the writer thread.)
+     */
+    public void cancelWrite(int index) {
+        mStates.set(index, FREE);
+    }
+
+    /**
+     * Claims the queued texture with the given id and timestamp for reading, and returns its
+     * index.  The GPU has been told to wait for the writer on return.  Returns -1 if the
+     * writer has already taken the texture back for a newer frame, in which case the frame
+     * must be skipped.  (Call from the reader thread, with its context current.)
+     */
+    public int beginRead(int textureId, long timestampNanos) {
+        if (mReaderHasFences == UNKNOWN) {
+            mReaderHasFences = GlUtil.getGlVersion() >= 3 ? 1 : 0;
+            Log.d(TAG, "TextureHandoff using " + (useFences() ? "fences" : "glFinish"));
+        }
+        for (int i = 0; i < mCount; i++) {
+            if (mTextureIds[i] != textureId || mTimestamps[i] != timestampNanos ||
+                    !mStates.compareAndSet(i, QUEUED, READING)) {
+                continue;
+            }
+            // It may have been taken back and queued again between the checks and the claim.
+            if (mTextureIds[i] != textureId || mTimestamps[i] != timestampNanos) {
+                mStates.set(i, QUEUED);
+                break;
+            }
+            long writeFence = mWriteFences[i];
+            if (writeFence != 0) {
+                GLES30.glWaitSync(writeFence, 0, GLES30.GL_TIMEOUT_IGNORED);
+            }
+            return i;
+        }
+        mSkippedCount++;
+        return -1;
+    }
+
+    /**
+     * Gives the texture claimed by beginRead() back to the writer, once the commands reading
+     * it are complete.  (Call from the reader thread, after its last draw from the texture.)
+     */
+    public void endRead(int index) {
+        if (useFences()) {
+            mReadFences[index] = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+            GLES20.glFlush();
+        } else {
+            GLES20.glFinish();
+        }
+        mStates.set(index, FREE);
+    }
+
+    /**
+     * Returns the number of frames beginRead() had to skip.  (Call from the reader thread.)
+     */
+    public long getSkippedCount() {
+        return mSkippedCount;
+    }
+
+    /**
+     * Forgets all textures, so the reader will skip anything it still has queued.  The
+     * handoff can't be written to afterward.  Call on the writer thread.
+     *
+     * @param doEglCleanup If set, delete the fences; the writer's context must be current.
+     *     Otherwise assume they go away with the context.
+     */
+    public void release(boolean doEglCleanup) {
+        for (int i = 0; i < mCount; i++) {
+            mStates.set(i, WRITING);
+            if (doEglCleanup) {
+                if (mWriteFences[i] != 0) {
+                    GLES30.glDeleteSync(mWriteFences[i]);
+                }
+                if (mReadFences[i] != 0) {
+                    GLES30.glDeleteSync(mReadFences[i]);
+                }
+            }
+            mWriteFences[i] = 0;
+            mReadFences[i] = 0;
+        }
+    }
+
+    /**
+     * Moves a free texture, or failing that the oldest queued one, to WRITING.  Returns its
+     * index, or -1 if the reader claimed it first.  With at least two textures and the reader
+     * holding at most one, there's always a candidate.
+     */
+    private int claimForWrite() {
+        int oldest = -1;
+        for (int i = 0; i < mCount; i++) {
+            int state = mStates.get(i);
+            if (state == FREE) {
+                // Only the writer leaves FREE, so there's no need to compete for it.
+                mStates.set(i, WRITING);
+                return i;
+            }
+            if (state == QUEUED && (oldest < 0 || mTimestamps[i] < mTimestamps[oldest])) {
+                oldest = i;
+            }
+        }
+        if (oldest >= 0 && mStates.compareAndSet(oldest, QUEUED, WRITING)) {
+            return oldest;
+        }
+        return -1;
+    }
+
+    private boolean useFences() {
+        return mWriterHasFences && mReaderHasFences == 1;
+    }
+}
@@ -0,0 +1,178 @@
+package com.process.RecordLib.encoder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives BitrateController through windows of made-up output-side signals, on a fake clock,
+ * and checks its decisions.
+ */
+public class BitrateControllerTest {
+    private static final long FRAME_NANOS = 33333333L;
+    private static final long INTERVAL = BitrateController.UPDATE_INTERVAL_NANOS;
+    private static final long FAST_WRITE_NANOS = 1000000L;
+    private static final int FRAMES_PER_WINDOW = 15;
+
+    private static final int MIN_RATE = 1000000;
+    private static final int MAX_RATE = 10000000;
+    private static final int STEP = MAX_RATE / 20;          // INCREASE_STEP of the maximum
+
+    @Test
+    public void halfFullQueueCuts() {
+        BitrateController controller = newController(8000000);
+        // Just under half full is fine.
+        assertFalse(window(controller, INTERVAL, 49, FAST_WRITE_NANOS));
+        assertEquals(8000000, controller.getBitRate());
+
+        assertTrue(window(controller, INTERVAL * 2, 50, FAST_WRITE_NANOS));
+        assertEquals(6000000, controller.getBitRate());
+    }
+
+    @Test
+    public void slowWritesCut() {
+        BitrateController controller = newController(8000000);
+        assertTrue(window(controller, INTERVAL, 0, FRAME_NANOS * 2));
+        assertEquals(6000000, controller.getBitRate());
+    }
+
+    @Test
+    public void noIncreaseBeforeHold() {
+        BitrateController controller = newController(5000000);
+        long now = 0;
+        while (now + INTERVAL < BitrateController.INCREASE_HOLD_NANOS) {
+            now += INTERVAL;
+            assertFalse("raised at " + now, healthyWindow(controller, now));
+        }
+        assertTrue(healthyWindow(controller, BitrateController.INCREASE_HOLD_NANOS));
+        assertEquals(5000000 + STEP, controller.getBitRate());
+    }
+
+    @Test
+    public void oneStepPerHoldPeriod() {
+        BitrateController controller = newController(5000000);
+        int increases = 0;
+        int holdPeriods = 4;
+        long end = BitrateController.INCREASE_HOLD_NANOS * holdPeriods;
+        for (long now = INTERVAL; now <= end; now += INTERVAL) {
+            if (healthyWindow(controller, now)) {
+                increases++;
+            }
+        }
+        assertEquals(holdPeriods, increases);
+        assertEquals(5000000 + STEP * holdPeriods, controller.getBitRate());
+    }
+
+    @Test
+    public void congestionRestartsTheHold() {
+        BitrateController controller = newController(5000000);
+        long now = INTERVAL * 4;
+        healthyWindow(controller, now);
+        now += INTERVAL;
+        assertTrue(window(controller, now, 100, FAST_WRITE_NANOS));
+        int cutRate = controller.getBitRate();
+        long congestedAt = now;
+        while (now - congestedAt < BitrateController.INCREASE_HOLD_NANOS - INTERVAL) {
+            now += INTERVAL;
+            assertFalse("raised at " + now, healthyWindow(controller, now));
+        }
+        assertTrue(healthyWindow(controller, congestedAt + BitrateController.INCREASE_HOLD_NANOS));
+        assertEquals(cutRate + STEP, controller.getBitRate());
+    }
+
+    @Test
+    public void clampsAtMinimum() {
+        BitrateController controller = newController(1200000);
+        assertTrue(window(controller, INTERVAL, 100, FAST_WRITE_NANOS));
+        assertEquals(MIN_RATE, controller.getBitRate());
+        assertFalse(window(controller, INTERVAL * 2, 100, FAST_WRITE_NANOS));
+        assertEquals(MIN_RATE, controller.getBitRate());
+    }
+
+    @Test
+    public void clampsAtMaximum() {
+        BitrateController controller = newController(MAX_RATE - STEP / 2);
+        long hold = BitrateController.INCREASE_HOLD_NANOS;
+        long now = 0;
+        while (now < hold * 3) {
+            now += INTERVAL;
+            healthyWindow(controller, now);
+        }
+        assertEquals(MAX_RATE, controller.getBitRate());
+    }
+
+    @Test
+    public void slowWriteOnlyCountsOnce() {
+        BitrateController controller = newController(8000000);
+        // The window is fine until its last write stalls for a second.
+        for (int i = 0; i < FRAMES_PER_WINDOW; i++) {
+            controller.onSampleWritten(FAST_WRITE_NANOS);
+        }
+        controller.onSampleWritten(1000000000L);
+        assertTrue(controller.update(INTERVAL));
+        int cutRate = controller.getBitRate();
+
+        // Back to normal, even with only a few writes in the window.
+        for (int i = 0; i < 5; i++) {
+            controller.onSampleWritten(FAST_WRITE_NANOS);
+        }
+        assertFalse(controller.update(INTERVAL * 2));
+        // And a window without any finished writes isn't a reason to cut either.
+        assertFalse(controller.update(INTERVAL * 3));
+        assertEquals(cutRate, controller.getBitRate());
+    }
+
+    @Test
+    public void idleCodecIsNotRaised() {
+        BitrateController controller = newController(5000000);
+        for (long now = INTERVAL; now <= BitrateController.INCREASE_HOLD_NANOS * 2;
+                now += INTERVAL) {
+            // Healthy output, but the codec only uses a tenth of its rate.
+            controller.onFrameEncoded(controller.getBitRate() / 160);
+            assertFalse(window(controller, now, 0, FAST_WRITE_NANOS));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void initialRateOutsideBoundsIsRejected() {
+        newController(MAX_RATE + 1);
+    }
+
+    /**
+     * Creates a controller, and starts it at time 0.
+     */
+    private static BitrateController newController(int initialBitRate) {
+        BitrateController controller = new BitrateController(MIN_RATE, MAX_RATE, initialBitRate,
+                FRAME_NANOS);
+        assertFalse(controller.update(0));
+        return controller;
+    }
+
+    /**
+     * Feeds a window in which the codec uses its whole rate and the output keeps up easily,
+     * then updates.
+     */
+    private static boolean healthyWindow(BitrateController controller, long nowNanos) {
+        controller.onFrameEncoded(bytesPerWindow(controller));
+        return window(controller, nowNanos, 0, FAST_WRITE_NANOS);
+    }
+
+    /**
+     * Feeds a window's worth of writes taking writeNanos each, with the queue reaching
+     * queuePercent full, then updates.
+     */
+    private static boolean window(BitrateController controller, long nowNanos, int queuePercent,
+            long writeNanos) {
+        for (int i = 0; i < FRAMES_PER_WINDOW; i++) {
+            controller.onSampleWritten(writeNanos);
+        }
+        controller.onQueueDepth(queuePercent, 100);
+        return controller.update(nowNanos);
+    }
+
+    private static int bytesPerWindow(BitrateController controller) {
+        return (int) ((long) controller.getBitRate() * INTERVAL / 1000000000L / 8);
+    }
+}
@@ -0,0 +1,181 @@
+package com.process.RecordLib.encoder;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that direct (off-heap) storage hands back exactly the bytes and meta-data that the
+ * original byte[] storage does, including packets that wrap around the end of the ring.
+ */
+public class CircularEncoderBufferTest {
+    // 10000 bytes of data and 60 meta-data slots, so packets wrap every dozen or so adds.
+    private static final int BIT_RATE = 80000;
+    private static final int FRAME_RATE = 30;
+    private static final int SPAN_SEC = 1;
+    private static final int SYNC_INTERVAL = 10;
+
+    @Test
+    public void directMatchesHeapFromHeapSource() {
+        runComparison(false, 1);
+    }
+
+    @Test
+    public void directMatchesHeapFromDirectSource() {
+        // Codec output buffers are direct, which takes the native copy path in add().
+        runComparison(true, 2);
+    }
+
+    @Test
+    public void wrappedPacketsReuseOneScratchBuffer() {
+        CircularEncoderBuffer heap = newBuffer(false);
+        CircularEncoderBuffer direct = newBuffer(true);
+        Map<Long, byte[]> sent = new HashMap<Long, byte[]>();
+        Random rnd = new Random(3);
+        for (int i = 0; i < 200; i++) {
+            addBoth(heap, direct, sent, rnd, i, 800, false);
+            compareAll(heap, direct, sent);
+        }
+        assertTrue(heap.getWrappedAddCount() > 0);
+        assertTrue(direct.getWrappedReadCount() > 0);
+        assertEquals(heap.getWrappedAddCount(), direct.getWrappedAddCount());
+        assertEquals(heap.getWrappedReadCount(), direct.getWrappedReadCount());
+        // Sizes are fixed, so the first wrapped read sizes the scratch buffer for good.
+        assertEquals(1, direct.getScratchAllocCount());
+    }
+
+    @Test
+    public void readsDontDisturbWrites() {
+        // In direct mode add() and getChunk() share the same memory through separate views.
+        // Moving the returned buffer's position and limit must not affect later adds.
+        CircularEncoderBuffer heap = newBuffer(false);
+        CircularEncoderBuffer direct = newBuffer(true);
+        Map<Long, byte[]> sent = new HashMap<Long, byte[]>();
+        Random rnd = new Random(4);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        for (int i = 0; i < 100; i++) {
+            addBoth(heap, direct, sent, rnd, i, 0, true);
+            int index = direct.getLastIndex();
+            ByteBuffer chunk = direct.getChunk(index, info);
+            chunk.position(0);
+            chunk.limit(chunk.capacity() / 2);
+        }
+        compareAll(heap, direct, sent);
+    }
+
+    @Test
+    public void storageModeIsReported() {
+        assertFalse(newBuffer(false).isDirect());
+        assertTrue(newBuffer(true).isDirect());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void oversizedBufferIsRejected() {
+        // 100 Mbps for an hour is 45 GB, well past what an int offset can address.
+        new CircularEncoderBuffer(100000000, FRAME_RATE, 3600, true);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyBufferIsRejected() {
+        new CircularEncoderBuffer(0, FRAME_RATE, SPAN_SEC, false);
+    }
+
+    private static CircularEncoderBuffer newBuffer(boolean direct) {
+        return new CircularEncoderBuffer(BIT_RATE, FRAME_RATE, SPAN_SEC, direct);
+    }
+
+    private static void runComparison(boolean directSource, long seed) {
+        CircularEncoderBuffer heap = newBuffer(false);
+        CircularEncoderBuffer direct = newBuffer(true);
+        Map<Long, byte[]> sent = new HashMap<Long, byte[]>();
+        Random rnd = new Random(seed);
+        for (int i = 0; i < 500; i++) {
+            addBoth(heap, direct, sent, rnd, i, 0, directSource);
+            compareAll(heap, direct, sent);
+        }
+        assertTrue("no packet wrapped", direct.getWrappedReadCount() > 0);
+    }
+
+    /**
+     * Adds the same packet to both buffers, with a few junk bytes on either side in the
+     * source so the offsets are exercised.
+     *
+     * @param fixedSize Packet size, or 0 for random sizes.
+     */
+    private static void addBoth(CircularEncoderBuffer heap, CircularEncoderBuffer direct,
+            Map<Long, byte[]> sent, Random rnd, int frame, int fixedSize,
+            boolean directSource) {
+        int size = fixedSize > 0 ? fixedSize : 1 + rnd.nextInt(900);
+        byte[] packet = new byte[size];
+        rnd.nextBytes(packet);
+        long ptsUsec = frame * 1000000L / FRAME_RATE;
+        int flags = frame % SYNC_INTERVAL == 0 ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+        sent.put(ptsUsec, packet);
+
+        heap.add(makeSource(packet, directSource), flags, ptsUsec);
+        direct.add(makeSource(packet, directSource), flags, ptsUsec);
+    }
+
+    private static ByteBuffer makeSource(byte[] packet, boolean direct) {
+        int pad = 7;
+        ByteBuffer buf = direct ? ByteBuffer.allocateDirect(packet.length + pad * 2) :
+                ByteBuffer.allocate(packet.length + pad * 2);
+        for (int i = 0; i < pad; i++) {
+            buf.put((byte) 0xee);
+        }
+        buf.put(packet);
+        buf.position(pad);
+        buf.limit(pad + packet.length);
+        return buf;
+    }
+
+    /**
+     * Walks every packet from the oldest sync frame, checking both buffers give the same
+     * meta-data and the bytes that were added.
+     */
+    private static void compareAll(CircularEncoderBuffer heap, CircularEncoderBuffer direct,
+            Map<Long, byte[]> sent) {
+        int heapIndex = heap.getFirstIndex();
+        int directIndex = direct.getFirstIndex();
+        assertEquals(heapIndex, directIndex);
+        if (heapIndex < 0) {
+            return;
+        }
+        MediaCodec.BufferInfo heapInfo = new MediaCodec.BufferInfo();
+        MediaCodec.BufferInfo directInfo = new MediaCodec.BufferInfo();
+        while (heapIndex >= 0) {
+            byte[] heapBytes = readChunk(heap, heapIndex, heapInfo);
+            byte[] directBytes = readChunk(direct, directIndex, directInfo);
+            assertEquals(heapInfo.flags, directInfo.flags);
+            assertEquals(heapInfo.presentationTimeUs, directInfo.presentationTimeUs);
+            assertEquals(heapInfo.offset, directInfo.offset);
+            assertEquals(heapInfo.size, directInfo.size);
+            assertArrayEquals(sent.get(heapInfo.presentationTimeUs), heapBytes);
+            assertArrayEquals(heapBytes, directBytes);
+
+            heapIndex = heap.getNextIndex(heapIndex);
+            directIndex = direct.getNextIndex(directIndex);
+            assertEquals(heapIndex, directIndex);
+        }
+    }
+
+    private static byte[] readChunk(CircularEncoderBuffer buffer, int index,
+            MediaCodec.BufferInfo info) {
+        ByteBuffer chunk = buffer.getChunk(index, info).duplicate();
+        chunk.limit(info.offset + info.size);
+        chunk.position(info.offset);
+        byte[] bytes = new byte[info.size];
+        chunk.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,273 @@
+package com.process.RecordLib.encoder;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes a few fake GOPs with FragmentedMp4Writer, then walks the boxes of the file it
+ * produced and checks them against what went in.
+ */
+public class FragmentedMp4WriterTest {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final byte[] SPS = { 0x67, 0x42, (byte) 0xc0, 0x1f, 0x11, 0x22 };
+    private static final byte[] PPS = { 0x68, (byte) 0xce, 0x3c, (byte) 0x80 };
+    private static final byte[] AUD = { 0x09, (byte) 0xf0 };
+
+    private static final long FRAME_US = 33333;
+    private static final int GOP_LENGTH = 5;
+    private static final int GOP_COUNT = 3;
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    private File mFile;
+
+    // What went in: the slice data of each sample, its pts, and whether it was sync.
+    private final List<byte[]> mSlices = new ArrayList<byte[]>();
+    private final List<Long> mPtsUs = new ArrayList<Long>();
+    private final List<Boolean> mSync = new ArrayList<Boolean>();
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = mTempFolder.newFile("test.mp4");
+    }
+
+    @Test
+    public void boxesTileTheFile() throws IOException {
+        writeFile(new Random(1));
+        ByteBuffer file = readFile();
+
+        List<Box> top = parseBoxes(file, 0, file.limit());
+        assertEquals("ftyp", top.get(0).mType);
+        assertEquals("moov", top.get(1).mType);
+        assertEquals(2 + GOP_COUNT * 2, top.size());
+        for (int i = 2; i < top.size(); i += 2) {
+            assertEquals("moof", top.get(i).mType);
+            assertEquals("mdat", top.get(i + 1).mType);
+        }
+
+        // findChild() fails unless the container's children exactly fill it.
+        Box moov = top.get(1);
+        Box trak = findChild(file, moov, "trak");
+        Box stbl = findChild(file, findChild(file, findChild(file, trak, "mdia"), "minf"),
+                "stbl");
+        Box stsd = findChild(file, stbl, "stsd");
+        Box trex = findChild(file, findChild(file, moov, "mvex"), "trex");
+        assertEquals(1, file.getInt(trex.mPayload + 4));           // track ID
+
+        // The parameter sets went into avcC rather than into the samples.
+        Box avc1 = parseBoxes(file, stsd.mPayload + 8, stsd.mEnd).get(0);
+        assertEquals("avc1", avc1.mType);
+        Box avcC = parseBoxes(file, avc1.mPayload + 78, avc1.mEnd).get(0);
+        assertEquals("avcC", avcC.mType);
+        int pos = avcC.mPayload + 6;
+        assertArrayEquals(SPS, getBytes(file, pos + 2, file.getShort(pos)));
+        pos += 2 + SPS.length + 1;
+        assertArrayEquals(PPS, getBytes(file, pos + 2, file.getShort(pos)));
+    }
+
+    @Test
+    public void fragmentsDescribeTheirSamples() throws IOException {
+        writeFile(new Random(2));
+        ByteBuffer file = readFile();
+        List<Box> top = parseBoxes(file, 0, file.limit());
+
+        int sample = 0;
+        long expectedDecodeTime = 0;
+        for (int frag = 0; frag < GOP_COUNT; frag++) {
+            Box moof = top.get(2 + frag * 2);
+            Box mdat = top.get(3 + frag * 2);
+
+            Box mfhd = findChild(file, moof, "mfhd");
+            assertEquals(frag + 1, file.getInt(mfhd.mPayload + 4));
+
+            Box traf = findChild(file, moof, "traf");
+            Box tfdt = findChild(file, traf, "tfdt");
+            assertEquals(1, file.get(tfdt.mPayload));       // version 1, 64-bit time
+            assertEquals(expectedDecodeTime, file.getLong(tfdt.mPayload + 4));
+
+            Box trun = findChild(file, traf, "trun");
+            int count = file.getInt(trun.mPayload + 4);
+            assertEquals(GOP_LENGTH, count);
+            // default-base-is-moof: the data offset is from the start of the moof, and the
+            // samples start right after the mdat header.
+            int dataOffset = file.getInt(trun.mPayload + 8);
+            assertEquals(moof.mEnd - moof.mStart + 8, dataOffset);
+            assertEquals(mdat.mPayload, moof.mStart + dataOffset);
+
+            int dataPos = mdat.mPayload;
+            for (int i = 0; i < count; i++, sample++) {
+                int entry = trun.mPayload + 12 + i * 12;
+                int duration = file.getInt(entry);
+                int size = file.getInt(entry + 4);
+                int flags = file.getInt(entry + 8);
+
+                long nextPts = sample + 1 < mPtsUs.size() ? mPtsUs.get(sample + 1) :
+                        mPtsUs.get(sample) + (mPtsUs.get(sample) - mPtsUs.get(sample - 1));
+                assertEquals(nextPts - mPtsUs.get(sample), duration);
+                expectedDecodeTime += duration;
+
+                boolean sync = mSync.get(sample);
+                assertEquals(i == 0, sync);
+                assertEquals(sync ? 0x02000000 : 0x01010000, flags);
+
+                // One length-prefixed NAL unit: the slice, without the SPS, PPS, or AUD.
+                byte[] slice = mSlices.get(sample);
+                assertEquals(4 + slice.length, size);
+                assertEquals(slice.length, file.getInt(dataPos));
+                assertArrayEquals(slice, getBytes(file, dataPos + 4, slice.length));
+                dataPos += size;
+            }
+            assertEquals(mdat.mEnd, dataPos);
+        }
+        assertEquals(mSlices.size(), sample);
+    }
+
+    @Test
+    public void truncatedFileKeepsCompleteFragments() throws IOException {
+        // A fragment is only written once the next GOP starts, so what's on disk before
+        // close() is a sequence of complete moof/mdat pairs.
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(mFile);
+        writer.start(640, 480, ByteBuffer.wrap(withStartCode(SPS)),
+                ByteBuffer.wrap(withStartCode(PPS)));
+        Random rnd = new Random(3);
+        for (int i = 0; i < GOP_LENGTH * 2 + 1; i++) {
+            writeFrame(writer, rnd, i);
+        }
+        assertEquals(2, writer.getFragmentCount());
+        ByteBuffer file = readFile();
+        List<Box> top = parseBoxes(file, 0, file.limit());
+        assertEquals(6, top.size());
+        writer.close();
+    }
+
+    private void writeFile(Random rnd) throws IOException {
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(mFile);
+        writer.start(1280, 720, ByteBuffer.wrap(withStartCode(SPS)),
+                ByteBuffer.wrap(withStartCode(PPS)));
+        for (int i = 0; i < GOP_LENGTH * GOP_COUNT; i++) {
+            writeFrame(writer, rnd, i);
+        }
+        writer.close();
+        assertEquals(GOP_COUNT, writer.getFragmentCount());
+    }
+
+    /**
+     * Writes an Annex B access unit the way an encoder might: AUD, then the parameter sets on
+     * sync frames, then one slice.  Frame times jitter a little, so durations vary.
+     */
+    private void writeFrame(FragmentedMp4Writer writer, Random rnd, int frame)
+            throws IOException {
+        boolean sync = frame % GOP_LENGTH == 0;
+        byte[] slice = new byte[50 + rnd.nextInt(200)];
+        for (int i = 0; i < slice.length; i++) {
+            slice[i] = (byte) (1 + rnd.nextInt(255));      // no zeros, so no start codes
+        }
+        slice[0] = (byte) (sync ? 0x65 : 0x41);
+
+        ByteArrayOutputStream au = new ByteArrayOutputStream();
+        au.write(0x55);     // junk before the offset
+        au.write(withStartCode(AUD));
+        if (sync) {
+            au.write(withStartCode(SPS));
+            au.write(withStartCode(PPS));
+        }
+        au.write(withStartCode(slice));
+        byte[] bytes = au.toByteArray();
+
+        long ptsUs = mPtsUs.isEmpty() ? 0 :
+                mPtsUs.get(mPtsUs.size() - 1) + FRAME_US + rnd.nextInt(2000) - 1000;
+        mSlices.add(slice);
+        mPtsUs.add(ptsUs);
+        mSync.add(sync);
+        ByteBuffer buf = ByteBuffer.allocateDirect(bytes.length);
+        buf.put(bytes);
+        writer.writeSample(buf, 1, bytes.length - 1, ptsUs, sync);
+    }
+
+    private static byte[] withStartCode(byte[] nal) {
+        byte[] result = new byte[nal.length + 4];
+        result[3] = 1;
+        System.arraycopy(nal, 0, result, 4, nal.length);
+        return result;
+    }
+
+    private ByteBuffer readFile() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+        try {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            return ByteBuffer.wrap(bytes);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static class Box {
+        String mType;
+        int mStart;         // offset of the size field
+        int mPayload;       // offset of the first byte after the type
+        int mEnd;
+    }
+
+    /**
+     * Splits [start, end) into boxes, failing unless they exactly cover it.
+     */
+    private static List<Box> parseBoxes(ByteBuffer file, int start, int end) {
+        List<Box> boxes = new ArrayList<Box>();
+        int pos = start;
+        while (pos < end) {
+            assertTrue("truncated box header at " + pos, pos + 8 <= end);
+            int size = file.getInt(pos);
+            assertTrue("bad box size " + size + " at " + pos, size >= 8 && pos + size <= end);
+            Box box = new Box();
+            box.mType = new String(getBytes(file, pos + 4, 4), ASCII);
+            box.mStart = pos;
+            box.mPayload = pos + 8;
+            box.mEnd = pos + size;
+            boxes.add(box);
+            pos += size;
+        }
+        assertEquals(end, pos);
+        return boxes;
+    }
+
+    /**
+     * Returns the child of a container box with the given type.  For a full box, the
+     * version and flags are the first four bytes of the payload.
+     */
+    private static Box findChild(ByteBuffer file, Box parent, String type) {
+        List<Box> children = parseBoxes(file, parent.mPayload, parent.mEnd);
+        for (Box child : children) {
+            if (child.mType.equals(type)) {
+                return child;
+            }
+        }
+        throw new AssertionError("no " + type + " in " + parent.mType);
+    }
+
+    private static byte[] getBytes(ByteBuffer file, int offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer dup = file.duplicate();
+        dup.position(offset);
+        dup.get(bytes);
+        return bytes;
+    }
+}
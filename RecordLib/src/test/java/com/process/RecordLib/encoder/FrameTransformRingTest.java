@@ -0,0 +1,199 @@
+package com.process.RecordLib.encoder;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks that FrameTransformRing never hands out a torn frame while the producer is writing,
+ * and that publishing and reading don't allocate.
+ */
+public class FrameTransformRingTest {
+    private static final int MATRIX_SIZE = 16;
+
+    // A small ring, so the writer laps the reader constantly.
+    private static final int CAPACITY = 4;
+    private static final int FRAME_COUNT = 500000;
+
+    @Test
+    public void readBackInOrder() {
+        FrameTransformRing ring = new FrameTransformRing(CAPACITY);
+        float[] in = new float[MATRIX_SIZE];
+        float[] out = new float[MATRIX_SIZE];
+        for (long seq = 0; seq < 10; seq++) {
+            fillMatrix(in, seq);
+            assertEquals(seq, ring.publish(in, textureFor(seq), timestampFor(seq),
+                    arrivalFor(seq)));
+            assertEquals(timestampFor(seq), ring.read(seq, out));
+            assertArrayEquals(in, out, 0f);
+            assertEquals(textureFor(seq), ring.getLastReadTextureId());
+            assertEquals(arrivalFor(seq), ring.getLastReadArrivalNanos());
+        }
+        assertEquals(0, ring.getDroppedCount());
+    }
+
+    @Test
+    public void lappedSlotIsReported() {
+        FrameTransformRing ring = new FrameTransformRing(CAPACITY);
+        float[] matrix = new float[MATRIX_SIZE];
+        for (long seq = 0; seq <= CAPACITY; seq++) {
+            fillMatrix(matrix, seq);
+            ring.publish(matrix, textureFor(seq), timestampFor(seq), arrivalFor(seq));
+        }
+        // Frame 0's slot now holds frame CAPACITY.
+        assertEquals(-1, ring.read(0, matrix));
+        assertEquals(1, ring.getDroppedCount());
+        assertEquals(timestampFor(1), ring.read(1, matrix));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityMustBePowerOfTwo() {
+        new FrameTransformRing(3);
+    }
+
+    @Test
+    public void concurrentReadsAreNeverTorn() throws InterruptedException {
+        final FrameTransformRing ring = new FrameTransformRing(CAPACITY);
+        final AtomicLong published = new AtomicLong(-1);
+        final AtomicReference<String> failure = new AtomicReference<String>();
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                float[] matrix = new float[MATRIX_SIZE];
+                for (long seq = 0; seq < FRAME_COUNT; seq++) {
+                    fillMatrix(matrix, seq);
+                    ring.publish(matrix, textureFor(seq), timestampFor(seq), arrivalFor(seq));
+                    published.set(seq);
+                }
+            }
+        }, "ring-writer");
+
+        final long[] goodReads = new long[1];
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                float[] matrix = new float[MATRIX_SIZE];
+                long reads = 0;
+                while (failure.get() == null) {
+                    long latest = published.get();
+                    if (latest < 0) {
+                        continue;
+                    }
+                    // Alternate between the newest frame and the oldest one still in the
+                    // ring, which is the next slot the writer will overwrite.
+                    long seq = (reads++ & 1) == 0 ? latest :
+                            Math.max(0, latest - CAPACITY + 1);
+                    long timestamp = ring.read(seq, matrix);
+                    if (timestamp >= 0) {
+                        String problem = check(ring, seq, timestamp, matrix);
+                        if (problem != null) {
+                            failure.set(problem);
+                        }
+                        goodReads[0]++;
+                    }
+                    if (latest == FRAME_COUNT - 1) {
+                        break;
+                    }
+                }
+            }
+        }, "ring-reader");
+
+        reader.start();
+        writer.start();
+        writer.join();
+        reader.join();
+
+        assertNull(failure.get());
+        assertTrue("reader never got a frame", goodReads[0] > 0);
+    }
+
+    @Test
+    public void steadyStateDoesNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(sunBean.isThreadAllocatedMemorySupported());
+        sunBean.setThreadAllocatedMemoryEnabled(true);
+
+        FrameTransformRing ring = new FrameTransformRing(CAPACITY);
+        float[] in = new float[MATRIX_SIZE];
+        float[] out = new float[MATRIX_SIZE];
+        long threadId = Thread.currentThread().getId();
+
+        // Warm up, so class loading and JIT compilation are out of the way.
+        runFrames(ring, in, out, 0, 20000);
+        long before = sunBean.getThreadAllocatedBytes(threadId);
+        runFrames(ring, in, out, 20000, 100000);
+        long allocated = sunBean.getThreadAllocatedBytes(threadId) - before;
+
+        // Allow for the measurement itself; a single allocation per frame would be
+        // megabytes.
+        assertTrue("allocated " + allocated + " bytes", allocated < 4096);
+    }
+
+    private static void runFrames(FrameTransformRing ring, float[] in, float[] out,
+            long first, long count) {
+        for (long seq = first; seq < first + count; seq++) {
+            fillMatrix(in, seq);
+            ring.publish(in, textureFor(seq), timestampFor(seq), arrivalFor(seq));
+            if (ring.read(seq, out) != timestampFor(seq)) {
+                throw new AssertionError("lost frame " + seq);
+            }
+        }
+    }
+
+    /**
+     * Returns a description of what's wrong with a frame read back from the ring, or null.
+     */
+    private static String check(FrameTransformRing ring, long seq, long timestamp,
+            float[] matrix) {
+        if (timestamp != timestampFor(seq)) {
+            return "frame " + seq + ": timestamp " + timestamp;
+        }
+        for (int i = 0; i < MATRIX_SIZE; i++) {
+            if (matrix[i] != matrixValue(seq, i)) {
+                return "frame " + seq + ": torn matrix, [" + i + "]=" + matrix[i];
+            }
+        }
+        if (ring.getLastReadTextureId() != textureFor(seq)) {
+            return "frame " + seq + ": texture " + ring.getLastReadTextureId();
+        }
+        if (ring.getLastReadArrivalNanos() != arrivalFor(seq)) {
+            return "frame " + seq + ": arrival " + ring.getLastReadArrivalNanos();
+        }
+        return null;
+    }
+
+    // Every field of a frame is derived from its sequence number, so a mix of two frames
+    // shows up as a mismatch.  Matrix values stay exact in a float up to 2^24.
+    private static void fillMatrix(float[] matrix, long seq) {
+        for (int i = 0; i < MATRIX_SIZE; i++) {
+            matrix[i] = matrixValue(seq, i);
+        }
+    }
+
+    private static float matrixValue(long seq, int index) {
+        return (float) ((seq % 1000000) * MATRIX_SIZE + index);
+    }
+
+    private static int textureFor(long seq) {
+        return (int) seq + 1;
+    }
+
+    private static long timestampFor(long seq) {
+        return seq * 1000;
+    }
+
+    private static long arrivalFor(long seq) {
+        return seq * 1000 + 7;
+    }
+}
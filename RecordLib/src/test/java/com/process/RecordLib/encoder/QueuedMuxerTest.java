@@ -0,0 +1,137 @@
+package com.process.RecordLib.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how QueuedMuxer tells droppable frames from reference frames, and what it reports
+ * about its writes.
+ */
+public class QueuedMuxerTest {
+    // AVC NAL headers: forbidden_zero_bit, nal_ref_idc (2 bits), nal_unit_type (5 bits).
+    private static final int AUD = 0x09;            // ref_idc 0, type 9
+    private static final int SEI = 0x06;            // ref_idc 0, type 6
+    private static final int SPS = 0x67;            // ref_idc 3, type 7
+    private static final int PPS = 0x68;            // ref_idc 3, type 8
+    private static final int IDR_SLICE = 0x65;      // ref_idc 3, type 5
+    private static final int P_SLICE = 0x41;        // ref_idc 2, type 1
+    private static final int B_SLICE = 0x01;        // ref_idc 0, type 1
+
+    @Test
+    public void singleSlice() {
+        assertTrue(isReference(P_SLICE));
+        assertTrue(isReference(IDR_SLICE));
+        assertFalse(isReference(B_SLICE));
+    }
+
+    @Test
+    public void delimiterAndSeiAreSkipped() {
+        // The AUD and SEI say ref_idc 0 for every frame; only the slice decides.
+        assertTrue(isReference(AUD, SEI, P_SLICE));
+        assertFalse(isReference(AUD, SEI, B_SLICE));
+        assertTrue(isReference(AUD, SPS, PPS, IDR_SLICE));
+    }
+
+    @Test
+    public void noSliceIsTreatedAsReference() {
+        assertTrue(isReference(AUD, SEI));
+        assertTrue(isReference());
+    }
+
+    @Test
+    public void payloadBytesAreNotStartCodes() {
+        // Payload bytes that look like the start of a start code but aren't one.
+        ByteBuffer buf = ByteBuffer.allocate(32);
+        buf.put(new byte[] { 0, 0, 1, (byte) SEI, 0, 0, 3, 1, 0x7f, (byte) 0x80 });
+        buf.put(new byte[] { 0, 0, 0, 1, (byte) B_SLICE, 0x11, 0x22 });
+        buf.flip();
+        assertFalse(check(buf, 0));
+    }
+
+    @Test
+    public void offsetIsHonored() {
+        ByteBuffer buf = ByteBuffer.allocate(32);
+        // A reference slice before the sample, which must be ignored.
+        buf.put(new byte[] { 0, 0, 1, (byte) P_SLICE, 0x55 });
+        int offset = buf.position();
+        buf.put(new byte[] { 0, 0, 0, 1, (byte) AUD, (byte) 0xf0 });
+        buf.put(new byte[] { 0, 0, 1, (byte) B_SLICE, 0x55 });
+        buf.flip();
+        assertFalse(check(buf, offset));
+    }
+
+    @Test
+    public void writerReportsStorageTime() {
+        // Storage that keeps up (the queue never fills) but takes longer than a frame.
+        final long frameNanos = 10000000L;
+        VideoMuxer slowTarget = new VideoMuxer() {
+            @Override
+            public void start(MediaFormat format) {
+            }
+
+            @Override
+            public void writeSampleData(ByteBuffer encodedData, MediaCodec.BufferInfo info) {
+                try {
+                    Thread.sleep(frameNanos * 2 / 1000000);
+                } catch (InterruptedException ie) {
+                    throw new RuntimeException(ie);
+                }
+            }
+
+            @Override
+            public void release() {
+            }
+        };
+        BitrateController controller = new BitrateController(1000000, 8000000, 8000000,
+                frameNanos);
+        controller.update(0);
+        QueuedMuxer muxer = new QueuedMuxer(slowTarget, 16, QueuedMuxer.OverflowPolicy.BLOCK);
+        muxer.setBitrateController(controller);
+        muxer.start(null);
+        ByteBuffer sample = ByteBuffer.allocate(16);
+        for (int i = 0; i < 4; i++) {
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            info.size = sample.capacity();
+            muxer.writeSampleData(sample, info);
+        }
+        muxer.release();        // waits for the writes
+
+        // Only the writer thread's timing can have told it storage is slow.
+        assertTrue(controller.update(BitrateController.UPDATE_INTERVAL_NANOS));
+        assertEquals(6000000, controller.getBitRate());
+    }
+
+    /**
+     * Builds a sample out of NAL units with the given headers, each with a short payload,
+     * and asks QueuedMuxer about it.
+     */
+    private static boolean isReference(int... nalHeaders) {
+        ByteBuffer buf = ByteBuffer.allocate(8 + nalHeaders.length * 8);
+        buf.put((byte) 0xaa);       // junk before the sample
+        int offset = buf.position();
+        for (int i = 0; i < nalHeaders.length; i++) {
+            if (i == 0) {
+                buf.put((byte) 0);  // 4-byte start code on the first
+            }
+            buf.put(new byte[] { 0, 0, 1, (byte) nalHeaders[i], (byte) 0x9a, 0x12 });
+        }
+        buf.flip();
+        return check(buf, offset);
+    }
+
+    private static boolean check(ByteBuffer buf, int offset) {
+        // Fields rather than set(): android.jar methods are stubbed out in JVM tests.
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.offset = offset;
+        info.size = buf.limit() - offset;
+        return QueuedMuxer.isReferenceFrame(buf, info);
+    }
+}
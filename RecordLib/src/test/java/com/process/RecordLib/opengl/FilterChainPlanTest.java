@@ -0,0 +1,115 @@
+package com.process.RecordLib.opengl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the draw order FilterChainPlan works out, and which buffers each draw reads and
+ * writes.
+ */
+public class FilterChainPlanTest {
+
+    @Test
+    public void nothingEnabledCopies() {
+        FilterChainPlan plan = new FilterChainPlan();
+        plan.update(new int[] { 0, 0, 0 }, 3);
+        assertEquals(1, plan.getStepCount());
+        assertEquals(FilterChainPlan.COPY, plan.getPass(0));
+        assertEquals(FilterChainPlan.SOURCE, plan.getInput(0));
+        assertEquals(FilterChainPlan.TARGET, plan.getOutput(0));
+        assertEquals(0, plan.getBufferCount());
+
+        plan.update(new int[0], 0);
+        assertEquals(1, plan.getStepCount());
+        assertEquals(FilterChainPlan.COPY, plan.getPass(0));
+    }
+
+    @Test
+    public void singleDrawGoesStraightThrough() {
+        FilterChainPlan plan = new FilterChainPlan();
+        plan.update(new int[] { 0, 1, 0 }, 3);
+        assertEquals(1, plan.getStepCount());
+        assertEquals(1, plan.getPass(0));
+        assertEquals(0, plan.getDraw(0));
+        assertEquals(FilterChainPlan.SOURCE, plan.getInput(0));
+        assertEquals(FilterChainPlan.TARGET, plan.getOutput(0));
+        assertEquals(0, plan.getBufferCount());
+    }
+
+    @Test
+    public void passesRunInChainOrderSkippingDisabled() {
+        // A one-draw pass, a disabled one, a two-draw blur, and another one-draw pass.
+        FilterChainPlan plan = new FilterChainPlan();
+        plan.update(new int[] { 1, 0, 2, 1 }, 4);
+        assertEquals(4, plan.getStepCount());
+        int[] passes = { 0, 2, 2, 3 };
+        int[] draws = { 0, 0, 1, 0 };
+        for (int step = 0; step < passes.length; step++) {
+            assertEquals("pass at " + step, passes[step], plan.getPass(step));
+            assertEquals("draw at " + step, draws[step], plan.getDraw(step));
+        }
+    }
+
+    @Test
+    public void intermediatesPingPong() {
+        FilterChainPlan plan = new FilterChainPlan();
+        plan.update(new int[] { 2, 1, 3 }, 3);
+        int steps = plan.getStepCount();
+        assertEquals(6, steps);
+        assertEquals(FilterChainPlan.MAX_BUFFERS, plan.getBufferCount());
+
+        assertEquals(FilterChainPlan.SOURCE, plan.getInput(0));
+        assertEquals(FilterChainPlan.TARGET, plan.getOutput(steps - 1));
+        for (int step = 0; step < steps; step++) {
+            int input = plan.getInput(step);
+            int output = plan.getOutput(step);
+            // Never draw into the texture being sampled.
+            assertNotEquals("step " + step, input, output);
+            if (step > 0) {
+                // Each step reads what the one before wrote.
+                assertEquals("step " + step, plan.getOutput(step - 1), input);
+                assertInRange(input, plan.getBufferCount());
+            }
+            if (step < steps - 1) {
+                assertInRange(output, plan.getBufferCount());
+            }
+        }
+    }
+
+    @Test
+    public void twoStepsNeedOneBuffer() {
+        FilterChainPlan plan = new FilterChainPlan();
+        plan.update(new int[] { 2 }, 1);
+        assertEquals(2, plan.getStepCount());
+        assertEquals(1, plan.getBufferCount());
+        assertEquals(0, plan.getOutput(0));
+        assertEquals(0, plan.getInput(1));
+    }
+
+    @Test
+    public void shrinkingReusesArraysWithoutStaleSteps() {
+        FilterChainPlan plan = new FilterChainPlan();
+        plan.update(new int[] { 2, 2, 2 }, 3);
+        assertEquals(6, plan.getStepCount());
+
+        // Only the first passCount entries count.
+        plan.update(new int[] { 1, 5, 5 }, 1);
+        assertEquals(1, plan.getStepCount());
+        assertEquals(0, plan.getPass(0));
+        assertEquals(FilterChainPlan.SOURCE, plan.getInput(0));
+        assertEquals(FilterChainPlan.TARGET, plan.getOutput(0));
+        assertEquals(0, plan.getBufferCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeDrawCountIsRejected() {
+        new FilterChainPlan().update(new int[] { 1, -1 }, 2);
+    }
+
+    private static void assertInRange(int buffer, int bufferCount) {
+        assertTrue("buffer " + buffer, buffer >= 0 && buffer < bufferCount);
+    }
+}
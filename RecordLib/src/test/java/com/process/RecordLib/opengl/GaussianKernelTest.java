@@ -0,0 +1,72 @@
+package com.process.RecordLib.opengl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the merged bilinear taps GaussianKernel produces for the separable blur.
+ */
+public class GaussianKernelTest {
+    private static final int MAX_RADIUS = 32;
+
+    @Test
+    public void weightsSumToOne() {
+        float[] offsets = new float[GaussianKernel.getTapCount(MAX_RADIUS)];
+        float[] weights = new float[offsets.length];
+        for (int radius = 0; radius <= MAX_RADIUS; radius++) {
+            int taps = GaussianKernel.computeTaps(radius, offsets, weights);
+            assertEquals(GaussianKernel.getTapCount(radius), taps);
+            // The shader mirrors every tap but the center.
+            double sum = weights[0];
+            for (int i = 1; i < taps; i++) {
+                sum += 2 * weights[i];
+            }
+            assertEquals("radius " + radius, 1.0, sum, 1e-5);
+        }
+    }
+
+    @Test
+    public void zeroRadiusIsIdentity() {
+        float[] offsets = new float[1];
+        float[] weights = new float[1];
+        assertEquals(1, GaussianKernel.computeTaps(0, offsets, weights));
+        assertEquals(0f, offsets[0], 0f);
+        assertEquals(1f, weights[0], 0f);
+    }
+
+    @Test
+    public void tapsFallOffAndStayWithinTheirPair() {
+        float[] offsets = new float[GaussianKernel.getTapCount(MAX_RADIUS)];
+        float[] weights = new float[offsets.length];
+        for (int radius = 1; radius <= MAX_RADIUS; radius++) {
+            int taps = GaussianKernel.computeTaps(radius, offsets, weights);
+            assertEquals(0f, offsets[0], 0f);
+            for (int i = 1; i < taps; i++) {
+                // Tap i merges texels 2i-1 and 2i, and leans toward the nearer, heavier one.
+                String where = "radius " + radius + " tap " + i;
+                assertTrue(where, offsets[i] >= 2 * i - 1 && offsets[i] <= 2 * i);
+                assertTrue(where, offsets[i] < 2 * i - 0.5f || 2 * i > radius);
+                assertTrue(where, weights[i] > 0f);
+                if (i > 1) {
+                    assertTrue(where, weights[i] < weights[i - 1]);
+                }
+            }
+            // The last tap is a lone texel when the radius is odd.
+            if (radius % 2 == 1) {
+                assertEquals("radius " + radius, radius, offsets[taps - 1], 1e-6f);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shortArraysAreRejected() {
+        GaussianKernel.computeTaps(4, new float[2], new float[2]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeRadiusIsRejected() {
+        GaussianKernel.computeTaps(-1, new float[1], new float[1]);
+    }
+}